@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+
+import net.luminis.osgitest.results.ConformanceReportGenerator;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Copy;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * Ant task to generate the conformance report out of the results of the {@link OSGiTestTask}.
+ * This replaces running junitreport with junit-frames.xsl over the merged results.
+ *
+ * The options are:
+ * - todir: the directory the report is written to
+ * - specifications: the osgi-specifications.xml file describing the OSGi versions and sections
+ * - resources: (optional) the web/ resources directory, copied to todir/resources
+ * - nested filesets: the XML files written by the {@link OSGiTestTask}
+ *
+ */
+public class ConformanceReportTask extends Task {
+
+    private final Vector<FileSet> m_results = new Vector<FileSet>();
+    private File m_toDir;
+    private File m_specifications;
+    private File m_resources;
+
+    /**
+     * Sets the directory the report is written to.
+     *
+     * @param toDir
+     */
+    public void setTodir(File toDir) {
+        m_toDir = toDir;
+    }
+
+    /**
+     * Sets the osgi-specifications.xml file that describes the sections of every OSGi version.
+     *
+     * @param specifications
+     */
+    public void setSpecifications(File specifications) {
+        m_specifications = specifications;
+    }
+
+    /**
+     * Sets the directory containing the web resources (scripts, styles and images) of the report.
+     * The resources are copied to the resources directory of the report.
+     *
+     * @param resources
+     */
+    public void setResources(File resources) {
+        m_resources = resources;
+    }
+
+    public void addFileset(FileSet fileset) {
+        m_results.add(fileset);
+    }
+
+    /**
+     * Executes the ant task
+     */
+    @Override
+    public void execute() throws BuildException {
+        if ((m_toDir == null) || (m_specifications == null)) {
+            throw new BuildException("The todir and specifications attributes are required.", getLocation());
+        }
+
+        long start = System.currentTimeMillis();
+        int files = 0;
+        try {
+            ConformanceReportGenerator generator = new ConformanceReportGenerator(m_specifications, m_toDir);
+            for (FileSet fileset : m_results) {
+                DirectoryScanner ds = fileset.getDirectoryScanner(getProject());
+                for (String includedFile : ds.getIncludedFiles()) {
+                    generator.addResults(new File(ds.getBasedir(), includedFile));
+                    files++;
+                }
+            }
+            generator.writeMatrix();
+        }
+        catch (IOException e) {
+            throw new BuildException(e, getLocation());
+        }
+
+        if (m_resources != null) {
+            Copy copy = new Copy();
+            copy.bindToOwner(this);
+            copy.setTodir(new File(m_toDir, "resources"));
+            FileSet resources = new FileSet();
+            resources.setDir(m_resources);
+            copy.addFileset(resources);
+            copy.execute();
+        }
+
+        log("Generated report of " + files + " result files in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
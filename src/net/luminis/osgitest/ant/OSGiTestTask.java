@@ -18,21 +18,48 @@
  */
 package net.luminis.osgitest.ant;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
+import net.luminis.osgitest.core.ClassDataSharing;
+import net.luminis.osgitest.core.FrameworkBootFailures;
+import net.luminis.osgitest.core.OSGiSpecFilter;
+import net.luminis.osgitest.core.OSGiSpecIndex;
+import net.luminis.osgitest.core.OSGiTestRunner;
+import net.luminis.osgitest.core.RerunFilter;
+import net.luminis.osgitest.core.TestWatchdog;
+import net.luminis.osgitest.results.PreviousResults;
+import net.luminis.osgitest.results.ResultHistory;
+import net.luminis.osgitest.testhelper.FixtureLibrary;
 import net.luminis.osgitest.testhelper.TestBase;
+import net.luminis.osgitest.testhelper.TestMeasurements;
 
+import org.apache.tools.ant.AntClassLoader;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.optional.junit.FormatterElement;
 import org.apache.tools.ant.taskdefs.optional.junit.JUnitTask;
+import org.apache.tools.ant.taskdefs.optional.junit.JUnitTest;
+import org.apache.tools.ant.types.Commandline;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Path;
+import org.apache.tools.ant.types.EnumeratedAttribute;
 import org.apache.tools.ant.types.Environment.Variable;
+import org.apache.tools.ant.util.FileUtils;
 
 /**
  * Ant task to run tests in the OSGi testing framework. This task is based on ants own {@link JUnitTasl} but with
@@ -42,6 +69,20 @@ import org.apache.tools.ant.types.Environment.Variable;
  * - vendors: {@link OSGiTestTask.setVendors()}
  * - platformDefinitionDir: {@link OSGiTest.setPlatformDefinitionDir()}
  * - externalJar: {@link OSGiTest.setExternalJar()}
+ * - historyFile: {@link OSGiTestTask.setHistoryFile()}
+ * - specVersion: {@link OSGiTestTask.setSpecVersion()}
+ * - sections: {@link OSGiTestTask.setSections()}
+ * - rerun: {@link OSGiTestTask.setRerun()}
+ * - previousResults: {@link OSGiTestTask.setPreviousResults()}
+ * - testTimeout: {@link OSGiTestTask.setTestTimeout()}
+ * - phaseTimeout: {@link OSGiTestTask.setPhaseTimeout()}
+ * - bootAttempts: {@link OSGiTestTask.setBootAttempts()}
+ * - paxVmOptions: {@link OSGiTestTask.setPaxVmOptions()}
+ * - cdsDir: {@link OSGiTestTask.setCdsDir()}
+ * - cdsTraining: {@link OSGiTestTask.setCdsTraining()}
+ * - container: {@link OSGiTestTask.setContainer()}
+ * - sharedDependencies: {@link OSGiTestTask.setSharedDependencies()}
+ * - fixtureDir: {@link OSGiTestTask.setFixtureDir()}
  *
  */
 public class OSGiTestTask extends JUnitTask {
@@ -51,6 +92,31 @@ public class OSGiTestTask extends JUnitTask {
 
     private final Vector<TestDependency> m_testDependencies = new Vector<TestDependency>();
 
+    private String m_specVersion;
+    private String m_sections;
+    /**
+     * Selects the tests to run, null if all tests should run.
+     */
+    private OSGiSpecFilter m_specFilter;
+    private OSGiSpecIndex m_specIndex;
+
+    private String m_rerunMode = RerunMode.ALL;
+    private File m_previousResultsDir;
+    private PreviousResults m_previousResults;
+    /**
+     * Copies of the previous result files of the tests that are rerun, merged with the new results afterwards.
+     */
+    private final Map<JUnitTest, File> m_rerunTests = new LinkedHashMap<JUnitTest, File>();
+
+    private String m_container = TestBase.CONTAINER_REMOTE;
+    private File m_cdsDir;
+    private boolean m_cdsTraining;
+    /**
+     * The jvmargs with the class data sharing archive of the forked VMs.
+     */
+    private Commandline.Argument[] m_cdsArguments;
+    private File m_fixtureDir;
+
     public OSGiTestTask() throws Exception {
         super();
     }
@@ -132,6 +198,192 @@ public class OSGiTestTask extends JUnitTask {
         addConfiguredSysproperty(vmOptionVar);
     }
 
+    /**
+     * Set whitespace separated VMoptions that are passed to the pax exam testcontainer, next to the one
+     * set by {@link #setPaxVmOption(String)}.
+     *
+     * @param vmOptions
+     */
+    public void setPaxVmOptions(String vmOptions) {
+        Variable vmOptionsVar = new Variable();
+        vmOptionsVar.setKey(TestBase.PROP_VM_OPTIONS);
+        vmOptionsVar.setValue(vmOptions);
+
+        addConfiguredSysproperty(vmOptionsVar);
+    }
+
+    /**
+     * Sets the test container the tests run in:
+     * - remote: the framework runs in a separate VM started by Pax Runner (default)
+     * - embedded: the framework runs in the forked VM of the testsuite, without remote calls. Only frameworks
+     *   implementing the OSGi R4.2 launching API can be embedded.
+     *
+     * @param container
+     */
+    public void setContainer(Container container) {
+        m_container = container.getValue();
+
+        Variable containerVar = new Variable();
+        containerVar.setKey(TestBase.PROP_CONTAINER);
+        containerVar.setValue(container.getValue());
+
+        addConfiguredSysproperty(containerVar);
+    }
+
+    /**
+     * Sets the directory with the class data sharing archives of the testcontainers (one per framework
+     * vendor/version) and of the forked VMs that run the testsuites. Existing archives are passed to the
+     * VMs automatically.
+     *
+     * @see ClassDataSharing
+     * @param cdsDir
+     */
+    public void setCdsDir(File cdsDir) {
+        m_cdsDir = cdsDir;
+
+        Variable cdsDirVar = new Variable();
+        cdsDirVar.setKey(ClassDataSharing.PROP_CDS_DIR);
+        cdsDirVar.setValue(cdsDir.getAbsolutePath());
+
+        addConfiguredSysproperty(cdsDirVar);
+    }
+
+    /**
+     * Makes this a training run: the class data sharing archives in the cdsDir are (re)created by the
+     * VMs of this run.
+     *
+     * @see ClassDataSharing
+     * @param cdsTraining
+     */
+    public void setCdsTraining(boolean cdsTraining) {
+        m_cdsTraining = cdsTraining;
+
+        Variable cdsTrainingVar = new Variable();
+        cdsTrainingVar.setKey(ClassDataSharing.PROP_CDS_TRAINING);
+        cdsTrainingVar.setValue(Boolean.toString(cdsTraining));
+
+        addConfiguredSysproperty(cdsTrainingVar);
+    }
+
+    /**
+     * Sets the file the results of every run are appended to, so trends can be queried across runs.
+     *
+     * @see ResultHistory
+     * @param historyFile
+     */
+    public void setHistoryFile(File historyFile) {
+        Variable historyFileVar = new Variable();
+        historyFileVar.setKey(ResultHistory.PROP_HISTORY_FILE);
+        historyFileVar.setValue(historyFile.getAbsolutePath());
+
+        addConfiguredSysproperty(historyFileVar);
+    }
+
+    /**
+     * Only runs the tests covering sections of this OSGi specification version (eg: 4.1).
+     *
+     * @see OSGiTestTask#setSections(String)
+     * @param specVersion
+     */
+    public void setSpecVersion(String specVersion) {
+        m_specVersion = specVersion;
+
+        Variable specVersionVar = new Variable();
+        specVersionVar.setKey(OSGiSpecFilter.PROP_SPEC_VERSION);
+        specVersionVar.setValue(specVersion);
+
+        addConfiguredSysproperty(specVersionVar);
+    }
+
+    /**
+     * Only runs the tests covering one of these sections. Comma separated list of section numbers, a
+     * section followed by .* includes all its subsections.
+     *
+     * Example: 3.5.*, 3.6.*, 3.7.*, 3.8.*
+     *
+     * Test classes are selected with the {@link OSGiSpecIndex} on the test classpath, the test methods
+     * of the selected classes are selected by the {@link OSGiTestRunner} in the forked VM.
+     *
+     * @see OSGiSpecFilter
+     * @param sections
+     */
+    public void setSections(String sections) {
+        m_sections = sections;
+
+        Variable sectionsVar = new Variable();
+        sectionsVar.setKey(OSGiSpecFilter.PROP_SECTIONS);
+        sectionsVar.setValue(sections);
+
+        addConfiguredSysproperty(sectionsVar);
+    }
+
+    /**
+     * Sets how the outcome of the previous run (see {@link #setPreviousResults(File)}) is used:
+     * - all: run all tests in their normal order (default)
+     * - failedfirst: run all tests, the tests that failed or erred on a framework first
+     * - failedonly: only run the tests that failed or erred on a framework, and merge their results into the
+     *   previous results
+     *
+     * @param mode
+     */
+    public void setRerun(RerunMode mode) {
+        m_rerunMode = mode.getValue();
+    }
+
+    /**
+     * Sets the directory with the result files of the previous run, usually the todir of the batchtest.
+     *
+     * @param previousResultsDir
+     */
+    public void setPreviousResults(File previousResultsDir) {
+        m_previousResultsDir = previousResultsDir;
+    }
+
+    /**
+     * Sets the maximum number of seconds a test method may take on a single framework. When it takes longer,
+     * the test fails with a dump of the test container, and the container is killed.
+     *
+     * @see TestWatchdog
+     * @param seconds
+     */
+    public void setTestTimeout(int seconds) {
+        Variable testTimeoutVar = new Variable();
+        testTimeoutVar.setKey(TestWatchdog.PROP_TEST_TIMEOUT);
+        testTimeoutVar.setValue(Integer.toString(seconds));
+
+        addConfiguredSysproperty(testTimeoutVar);
+    }
+
+    /**
+     * Sets the maximum number of seconds a single phase of a test method (eg. starting the container or
+     * calling the test) may take.
+     *
+     * @see TestWatchdog
+     * @param seconds
+     */
+    public void setPhaseTimeout(int seconds) {
+        Variable phaseTimeoutVar = new Variable();
+        phaseTimeoutVar.setKey(TestWatchdog.PROP_PHASE_TIMEOUT);
+        phaseTimeoutVar.setValue(Integer.toString(seconds));
+
+        addConfiguredSysproperty(phaseTimeoutVar);
+    }
+
+    /**
+     * Sets the number of consecutive failed container starts after which the remaining tests on a framework
+     * are skipped (default 1).
+     *
+     * @see FrameworkBootFailures
+     * @param attempts
+     */
+    public void setBootAttempts(int attempts) {
+        Variable bootAttemptsVar = new Variable();
+        bootAttemptsVar.setKey(FrameworkBootFailures.PROP_BOOT_ATTEMPTS);
+        bootAttemptsVar.setValue(Integer.toString(attempts));
+
+        addConfiguredSysproperty(bootAttemptsVar);
+    }
+
 //    /**
 //     * Sets the location of a jar file that should be included in the testbundle created by Pax Exam.
 //     *
@@ -156,6 +408,31 @@ public class OSGiTestTask extends JUnitTask {
         throw new BuildException("Fork attribute doesn't accept a custom value. Default is true.", getLocation());
     }
 
+    /**
+     * Sets the directory of the prebuilt fixture library (build/fixtures of the framework), so tests can install
+     * fixtures by name. Defaults to the library packaged in the framework jar, extracted for the run.
+     *
+     * @see FixtureLibrary
+     * @param fixtureDir
+     */
+    public void setFixtureDir(File fixtureDir) {
+        m_fixtureDir = fixtureDir;
+    }
+
+    /**
+     * Installs the jars of the nested testDependency elements as bundles in the testcontainer, instead of embedding
+     * them in every testbundle. Jars that aren't a bundle are wrapped.
+     *
+     * @param sharedDependencies
+     */
+    public void setSharedDependencies(boolean sharedDependencies) {
+        Variable sharedDependenciesVar = new Variable();
+        sharedDependenciesVar.setKey(TestBase.PROP_SHARED_TEST_DEPENDENCIES);
+        sharedDependenciesVar.setValue(Boolean.toString(sharedDependencies));
+
+        addConfiguredSysproperty(sharedDependenciesVar);
+    }
+
     public TestDependency createTestDependency() {
         TestDependency dependency = new TestDependency();
         m_testDependencies.add(dependency);
@@ -168,8 +445,398 @@ public class OSGiTestTask extends JUnitTask {
     @Override
     public void execute() {
         initTestDependencyConfig();
+        initClassDataSharing();
+
+        /*
+         * An embedded framework runs in the forked VM of the testsuite, so the -ea the tests rely on
+         * has to be set on that VM.
+         */
+        if (TestBase.CONTAINER_EMBEDDED.equals(m_container)) {
+            createJvmarg().setValue("-ea");
+        }
+
+        /*
+         * Testsuites may run in separate forked VMs, the run id ties them together in the history.
+         */
+        String runId = Long.toString(System.currentTimeMillis());
+        Variable runIdVar = new Variable();
+        runIdVar.setKey(ResultHistory.PROP_RUN_ID);
+        runIdVar.setValue(runId);
+        addConfiguredSysproperty(runIdVar);
+
+        m_specIndex = loadSpecIndex();
+        if ((m_specVersion != null) || (m_sections != null)) {
+            m_specFilter = new OSGiSpecFilter(m_specVersion, m_sections);
+            log("Only running tests covering " + m_specFilter);
+        }
+        logCoverage();
+
+        if (!RerunMode.ALL.equals(m_rerunMode)) {
+            initRerun();
+            if (RerunMode.FAILED_ONLY.equals(m_rerunMode) && m_previousResults.getFailed().isEmpty()) {
+                log("No tests failed in the previous run, nothing to rerun.");
+                return;
+            }
+        }
+
+        File extractedFixtureDir = initFixtureLibrary();
+        File bootFailuresDir = createBootFailuresDir();
+        try {
+            super.execute();
+        }
+        finally {
+            reportBootFailures(bootFailuresDir);
+            delete(TestMeasurements.getExchangeDir(runId));
+            if (extractedFixtureDir != null) {
+                delete(extractedFixtureDir);
+            }
+        }
+
+        mergeRerunResults();
+    }
+
+    /**
+     * Passes the fixture library to the forked VMs. Without a fixtureDir the library packaged in the framework jar is
+     * extracted to a temporary directory, which is returned so it can be removed after the run.
+     *
+     * @return The extracted fixture directory, null if fixtureDir is set or there is no packaged library.
+     */
+    private File initFixtureLibrary() throws BuildException {
+        File dir = m_fixtureDir;
+        File extractedDir = null;
+        if (dir == null) {
+            try {
+                extractedDir = File.createTempFile("osgitest-fixtures", "");
+                extractedDir.delete();
+                if (!FixtureLibrary.extract(OSGiTestTask.class.getClassLoader(), extractedDir)) {
+                    log("No packaged fixture library found, tests can't install fixtures by name.", Project.MSG_VERBOSE);
+                    delete(extractedDir);
+                    return null;
+                }
+            }
+            catch (IOException e) {
+                throw new BuildException("Unable to extract the packaged fixture library", e, getLocation());
+            }
+            dir = extractedDir;
+        }
+
+        Variable fixtureDirVar = new Variable();
+        fixtureDirVar.setKey(FixtureLibrary.PROP_FIXTURE_DIR);
+        fixtureDirVar.setValue(dir.getAbsolutePath());
+        addConfiguredSysproperty(fixtureDirVar);
+        return extractedDir;
+    }
+
+    /**
+     * Removes a file, or a directory with its contents, such as the files the test containers and watchdogs of a
+     * run exchanged.
+     */
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Passes the class data sharing archive to the forked VMs that run the testsuites. In a training run
+     * the old archives are removed first, the VMs of this run create new ones.
+     *
+     * @see ClassDataSharing
+     */
+    private void initClassDataSharing() throws BuildException {
+        if (m_cdsDir == null) {
+            return;
+        }
+        if (m_cdsTraining) {
+            if (!m_cdsDir.isDirectory() && !m_cdsDir.mkdirs()) {
+                throw new BuildException("Unable to create class data sharing dir " + m_cdsDir, getLocation());
+            }
+            ClassDataSharing.clear(m_cdsDir);
+            log("Training run, class data sharing archives are created in " + m_cdsDir);
+        }
+
+        m_cdsArguments = new Commandline.Argument[] {createJvmarg(), createJvmarg()};
+        updateClassDataSharing();
+    }
+
+    /**
+     * Sets the class data sharing arguments of the next forked VM. In a training run the runner archive is only
+     * created by the first VM, the ones after it use the archive once it exists.
+     */
+    private void updateClassDataSharing() {
+        if (m_cdsArguments == null) {
+            return;
+        }
+        String[] arguments = ClassDataSharing.getVmArguments(new File(m_cdsDir, ClassDataSharing.RUNNER_ARCHIVE), m_cdsTraining);
+        for (int i = 0; i < m_cdsArguments.length; i++) {
+            if (i < arguments.length) {
+                m_cdsArguments[i].setValue(arguments[i]);
+            }
+            else {
+                m_cdsArguments[i].setLine("");
+            }
+        }
+    }
+
+    @Override
+    protected void execute(JUnitTest test) throws BuildException {
+        updateClassDataSharing();
+        super.execute(test);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected void execute(List tests) throws BuildException {
+        updateClassDataSharing();
+        super.execute(tests);
+    }
 
-        super.execute();
+    /**
+     * Creates the directory the forked VMs share boot failures in, so the tests on a framework that failed
+     * to boot are skipped for the rest of the run.
+     *
+     * @see FrameworkBootFailures
+     */
+    private File createBootFailuresDir() throws BuildException {
+        try {
+            File dir = File.createTempFile("osgitest-boot-failures", "");
+            dir.delete();
+            dir.mkdirs();
+
+            Variable bootFailuresVar = new Variable();
+            bootFailuresVar.setKey(FrameworkBootFailures.PROP_BOOT_FAILURES_DIR);
+            bootFailuresVar.setValue(dir.getAbsolutePath());
+            addConfiguredSysproperty(bootFailuresVar);
+            return dir;
+        }
+        catch (IOException e) {
+            throw new BuildException(e, getLocation());
+        }
+    }
+
+    /**
+     * Logs the frameworks that failed to boot during the run and removes the boot failures directory.
+     */
+    private void reportBootFailures(File dir) {
+        File[] failures = dir.listFiles();
+        if (failures != null) {
+            for (File failure : failures) {
+                if (!failure.getName().endsWith(FrameworkBootFailures.FILE_EXTENSION)) {
+                    failure.delete();
+                    continue;
+                }
+                try {
+                    BufferedReader in = new BufferedReader(new FileReader(failure));
+                    try {
+                        log(in.readLine() + " the remaining tests on this framework were skipped.", Project.MSG_WARN);
+                    }
+                    finally {
+                        in.close();
+                    }
+                }
+                catch (IOException ignore) { }
+                failure.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Reads the failed tests of the previous run and passes them to the forked VMs.
+     *
+     * @throws BuildException
+     */
+    private void initRerun() throws BuildException {
+        if ((m_previousResultsDir == null) || !m_previousResultsDir.isDirectory()) {
+            throw new BuildException("Rerun mode " + m_rerunMode + " needs the previousResults directory.", getLocation());
+        }
+
+        try {
+            m_previousResults = PreviousResults.read(m_previousResultsDir);
+
+            File failedFile = File.createTempFile("osgitest-failed-tests", ".conf");
+            failedFile.deleteOnExit();
+            BufferedWriter failedWriter = new BufferedWriter(new FileWriter(failedFile));
+            try {
+                for (String failed : m_previousResults.getFailed()) {
+                    failedWriter.write(failed + "\n");
+                }
+            }
+            finally {
+                failedWriter.close();
+            }
+
+            Variable rerunModeVar = new Variable();
+            rerunModeVar.setKey(RerunFilter.PROP_RERUN_MODE);
+            rerunModeVar.setValue(m_rerunMode);
+            addConfiguredSysproperty(rerunModeVar);
+
+            Variable rerunFileVar = new Variable();
+            rerunFileVar.setKey(RerunFilter.PROP_RERUN_FILE);
+            rerunFileVar.setValue(failedFile.getAbsolutePath());
+            addConfiguredSysproperty(rerunFileVar);
+        }
+        catch (IOException e) {
+            throw new BuildException(e, getLocation());
+        }
+        log(m_previousResults.getFailed().size() + " tests failed in the previous run");
+    }
+
+    /**
+     * Merges the results of the tests that were rerun into the previous results, so these stay complete.
+     */
+    private void mergeRerunResults() {
+        for (Map.Entry<JUnitTest, File> rerun : m_rerunTests.entrySet()) {
+            JUnitTest test = rerun.getKey();
+            File previous = m_previousResults.getFile(test.getName());
+            File result = getProject().resolveFile((test.getTodir() == null ? "" : test.getTodir() + File.separator)
+                + test.getOutfile() + FORMATTER_EXTENSION);
+            if (!result.isFile()) {
+                log("No results of " + test.getName() + " to merge.", Project.MSG_WARN);
+                continue;
+            }
+
+            try {
+                PreviousResults.merge(rerun.getValue(), result, previous);
+                if (!result.getCanonicalFile().equals(previous.getCanonicalFile())) {
+                    log("Merged " + result + " into " + previous, Project.MSG_VERBOSE);
+                }
+            }
+            catch (IOException e) {
+                log("Unable to merge the results of " + test.getName() + ": " + e.getMessage(), Project.MSG_WARN);
+            }
+            finally {
+                rerun.getValue().delete();
+            }
+        }
+        m_rerunTests.clear();
+    }
+
+    /**
+     * Leaves out the test classes that don't have any test method matching the {@link OSGiSpecFilter}.
+     * Classes that aren't in the {@link OSGiSpecIndex} are always run, the {@link OSGiTestRunner} selects
+     * their methods.
+     *
+     * In the failedfirst and failedonly rerun modes, the classes with failed tests are run first or only.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected Collection executeOrQueue(Enumeration tests, boolean runIndividual) {
+        if ((m_specFilter == null) && (m_previousResults == null)) {
+            return super.executeOrQueue(tests, runIndividual);
+        }
+
+        Vector<JUnitTest> failed = new Vector<JUnitTest>();
+        Vector<JUnitTest> others = new Vector<JUnitTest>();
+        while (tests.hasMoreElements()) {
+            JUnitTest test = (JUnitTest) tests.nextElement();
+            if (!isSelected(test.getName())) {
+                log("Skipping " + test.getName() + ", it doesn't cover " + m_specFilter, Project.MSG_VERBOSE);
+            }
+            else if ((m_previousResults != null) && m_previousResults.getFailedClasses().contains(test.getName())) {
+                failed.add(test);
+            }
+            else if (!RerunMode.FAILED_ONLY.equals(m_rerunMode)) {
+                others.add(test);
+            }
+        }
+
+        if (RerunMode.FAILED_ONLY.equals(m_rerunMode)) {
+            saveRerunResults(failed);
+        }
+
+        Vector<JUnitTest> selected = new Vector<JUnitTest>(failed);
+        selected.addAll(others);
+        return super.executeOrQueue(selected.elements(), runIndividual);
+    }
+
+    /**
+     * Copies the previous result files of the tests that are about to be rerun, since the rerun may
+     * overwrite them.
+     */
+    private void saveRerunResults(Vector<JUnitTest> tests) {
+        for (JUnitTest test : tests) {
+            File previous = m_previousResults.getFile(test.getName());
+            if (previous == null) {
+                continue;
+            }
+            try {
+                File copy = File.createTempFile("osgitest-previous-results", FORMATTER_EXTENSION);
+                copy.deleteOnExit();
+                FileUtils.getFileUtils().copyFile(previous, copy);
+                m_rerunTests.put(test, copy);
+            }
+            catch (IOException e) {
+                log("Unable to save the previous results of " + test.getName() + ", they won't be merged: " + e.getMessage(), Project.MSG_WARN);
+            }
+        }
+    }
+
+    private boolean isSelected(String className) {
+        if ((m_specFilter == null) || (m_specIndex == null) || !m_specIndex.containsClass(className)) {
+            return true;
+        }
+        for (String method : m_specIndex.getMethods(className)) {
+            if (m_specFilter.matches(m_specIndex.getSpecs(className, method))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Logs the OSGi specification sections covered by the tests that are about to run, as found in the
+     * {@link OSGiSpecIndex} on the test classpath.
+     */
+    private void logCoverage() {
+        if (m_specIndex == null) {
+            return;
+        }
+
+        Set<String> classNames = new HashSet<String>();
+        for (Enumeration<?> tests = allTests(); tests.hasMoreElements(); ) {
+            String className = ((JUnitTest) tests.nextElement()).getName();
+            if (isSelected(className)) {
+                classNames.add(className);
+            }
+        }
+
+        Map<String, Set<String>> coverage = m_specIndex.getCoverage(classNames);
+        if (coverage.isEmpty()) {
+            log("No OSGi specification index found for the tests, coverage is known after the run.", Project.MSG_VERBOSE);
+        }
+        for (Map.Entry<String, Set<String>> version : coverage.entrySet()) {
+            log("Covering " + version.getValue().size() + " sections of OSGi " + version.getKey());
+            log("Sections of OSGi " + version.getKey() + ": " + version.getValue(), Project.MSG_VERBOSE);
+        }
+    }
+
+    /**
+     * Loads the {@link OSGiSpecIndex} from the classpath of the tests.
+     *
+     * @return The index, or null if it can't be read.
+     */
+    private OSGiSpecIndex loadSpecIndex() {
+        Path classpath = getCommandline().getClasspath();
+        if (classpath == null) {
+            return null;
+        }
+
+        AntClassLoader loader = getProject().createClassLoader(classpath);
+        try {
+            return OSGiSpecIndex.load(loader);
+        }
+        catch (IOException e) {
+            log("Unable to read the OSGi specification index: " + e.getMessage(), Project.MSG_WARN);
+            return null;
+        }
+        finally {
+            loader.cleanup();
+        }
     }
 
     /**
@@ -216,6 +883,27 @@ public class OSGiTestTask extends JUnitTask {
         }
     }
 
+    /**
+     * The values of the rerun attribute.
+     */
+    public static class RerunMode extends EnumeratedAttribute {
+        public static final String ALL = "all";
+        public static final String FAILED_FIRST = RerunFilter.MODE_FAILED_FIRST;
+        public static final String FAILED_ONLY = RerunFilter.MODE_FAILED_ONLY;
+
+        @Override
+        public String[] getValues() {
+            return new String[] {ALL, FAILED_FIRST, FAILED_ONLY};
+        }
+    }
+
+    public static class Container extends EnumeratedAttribute {
+        @Override
+        public String[] getValues() {
+            return new String[] {TestBase.CONTAINER_REMOTE, TestBase.CONTAINER_EMBEDDED};
+        }
+    }
+
     public class TestDependency {
         private final Vector<FileSet> m_dependecies = new Vector<FileSet>();
 
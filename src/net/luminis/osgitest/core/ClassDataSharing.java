@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.container.def.PaxRunnerOptions;
+
+/**
+ * Selects the AppCDS (Class Data Sharing) archives the test VMs are started with, so they don't have to load and
+ * verify the classes on their classpath from scratch every time: Pax Runner and the framework for the test containers,
+ * Ant, JUnit and Pax Exam for the forked VMs. The classes of bundles (eg. the compendium bundles) are defined by the
+ * class loaders of the framework and can't be archived, they are still loaded normally.
+ *
+ * The archives are stored in the directory named by the system property {@link #PROP_CDS_DIR}: one archive per
+ * framework vendor/version for the test containers (eg: felix-1.8.0.jsa), and {@link #RUNNER_ARCHIVE} for the forked
+ * VMs that run the testsuites. If an archive doesn't exist yet and {@link #PROP_CDS_TRAINING} is set, the first VM
+ * that needs it creates it when it exits; the other VMs of the run that are started before it exists run without
+ * the archive, so it's only written once. This is a training run; later runs share the archived classes.
+ *
+ * Creating and using these dynamic archives requires a Java 13 or later VM. The archives are only valid for the VM
+ * that created them and for the same classpath, so they should be regenerated after upgrading either one. A VM that
+ * can't map an archive falls back to loading the classes normally (-Xshare:auto).
+ */
+public class ClassDataSharing {
+
+    /**
+     * Directory where the class data sharing archives are stored. No archives are used if it isn't set.
+     */
+    public static final String PROP_CDS_DIR = "net.luminis.osgitest.cds.dir";
+    /**
+     * When "true", archives that don't exist yet are created by the VMs that need them.
+     */
+    public static final String PROP_CDS_TRAINING = "net.luminis.osgitest.cds.training";
+
+    /**
+     * Name of the archive of the forked VMs that run the testsuites.
+     */
+    public static final String RUNNER_ARCHIVE = "osgitest-runner.jsa";
+
+    private static final String FILE_EXTENSION = ".jsa";
+    /**
+     * Extension of the file that marks an archive as being created by a VM of the training run.
+     */
+    private static final String TRAINING_EXTENSION = ".training";
+
+    /**
+     * Helper class. Not necessary to create an instance.
+     */
+    private ClassDataSharing() { }
+
+    /**
+     * Returns the VM options that make a test container use (or create) the archive of a framework.
+     *
+     * @param framework The framework vendor and version (eg: felix/1.8.0)
+     * @return The VM options, empty if no archive directory is set or no archive has to be used.
+     */
+    public static Option[] getContainerVmOptions(String framework) {
+        String dir = System.getProperty(PROP_CDS_DIR);
+        if (dir == null) {
+            return new Option[0];
+        }
+
+        List<Option> options = new ArrayList<Option>();
+        for (String argument : getVmArguments(getArchive(new File(dir), framework), Boolean.getBoolean(PROP_CDS_TRAINING))) {
+            options.add(PaxRunnerOptions.vmOption(argument));
+        }
+        return options.toArray(new Option[options.size()]);
+    }
+
+    /**
+     * Returns the archive of a framework in an archive directory.
+     *
+     * @param dir The archive directory.
+     * @param framework The framework vendor and version (eg: felix/1.8.0)
+     * @return
+     */
+    public static File getArchive(File dir, String framework) {
+        return new File(dir, framework.replace('/', '-').replaceAll("[^a-zA-Z0-9._-]", "_") + FILE_EXTENSION);
+    }
+
+    /**
+     * Returns the VM arguments that make a VM use an archive, or create it if it doesn't exist yet
+     * and this is a training run. Only the first VM that asks for a missing archive creates it.
+     *
+     * @param archive The archive file.
+     * @param training Whether missing archives should be created.
+     * @return The VM arguments, empty if the archive doesn't exist and this isn't a training run or another
+     *     VM is already creating it.
+     */
+    public static String[] getVmArguments(File archive, boolean training) {
+        if (archive.isFile()) {
+            return new String[] {"-XX:SharedArchiveFile=" + archive.getAbsolutePath(), "-Xshare:auto"};
+        }
+        if (training && claim(archive)) {
+            return new String[] {"-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath()};
+        }
+        return new String[0];
+    }
+
+    /**
+     * Removes the archives and training marks in an archive directory, before a training run.
+     *
+     * @param dir The archive directory.
+     */
+    public static void clear(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_EXTENSION) || file.getName().endsWith(FILE_EXTENSION + TRAINING_EXTENSION)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks an archive as being created by this VM.
+     *
+     * @return false if another VM of the training run already creates the archive.
+     */
+    private static boolean claim(File archive) {
+        try {
+            archive.getParentFile().mkdirs();
+            return new File(archive.getParentFile(), archive.getName() + TRAINING_EXTENSION).createNewFile();
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.pax.runner.EmbeddedRun;
+import org.ops4j.pax.runner.platform.BundleReference;
+
+/**
+ * A framework started in the VM of the test runner through the OSGi launching API, as an alternative for the
+ * framework Pax Runner starts in a separate VM. Calls to the framework are plain method calls instead of RMI
+ * round-trips.
+ *
+ * The framework is loaded by its own class loader, which only delegates to the boot and extension class loaders,
+ * so it doesn't see the Pax Exam, Pax Runner and JUnit classes of the test runner. All calls into the framework
+ * are therefore made through reflection, and services are handed out as proxies of the runner side interface.
+ *
+ * Only frameworks that implement the launching API of OSGi R4.2 (eg: Felix 2.x, Equinox 3.5) can be embedded.
+ */
+public class EmbeddedFramework {
+
+    private static final Log LOG = LogFactory.getLog(EmbeddedFramework.class);
+
+    private static final String FRAMEWORK_FACTORY = "org.osgi.framework.launch.FrameworkFactory";
+    private static final String FRAMEWORK = "org.osgi.framework.launch.Framework";
+    private static final String BUNDLE = "org.osgi.framework.Bundle";
+    private static final String BUNDLE_CONTEXT = "org.osgi.framework.BundleContext";
+    private static final String START_LEVEL = "org.osgi.service.startlevel.StartLevel";
+
+    private static final String STORAGE = "org.osgi.framework.storage";
+    private static final String STORAGE_CLEAN = "org.osgi.framework.storage.clean";
+    private static final String BEGINNING_START_LEVEL = "org.osgi.framework.startlevel.beginning";
+
+    private static final long POLL_INTERVAL = 50;
+
+    private final ClassLoader m_loader;
+    private final Object m_framework;
+    private Object m_context;
+
+    private EmbeddedFramework(ClassLoader loader, Object framework) {
+        m_loader = loader;
+        m_framework = framework;
+    }
+
+    /**
+     * Starts the framework Pax Runner prepared, and provisions the bundles it resolved.
+     *
+     * @param platform The platform prepared by Pax Runner.
+     * @param minimumStartLevel The lowest start level the framework should reach (eg. the start level of the probe).
+     * @return The started framework.
+     */
+    public static EmbeddedFramework launch(EmbeddedRun.Capture platform, int minimumStartLevel) {
+        List<BundleReference> bundles = new ArrayList<BundleReference>(platform.getBundles());
+        Collections.sort(bundles, new Comparator<BundleReference>() {
+            public int compare(BundleReference b1, BundleReference b2) {
+                return getStartLevel(b1) - getStartLevel(b2);
+            }
+        });
+
+        int startLevel = minimumStartLevel;
+        for (BundleReference bundle : bundles) {
+            startLevel = Math.max(startLevel, getStartLevel(bundle));
+        }
+
+        Map<String, String> config = getConfiguration(platform);
+        config.put(STORAGE, new File(platform.getWorkingDirectory(), "embedded-cache").getAbsolutePath());
+        config.put(STORAGE_CLEAN, "onFirstInit");
+        if (!config.containsKey(BEGINNING_START_LEVEL)) {
+            config.put(BEGINNING_START_LEVEL, Integer.toString(startLevel));
+        }
+
+        ClassLoader loader = createClassLoader(platform.getClasspath(), platform.getWorkingDirectory());
+        Thread current = Thread.currentThread();
+        ClassLoader contextLoader = current.getContextClassLoader();
+        current.setContextClassLoader(loader);
+        try {
+            Object factory = loader.loadClass(getFactoryClassName(loader)).getConstructor().newInstance();
+            Object framework = loader.loadClass(FRAMEWORK_FACTORY).getMethod("newFramework", Map.class).invoke(factory, config);
+
+            EmbeddedFramework embedded = new EmbeddedFramework(loader, framework);
+            embedded.call(framework, FRAMEWORK, "start");
+            embedded.m_context = embedded.call(framework, BUNDLE, "getBundleContext");
+            embedded.provision(bundles);
+            return embedded;
+        }
+        catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to start the embedded framework.", e.getCause());
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to start the embedded framework.", e);
+        }
+        finally {
+            current.setContextClassLoader(contextLoader);
+        }
+    }
+
+    /**
+     * Installs a bundle.
+     *
+     * @param location The location of the bundle.
+     * @param in The contents of the bundle, closed by this method.
+     * @return The id of the installed bundle.
+     */
+    public long installBundle(String location, InputStream in) {
+        try {
+            Object bundle = call(m_context, BUNDLE_CONTEXT, "installBundle", new Class<?>[] {String.class, InputStream.class}, location, in);
+            return ((Long) call(bundle, BUNDLE, "getBundleId")).longValue();
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (IOException ignore) { }
+        }
+    }
+
+    /**
+     * Starts a bundle.
+     *
+     * @param bundleId
+     */
+    public void startBundle(long bundleId) {
+        call(getBundle(bundleId), BUNDLE, "start");
+    }
+
+    /**
+     * Sets the start level of a bundle.
+     *
+     * @param bundleId
+     * @param startLevel
+     */
+    public void setBundleStartLevel(long bundleId, int startLevel) {
+        Object reference = call(m_context, BUNDLE_CONTEXT, "getServiceReference", new Class<?>[] {String.class}, START_LEVEL);
+        if (reference == null) {
+            throw new IllegalStateException("The embedded framework doesn't provide the StartLevel service.");
+        }
+        Object service = call(m_context, BUNDLE_CONTEXT, "getService", new Class<?>[] {loadClass("org.osgi.framework.ServiceReference")}, reference);
+        call(service, START_LEVEL, "setBundleStartLevel", new Class<?>[] {loadClass(BUNDLE), int.class}, getBundle(bundleId), Integer.valueOf(startLevel));
+    }
+
+    /**
+     * Returns the state of a bundle.
+     *
+     * @param bundleId
+     * @return The state (see {@link org.osgi.framework.Bundle#getState()}), or -1 if the bundle doesn't exist.
+     */
+    public int getBundleState(long bundleId) {
+        Object bundle = call(m_context, BUNDLE_CONTEXT, "getBundle", new Class<?>[] {long.class}, Long.valueOf(bundleId));
+        return bundle == null ? -1 : ((Integer) call(bundle, BUNDLE, "getState")).intValue();
+    }
+
+    /**
+     * Waits for a service and returns it as a proxy of the given interface. The methods of the interface may
+     * only have parameters of types that are shared with the framework (eg: java.*).
+     *
+     * @param type The interface of the service, as loaded by the test runner.
+     * @param timeout The number of milliseconds to wait for the service.
+     * @return The proxy, or null if the service didn't show up in time.
+     */
+    public <T> T getService(final Class<T> type, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        Object reference = call(m_context, BUNDLE_CONTEXT, "getServiceReference", new Class<?>[] {String.class}, type.getName());
+        while ((reference == null) && (System.currentTimeMillis() < deadline)) {
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            reference = call(m_context, BUNDLE_CONTEXT, "getServiceReference", new Class<?>[] {String.class}, type.getName());
+        }
+        if (reference == null) {
+            return null;
+        }
+
+        final Object service = call(m_context, BUNDLE_CONTEXT, "getService", new Class<?>[] {loadClass("org.osgi.framework.ServiceReference")}, reference);
+        final Class<?> serviceType;
+        try {
+            serviceType = service.getClass().getClassLoader().loadClass(type.getName());
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Service " + service + " doesn't implement " + type.getName(), e);
+        }
+
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                try {
+                    return serviceType.getMethod(method.getName(), method.getParameterTypes()).invoke(service, args);
+                }
+                catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Stops the framework and waits until it's stopped.
+     *
+     * @param timeout The number of milliseconds to wait.
+     */
+    public void stop(long timeout) {
+        call(m_framework, BUNDLE, "stop");
+        call(m_framework, FRAMEWORK, "waitForStop", new Class<?>[] {long.class}, Long.valueOf(timeout));
+    }
+
+    /**
+     * Installs the bundles (in order of start level) and starts the ones that should be started.
+     */
+    private void provision(List<BundleReference> bundles) throws IOException {
+        List<Long> toStart = new ArrayList<Long>();
+        for (BundleReference bundle : bundles) {
+            long bundleId = installBundle(bundle.getURL().toExternalForm(), bundle.getURL().openStream());
+            if (bundle.getStartLevel() != null) {
+                setBundleStartLevel(bundleId, bundle.getStartLevel().intValue());
+            }
+            if (!Boolean.FALSE.equals(bundle.shouldStart())) {
+                toStart.add(Long.valueOf(bundleId));
+            }
+        }
+        for (Long bundleId : toStart) {
+            startBundle(bundleId.longValue());
+        }
+    }
+
+    private Object getBundle(long bundleId) {
+        Object bundle = call(m_context, BUNDLE_CONTEXT, "getBundle", new Class<?>[] {long.class}, Long.valueOf(bundleId));
+        if (bundle == null) {
+            throw new IllegalArgumentException("No bundle with id " + bundleId);
+        }
+        return bundle;
+    }
+
+    private Object call(Object target, String type, String method) {
+        return call(target, type, method, new Class<?>[0]);
+    }
+
+    /**
+     * Calls a method of an OSGi API type on an object of the framework. The method is looked up on the API type
+     * (as loaded by the framework), the implementation classes may not be accessible.
+     */
+    private Object call(Object target, String type, String method, Class<?>[] parameterTypes, Object... args) {
+        try {
+            return loadClass(type).getMethod(method, parameterTypes).invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(type + "." + method + " failed in the embedded framework.", cause);
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Class<?> loadClass(String name) {
+        try {
+            return m_loader.loadClass(name);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The framework configuration is passed to the framework VM as -D options. Some frameworks get it as a
+     * properties file (eg. felix.config.properties), which their launcher would read; the launching API doesn't,
+     * so these files are read here.
+     *
+     * The other VM options (eg. the paxVmOption(s) of the test task) can't be applied to a VM that is already
+     * running, they are logged and ignored. The exception is -ea: the tests rely on assertions, so the framework
+     * isn't started in a VM that runs without them.
+     */
+    private static Map<String, String> getConfiguration(EmbeddedRun.Capture platform) {
+        Map<String, String> config = new HashMap<String, String>();
+        for (Map.Entry<Object, Object> entry : platform.getSystemProperties().entrySet()) {
+            config.put(entry.getKey().toString(), entry.getValue().toString());
+        }
+        for (String option : platform.getVmOptions()) {
+            int is = option.indexOf('=');
+            if (option.startsWith("-D") && (is > 2)) {
+                String key = option.substring(2, is);
+                String value = option.substring(is + 1);
+                if (key.endsWith("config.properties")) {
+                    putAll(config, value, platform.getWorkingDirectory());
+                }
+                config.put(key, value);
+            }
+            else if ("-ea".equals(option) || "-enableassertions".equals(option)) {
+                if (!assertionsEnabled()) {
+                    throw new IllegalStateException("The embedded framework needs assertions, but the VM of the "
+                        + "testsuite runs without them. Start it with -ea.");
+                }
+            }
+            else {
+                LOG.warn("VM option " + option + " can't be applied to the embedded framework, it is ignored.");
+            }
+        }
+        return config;
+    }
+
+    private static boolean assertionsEnabled() {
+        boolean enabled = false;
+        assert enabled = true;
+        return enabled;
+    }
+
+    /**
+     * Reads a framework configuration file. Pax Runner may name it relative to the working directory of the
+     * framework VM (eg. file:felix/config.ini), which isn't the working directory of this VM.
+     */
+    private static void putAll(Map<String, String> config, String url, File workingDirectory) {
+        try {
+            Properties properties = new Properties();
+            InputStream in = new URL(workingDirectory.getAbsoluteFile().toURI().toURL(), url).openStream();
+            try {
+                properties.load(in);
+            }
+            finally {
+                in.close();
+            }
+            for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+                if (!config.containsKey(entry.getKey().toString())) {
+                    config.put(entry.getKey().toString(), entry.getValue().toString());
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Unable to read framework configuration " + url, e);
+        }
+    }
+
+    /**
+     * Creates the class loader of the framework. Relative classpath entries are relative to the working directory
+     * of the framework VM.
+     */
+    private static ClassLoader createClassLoader(String[] classpath, File workingDirectory) {
+        try {
+            URL[] urls = new URL[classpath.length];
+            for (int i = 0; i < classpath.length; i++) {
+                File file = new File(classpath[i]);
+                if (!file.isAbsolute()) {
+                    file = new File(workingDirectory, classpath[i]);
+                }
+                urls[i] = file.toURI().toURL();
+            }
+            return new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the name of the FrameworkFactory implementation from the service file of the launching API.
+     */
+    private static String getFactoryClassName(ClassLoader loader) throws IOException {
+        URL services = loader.getResource("META-INF/services/" + FRAMEWORK_FACTORY);
+        if (services != null) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(services.openStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if ((line.length() > 0) && !line.startsWith("#")) {
+                        return line;
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        throw new IllegalStateException("The framework doesn't implement the OSGi launching API, "
+            + "it can only be tested in a separate VM.");
+    }
+
+    private static int getStartLevel(BundleReference bundle) {
+        return bundle.getStartLevel() == null ? 1 : bundle.getStartLevel().intValue();
+    }
+}
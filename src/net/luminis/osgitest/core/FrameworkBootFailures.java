@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the frameworks that failed to boot, so the remaining tests for such a framework can fail
+ * immediately instead of spawning a test container and waiting for it to time out again.
+ *
+ * By default the first failed container start skips the framework. A failed start can have other causes (eg. a
+ * busy machine, or a port that is in use), so {@link #PROP_BOOT_ATTEMPTS} can allow more consecutive failed starts
+ * before a framework is skipped. A successful start resets the count.
+ *
+ * Within a VM the failures are kept in memory. Testsuites run in separate forked VMs, so the failures and the
+ * failed attempts are also written to the directory named by the system property {@link #PROP_BOOT_FAILURES_DIR},
+ * which the {@link net.luminis.osgitest.ant.OSGiTestTask} creates for every run.
+ */
+public class FrameworkBootFailures {
+
+    /**
+     * Directory where boot failures are shared between the test VMs of a run.
+     */
+    public static final String PROP_BOOT_FAILURES_DIR = "net.luminis.osgitest.bootfailures.dir";
+    /**
+     * Number of consecutive failed starts after which a framework is skipped for the rest of the run.
+     */
+    public static final String PROP_BOOT_ATTEMPTS = "net.luminis.osgitest.bootfailures.attempts";
+
+    private static final int DEFAULT_BOOT_ATTEMPTS = 1;
+
+    /**
+     * Extension of the files with the stack trace of a boot failure.
+     */
+    public static final String FILE_EXTENSION = ".failure";
+    private static final String ATTEMPTS_EXTENSION = ".attempts";
+
+    /**
+     * Stack traces of the boot failures, per framework.
+     */
+    private static final Map<String, String> s_failures = new HashMap<String, String>();
+    /**
+     * Consecutive failed starts, per framework.
+     */
+    private static final Map<String, Integer> s_attempts = new HashMap<String, Integer>();
+
+    /**
+     * Helper class. Not necessary to create an instance.
+     */
+    private FrameworkBootFailures() { }
+
+    /**
+     * Records a failed start of a framework. The framework counts as failed to boot once the number of
+     * consecutive failed starts reaches {@link #PROP_BOOT_ATTEMPTS}.
+     *
+     * @param framework The framework vendor and version (eg: felix/1.8.0)
+     * @param testName The name of the test that tried to boot the framework.
+     * @param failure The exception thrown while starting the test container.
+     * @return true if the framework is now skipped for the rest of the run.
+     */
+    public static boolean record(String framework, String testName, Throwable failure) {
+        int attempts;
+        synchronized (s_attempts) {
+            attempts = Math.max(getAttempts(framework), readAttempts(framework)) + 1;
+            s_attempts.put(framework, attempts);
+        }
+        if (attempts < getMaximumAttempts()) {
+            writeAttempts(framework, attempts);
+            return false;
+        }
+
+        StringWriter trace = new StringWriter();
+        PrintWriter writer = new PrintWriter(trace);
+        writer.println("Framework " + framework + " failed to boot in " + testName + ":");
+        failure.printStackTrace(writer);
+        writer.flush();
+
+        synchronized (s_failures) {
+            s_failures.put(framework, trace.toString());
+        }
+
+        File file = getFile(framework, FILE_EXTENSION);
+        if (file != null) {
+            OutputStream out = null;
+            try {
+                file.getParentFile().mkdirs();
+                out = new FileOutputStream(file);
+                out.write(trace.toString().getBytes("UTF-8"));
+            }
+            catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+            finally {
+                close(out);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records a successful start of a framework, which resets its count of consecutive failed starts.
+     *
+     * @param framework The framework vendor and version (eg: felix/1.8.0)
+     */
+    public static void succeeded(String framework) {
+        synchronized (s_attempts) {
+            s_attempts.remove(framework);
+        }
+        File file = getFile(framework, ATTEMPTS_EXTENSION);
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Throws a {@link FrameworkBootException} if a framework failed to boot earlier in this run.
+     *
+     * @param framework The framework vendor and version (eg: felix/1.8.0)
+     * @throws FrameworkBootException
+     */
+    public static void check(String framework) throws FrameworkBootException {
+        String failure = getFailure(framework);
+        if (failure != null) {
+            throw new FrameworkBootException(framework, failure);
+        }
+    }
+
+    /**
+     * Returns the stack trace of the boot failure of a framework.
+     *
+     * @param framework The framework vendor and version (eg: felix/1.8.0)
+     * @return The stack trace, or null if the framework didn't fail to boot.
+     */
+    public static String getFailure(String framework) {
+        synchronized (s_failures) {
+            String failure = s_failures.get(framework);
+            if (failure != null) {
+                return failure;
+            }
+        }
+
+        File file = getFile(framework, FILE_EXTENSION);
+        if ((file == null) || !file.isFile()) {
+            return null;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            String failure = new String(bytes, 0, read, "UTF-8");
+            synchronized (s_failures) {
+                s_failures.put(framework, failure);
+            }
+            return failure;
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            close(in);
+        }
+    }
+
+    private static int getAttempts(String framework) {
+        Integer attempts = s_attempts.get(framework);
+        return attempts == null ? 0 : attempts.intValue();
+    }
+
+    /**
+     * Reads the failed starts recorded by the other test VMs of the run.
+     */
+    private static int readAttempts(String framework) {
+        File file = getFile(framework, ATTEMPTS_EXTENSION);
+        if ((file == null) || !file.isFile()) {
+            return 0;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] bytes = new byte[16];
+            int read = in.read(bytes);
+            return read > 0 ? Integer.parseInt(new String(bytes, 0, read, "UTF-8").trim()) : 0;
+        }
+        catch (IOException e) {
+            return 0;
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+        finally {
+            close(in);
+        }
+    }
+
+    private static void writeAttempts(String framework, int attempts) {
+        File file = getFile(framework, ATTEMPTS_EXTENSION);
+        if (file == null) {
+            return;
+        }
+        OutputStream out = null;
+        try {
+            file.getParentFile().mkdirs();
+            out = new FileOutputStream(file);
+            out.write(Integer.toString(attempts).getBytes("UTF-8"));
+        }
+        catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        finally {
+            close(out);
+        }
+    }
+
+    private static int getMaximumAttempts() {
+        try {
+            return Math.max(1, Integer.parseInt(System.getProperty(PROP_BOOT_ATTEMPTS, "" + DEFAULT_BOOT_ATTEMPTS).trim()));
+        }
+        catch (NumberFormatException e) {
+            return DEFAULT_BOOT_ATTEMPTS;
+        }
+    }
+
+    private static File getFile(String framework, String extension) {
+        String dir = System.getProperty(PROP_BOOT_FAILURES_DIR);
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, framework.replaceAll("[^a-zA-Z0-9._-]", "_") + extension);
+    }
+
+    private static void close(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            }
+            catch (IOException ignore) { }
+        }
+    }
+
+    /**
+     * Thrown for a test on a framework that failed to boot earlier in the run. The stack trace of the
+     * original boot failure is included in the stack trace of this exception.
+     */
+    public static class FrameworkBootException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final String m_originalFailure;
+
+        public FrameworkBootException(String framework, String originalFailure) {
+            super("Skipped, framework " + framework + " failed to boot earlier in this run: " + getFirstLine(originalFailure));
+            m_originalFailure = originalFailure;
+        }
+
+        /**
+         * Returns the stack trace of the original boot failure.
+         *
+         * @return
+         */
+        public String getOriginalFailure() {
+            return m_originalFailure;
+        }
+
+        @Override
+        public void printStackTrace(PrintWriter writer) {
+            super.printStackTrace(writer);
+            writer.print(m_originalFailure);
+        }
+
+        @Override
+        public void printStackTrace(PrintStream stream) {
+            super.printStackTrace(stream);
+            stream.print(m_originalFailure);
+        }
+
+        private static String getFirstLine(String failure) {
+            String[] lines = failure.split("\n");
+            return lines.length > 1 ? lines[1].trim() : failure.trim();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.luminis.osgitest.testhelper.MicroBenchmark;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+/**
+ * Runs the iterations of a test method annotated with {@link MicroBenchmark}, on the host.
+ *
+ * Every iteration is a complete call of the test method in the test container, like the call that follows them
+ * and decides the outcome of the test: the {@link org.junit.Before} methods, the test method and the
+ * {@link org.junit.After} methods, after which the bundles the test installed are uninstalled. The time of an
+ * iteration is the test phase measured in the container (see {@link TestMeasurements#PHASE_TEST}).
+ *
+ * The iterations are stopped when the time budget of the benchmark is spent. An iteration is only started if the
+ * budget that is left is at least the time the slowest iteration so far took, and an iteration that is still
+ * running when the budget is spent fails the test.
+ */
+public class MicroBenchmarkRunner {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    /**
+     * Two-sided 99% quantiles of the Student t distribution for 1 to 30 degrees of freedom. Above that,
+     * the normal distribution is close enough.
+     */
+    private static final double[] T_99 = {63.657, 9.925, 5.841, 4.604, 4.032, 3.707, 3.499, 3.355, 3.250, 3.169,
+        3.106, 3.055, 3.012, 2.977, 2.947, 2.921, 2.898, 2.878, 2.861, 2.845,
+        2.831, 2.819, 2.807, 2.797, 2.787, 2.779, 2.771, 2.763, 2.756, 2.750};
+    private static final double Z_99 = 2.576;
+
+    private final String m_className;
+    private final String m_methodName;
+    private final MicroBenchmark m_settings;
+    /**
+     * The longest time an iteration took so far, including the calls to the container.
+     */
+    private volatile long m_slowest;
+
+    /**
+     * Creates a runner for a test method.
+     *
+     * @param className The name of the test class.
+     * @param methodName The name of the test method.
+     * @param settings The annotation of the test method.
+     */
+    public MicroBenchmarkRunner(String className, String methodName, MicroBenchmark settings) {
+        m_className = className;
+        m_methodName = methodName;
+        m_settings = settings;
+    }
+
+    /**
+     * Runs the warmup and measured iterations.
+     *
+     * @param iteration Calls the test method in the container once, and returns the time of the test phase in
+     *     nanoseconds.
+     * @return The results of the benchmark.
+     * @throws Exception The exception of a failing iteration, or an {@link AssertionError} if an iteration didn't
+     *     finish within the time budget.
+     */
+    public List<TestMeasurements.Result> run(final Callable<Long> iteration) throws Exception {
+        final long budget = m_settings.timeBudget();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+        FutureTask<long[]> future = new FutureTask<long[]>(new Callable<long[]>() {
+            public long[] call() throws Exception {
+                return iterate(iteration, deadline);
+            }
+        });
+        Thread thread = new Thread(future, "osgitest micro-benchmark " + m_methodName);
+        thread.setDaemon(true);
+        thread.start();
+
+        long[] samples;
+        try {
+            samples = future.get(budget, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            thread.interrupt();
+            throw new AssertionError(m_methodName + " didn't finish its iterations within the time budget of " + budget + " ms.");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+
+        TestMeasurements results = new TestMeasurements(m_className, m_methodName);
+        putResults(results, samples);
+        return results.getResults();
+    }
+
+    /**
+     * Runs the iterations that fit in the budget.
+     *
+     * @return The times of the measured iterations.
+     */
+    private long[] iterate(Callable<Long> iteration, long deadline) throws Exception {
+        for (int i = 0; (i < m_settings.warmupIterations()) && fits(deadline); i++) {
+            invoke(iteration);
+        }
+
+        long[] samples = new long[Math.max(0, m_settings.iterations())];
+        int count = 0;
+        while ((count < samples.length) && fits(deadline)) {
+            samples[count++] = invoke(iteration);
+        }
+        long[] measured = new long[count];
+        System.arraycopy(samples, 0, measured, 0, count);
+        return measured;
+    }
+
+    private boolean fits(long deadline) {
+        return System.nanoTime() + m_slowest < deadline;
+    }
+
+    /**
+     * Runs one iteration.
+     *
+     * @return The time of the test phase.
+     */
+    private long invoke(Callable<Long> iteration) throws Exception {
+        long start = System.nanoTime();
+        long time = iteration.call().longValue();
+        m_slowest = Math.max(m_slowest, System.nanoTime() - start);
+        return time;
+    }
+
+    private void putResults(TestMeasurements measurements, long[] samples) {
+        String series = m_methodName;
+        int operations = Math.max(1, m_settings.operationsPerInvocation());
+        String x = Integer.toString(operations);
+        if (samples.length == 0) {
+            measurements.putResult(series, x, "iterations", 0, TestMeasurements.UNIT_COUNT);
+            return;
+        }
+
+        Arrays.sort(samples);
+        double sum = 0;
+        for (long sample : samples) {
+            sum += sample;
+        }
+        double mean = sum / samples.length;
+        double squares = 0;
+        for (long sample : samples) {
+            squares += (sample - mean) * (sample - mean);
+        }
+        double error = 0;
+        if (samples.length > 1) {
+            int freedom = samples.length - 1;
+            double t = (freedom <= T_99.length) ? T_99[freedom - 1] : Z_99;
+            error = t * Math.sqrt(squares / freedom) / Math.sqrt(samples.length);
+        }
+
+        measurements.putResult(series, x, "mean", mean / operations, TestMeasurements.UNIT_NANOS);
+        measurements.putResult(series, x, "error", error / operations, TestMeasurements.UNIT_NANOS);
+        measurements.putResult(series, x, "min", (double) samples[0] / operations, TestMeasurements.UNIT_NANOS);
+        for (double percentile : PERCENTILES) {
+            int rank = (int) Math.ceil(samples.length * percentile / 100.0);
+            measurements.putResult(series, x, "p" + (int) percentile, (double) samples[Math.max(0, rank - 1)] / operations,
+                TestMeasurements.UNIT_NANOS);
+        }
+        measurements.putResult(series, x, "max", (double) samples[samples.length - 1] / operations, TestMeasurements.UNIT_NANOS);
+        measurements.putResult(series, x, "throughput", operations * NANOS_PER_SECOND / Math.max(1, mean),
+            TestMeasurements.UNIT_OPS_PER_SECOND);
+        measurements.putResult(series, x, "iterations", samples.length, TestMeasurements.UNIT_COUNT);
+    }
+}
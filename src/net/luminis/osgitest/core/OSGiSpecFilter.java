@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects tests by the OSGi specification sections they cover.
+ *
+ * A filter consists of an optional specification version and an optional list of section patterns. A pattern
+ * is either an exact section number (3.5), a section with all its subsections (3.5.*) or a plain prefix (3.*).
+ * A test matches if it covers a section matching one of the patterns in the given version (or in any version if
+ * no version is given).
+ *
+ * The filter is passed from the {@link net.luminis.osgitest.ant.OSGiTestTask} to the forked test VMs with the
+ * system properties {@link #PROP_SPEC_VERSION} and {@link #PROP_SECTIONS}.
+ */
+public class OSGiSpecFilter {
+
+    /**
+     * The OSGi specification version tests should cover (eg: 4.1)
+     */
+    public static final String PROP_SPEC_VERSION = "net.luminis.osgitest.filter.specversion";
+    /**
+     * Comma separated list of section patterns tests should cover (eg: 3.5.*, 3.6.*)
+     */
+    public static final String PROP_SECTIONS = "net.luminis.osgitest.filter.sections";
+
+    private static final String SUBSECTIONS_WILDCARD = ".*";
+    private static final String WILDCARD = "*";
+
+    private final String m_version;
+    private final List<String> m_patterns = new ArrayList<String>();
+
+    /**
+     * Creates a filter.
+     *
+     * @param version The specification version, or null for any version.
+     * @param sections Comma separated section patterns, or null for any section.
+     */
+    public OSGiSpecFilter(String version, String sections) {
+        m_version = isEmpty(version) ? null : version.trim();
+        if (!isEmpty(sections)) {
+            for (String pattern : sections.split(",")) {
+                if (pattern.trim().length() > 0) {
+                    m_patterns.add(pattern.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the filter passed in the system properties.
+     *
+     * @return The filter, or null if no filter is passed.
+     */
+    public static OSGiSpecFilter fromSystemProperties() {
+        String version = System.getProperty(PROP_SPEC_VERSION);
+        String sections = System.getProperty(PROP_SECTIONS);
+        if (isEmpty(version) && isEmpty(sections)) {
+            return null;
+        }
+        return new OSGiSpecFilter(version, sections);
+    }
+
+    /**
+     * Returns whether a test covering the given sections should run.
+     *
+     * @param specs Sections per OSGi version, as returned by {@link OSGiSpecIndex#getSpecs(String, String)}.
+     * @return
+     */
+    public boolean matches(Map<String, List<String>> specs) {
+        for (Map.Entry<String, List<String>> spec : specs.entrySet()) {
+            if ((m_version != null) && !m_version.equals(spec.getKey())) {
+                continue;
+            }
+            if (m_patterns.isEmpty()) {
+                return true;
+            }
+            for (String section : spec.getValue()) {
+                if (matches(section)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(String section) {
+        for (String pattern : m_patterns) {
+            if (pattern.endsWith(SUBSECTIONS_WILDCARD)) {
+                String parent = pattern.substring(0, pattern.length() - SUBSECTIONS_WILDCARD.length());
+                if (section.equals(parent) || section.startsWith(parent + ".")) {
+                    return true;
+                }
+            }
+            else if (pattern.endsWith(WILDCARD)) {
+                if (section.startsWith(pattern.substring(0, pattern.length() - WILDCARD.length()))) {
+                    return true;
+                }
+            }
+            else if (section.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "OSGi " + (m_version == null ? "*" : m_version) + " sections " + (m_patterns.isEmpty() ? "*" : m_patterns.toString());
+    }
+
+    private static boolean isEmpty(String value) {
+        return (value == null) || (value.trim().length() == 0);
+    }
+}
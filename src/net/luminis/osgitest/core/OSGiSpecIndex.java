@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.luminis.osgitest.testhelper.OSGiSpec;
+import net.luminis.osgitest.testhelper.OSGiVersionSpecs;
+
+/**
+ * Index of the OSGi specification sections covered by test methods, as declared by their {@link OSGiSpec} and
+ * {@link OSGiVersionSpecs} annotations.
+ *
+ * The index is generated at compile time by the {@link OSGiSpecProcessor} and stored in the class output as
+ * {@link #INDEX_RESOURCE}, so the coverage of a run is known without loading the test classes.
+ *
+ * Every line of the resource describes the sections of one OSGi version covered by one test method, the
+ * superclass of a compiled class, or a compiled class without a superclass:
+ * <pre>
+ * &lt;class name&gt;#&lt;method name&gt; TAB &lt;version&gt; TAB &lt;section&gt;,&lt;section&gt;,...
+ * &lt;class name&gt; TAB &lt;superclass name&gt;
+ * &lt;class name&gt;
+ * </pre>
+ *
+ * Every class compiled with the processor is in the index, with or without annotated methods. A method of such a
+ * class that has no entry doesn't cover any section.
+ *
+ * Test methods are inherited, so the sections of a method are looked up in the superclasses of the test class
+ * too. A method that overrides an annotated method without annotations of its own covers the same sections.
+ */
+public class OSGiSpecIndex {
+
+    /**
+     * The location of the index in the class output and on the classpath.
+     */
+    public static final String INDEX_RESOURCE = "META-INF/osgitest/osgi-specs.index";
+
+    private static final String SEPARATOR = "\t";
+    private static final String SECTION_SEPARATOR = ",";
+
+    /**
+     * Sections per OSGi version per test method (see {@link #getKey(String, String)}).
+     */
+    private final Map<String, Map<String, List<String>>> m_specs = new TreeMap<String, Map<String, List<String>>>();
+    /**
+     * The classes compiled with the {@link OSGiSpecProcessor}.
+     */
+    private final Set<String> m_classes = new TreeSet<String>();
+    private final Map<String, String> m_superclasses = new TreeMap<String, String>();
+
+    /**
+     * Loads all indexes on the classpath of a class loader.
+     *
+     * @param loader The class loader, or null for the context class loader.
+     * @return The merged index, empty if no index is found.
+     * @throws IOException If an index can't be read.
+     */
+    public static OSGiSpecIndex load(ClassLoader loader) throws IOException {
+        if (loader == null) {
+            loader = Thread.currentThread().getContextClassLoader();
+        }
+        if (loader == null) {
+            loader = OSGiSpecIndex.class.getClassLoader();
+        }
+
+        OSGiSpecIndex index = new OSGiSpecIndex();
+        Enumeration<URL> resources = loader.getResources(INDEX_RESOURCE);
+        while (resources.hasMoreElements()) {
+            InputStream in = resources.nextElement().openStream();
+            try {
+                index.read(new InputStreamReader(in, "UTF-8"));
+            }
+            finally {
+                in.close();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads an index and adds its entries to this index.
+     *
+     * @param reader
+     * @throws IOException
+     */
+    public void read(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] fields = line.split(SEPARATOR);
+            int separator = fields[0].lastIndexOf('#');
+            if ((fields.length == 1) && (separator < 0) && (fields[0].length() > 0)) {
+                putClass(fields[0]);
+                continue;
+            }
+            if ((fields.length == 2) && (separator < 0)) {
+                putSuperclass(fields[0], fields[1]);
+                continue;
+            }
+            if ((fields.length != 3) || (separator < 0)) {
+                continue;
+            }
+            put(fields[0].substring(0, separator), fields[0].substring(separator + 1), fields[1],
+                Arrays.asList(fields[2].split(SECTION_SEPARATOR)));
+        }
+    }
+
+    /**
+     * Writes this index.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void write(Writer writer) throws IOException {
+        for (Map.Entry<String, Map<String, List<String>>> test : m_specs.entrySet()) {
+            for (Map.Entry<String, List<String>> spec : test.getValue().entrySet()) {
+                writer.write(test.getKey() + SEPARATOR + spec.getKey() + SEPARATOR);
+                for (Iterator<String> it = spec.getValue().iterator(); it.hasNext(); ) {
+                    writer.write(it.next());
+                    if (it.hasNext()) {
+                        writer.write(SECTION_SEPARATOR);
+                    }
+                }
+                writer.write("\n");
+            }
+        }
+        for (Map.Entry<String, String> superclass : m_superclasses.entrySet()) {
+            writer.write(superclass.getKey() + SEPARATOR + superclass.getValue() + "\n");
+        }
+        for (String className : m_classes) {
+            if (!m_superclasses.containsKey(className)) {
+                writer.write(className + "\n");
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Adds the sections of an OSGi version covered by a test method.
+     *
+     * @param className
+     * @param methodName
+     * @param version The OSGi specification version (eg: 4.1)
+     * @param sections The section numbers (eg: 3.5.4)
+     */
+    public void put(String className, String methodName, String version, List<String> sections) {
+        String key = getKey(className, methodName);
+        Map<String, List<String>> specs = m_specs.get(key);
+        if (specs == null) {
+            specs = new LinkedHashMap<String, List<String>>();
+            m_specs.put(key, specs);
+        }
+        List<String> versionSections = specs.get(version);
+        if (versionSections == null) {
+            versionSections = new ArrayList<String>();
+            specs.put(version, versionSections);
+        }
+        for (String section : sections) {
+            section = section.trim();
+            if ((section.length() > 0) && !versionSections.contains(section)) {
+                versionSections.add(section);
+            }
+        }
+        m_classes.add(className);
+    }
+
+    /**
+     * Adds a compiled class, so its methods without an entry are known not to cover any section.
+     *
+     * @param className
+     */
+    public void putClass(String className) {
+        m_classes.add(className);
+    }
+
+    /**
+     * Adds the superclass of a compiled class, so the methods it inherits are found.
+     *
+     * @param className
+     * @param superclassName
+     */
+    public void putSuperclass(String className, String superclassName) {
+        m_classes.add(className);
+        m_superclasses.put(className, superclassName);
+    }
+
+    /**
+     * Removes all entries of a test class, eg. because the class is compiled again.
+     *
+     * @param className
+     */
+    public void removeClass(String className) {
+        String prefix = className + "#";
+        for (Iterator<String> it = m_specs.keySet().iterator(); it.hasNext(); ) {
+            String key = it.next();
+            if (key.startsWith(prefix) && (key.indexOf('#', prefix.length()) < 0)) {
+                it.remove();
+            }
+        }
+        m_classes.remove(className);
+        m_superclasses.remove(className);
+    }
+
+    /**
+     * Returns whether a class was compiled with the {@link OSGiSpecProcessor}. The sections of the methods of such
+     * a class are all in the index, a class that isn't contained in the index has to be inspected with reflection.
+     *
+     * @param className
+     * @return
+     */
+    public boolean containsClass(String className) {
+        return m_classes.contains(className);
+    }
+
+    /**
+     * Returns the sections per OSGi version covered by a test method, in the order they are declared. If the
+     * class doesn't declare the method, it is looked up in the superclasses.
+     *
+     * @param className
+     * @param methodName
+     * @return A map of versions to section numbers, empty if the method doesn't declare any.
+     */
+    public Map<String, List<String>> getSpecs(String className, String methodName) {
+        for (String name = className; name != null; name = m_superclasses.get(name)) {
+            Map<String, List<String>> specs = m_specs.get(getKey(name, methodName));
+            if (specs != null) {
+                return Collections.unmodifiableMap(specs);
+            }
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Returns the names of the indexed test methods of a class, including the ones it inherits.
+     *
+     * @param className
+     * @return
+     */
+    public Set<String> getMethods(String className) {
+        Set<String> methods = new LinkedHashSet<String>();
+        for (String name = className; name != null; name = m_superclasses.get(name)) {
+            String prefix = name + "#";
+            for (String key : m_specs.keySet()) {
+                if (key.startsWith(prefix) && (key.indexOf('#', prefix.length()) < 0)) {
+                    methods.add(key.substring(prefix.length()));
+                }
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Returns the sections covered by the methods of the given test classes, per OSGi version.
+     *
+     * @param classNames The test classes, or null for all classes in the index.
+     * @return A sorted map of versions to sorted section numbers.
+     */
+    public Map<String, Set<String>> getCoverage(Set<String> classNames) {
+        List<Map<String, List<String>>> tests = new ArrayList<Map<String, List<String>>>();
+        if (classNames == null) {
+            tests.addAll(m_specs.values());
+        }
+        else {
+            for (String className : classNames) {
+                for (String methodName : getMethods(className)) {
+                    tests.add(getSpecs(className, methodName));
+                }
+            }
+        }
+
+        Map<String, Set<String>> coverage = new TreeMap<String, Set<String>>();
+        for (Map<String, List<String>> test : tests) {
+            for (Map.Entry<String, List<String>> spec : test.entrySet()) {
+                Set<String> sections = coverage.get(spec.getKey());
+                if (sections == null) {
+                    sections = new TreeSet<String>();
+                    coverage.put(spec.getKey(), sections);
+                }
+                sections.addAll(spec.getValue());
+            }
+        }
+        return coverage;
+    }
+
+    /**
+     * Reads the sections per OSGi version covered by a method from its annotations. {@link OSGiVersionSpecs} takes
+     * precedence over {@link OSGiSpec} if the method contains both annotations.
+     *
+     * Only needed for classes that aren't in the index, see {@link #containsClass(String)}.
+     *
+     * @param method
+     * @return A map of versions to section numbers, empty if the method doesn't declare any.
+     */
+    public static Map<String, List<String>> getSpecs(Method method) {
+        Map<String, List<String>> specs = new LinkedHashMap<String, List<String>>();
+        OSGiVersionSpecs versionSpecs = method.getAnnotation(OSGiVersionSpecs.class);
+        if (versionSpecs != null) {
+            for (OSGiSpec spec : versionSpecs.value()) {
+                specs.put(spec.version(), Arrays.asList(spec.sections()));
+            }
+        }
+        else {
+            OSGiSpec spec = method.getAnnotation(OSGiSpec.class);
+            if (spec != null) {
+                specs.put(spec.version(), Arrays.asList(spec.sections()));
+            }
+        }
+        return specs;
+    }
+
+    private static String getKey(String className, String methodName) {
+        return className + "#" + methodName;
+    }
+}
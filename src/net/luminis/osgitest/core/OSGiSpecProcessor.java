@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import net.luminis.osgitest.testhelper.OSGiSpec;
+import net.luminis.osgitest.testhelper.OSGiVersionSpecs;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Annotation processor that writes the {@link OSGiSpecIndex} of the compiled test classes.
+ *
+ * The processor is registered as a service in the framework jar, so javac runs it for every test project that
+ * has the framework on its classpath. When the location of osgi-specifications.xml is passed with the option
+ * -Aosgitest.specifications=&lt;file&gt;, every declared version and section is checked against it and unknown
+ * ones fail the build.
+ *
+ * Ant only compiles the sources that changed, so the index in the class output is read first and only the
+ * entries of the classes that are compiled again are replaced. The processor runs for every compiled class, not only
+ * for the annotated ones, so a class whose annotations were all removed loses its entries too. It never claims
+ * the annotations, so other processors still see them.
+ */
+@SupportedAnnotationTypes("*")
+@SupportedOptions(OSGiSpecProcessor.OPTION_SPECIFICATIONS)
+public class OSGiSpecProcessor extends AbstractProcessor {
+
+    /**
+     * Processor option with the location of osgi-specifications.xml.
+     */
+    public static final String OPTION_SPECIFICATIONS = "osgitest.specifications";
+
+    private OSGiSpecIndex m_index;
+    /**
+     * Section numbers per OSGi version, or null if the declarations aren't validated.
+     */
+    private Map<String, Set<String>> m_specifications;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (m_index == null) {
+            m_index = readIndex();
+            m_specifications = readSpecifications();
+        }
+
+        for (Element element : roundEnv.getRootElements()) {
+            if (element instanceof TypeElement) {
+                String className = processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString();
+                m_index.removeClass(className);
+                m_index.putClass(className);
+                addSuperclass(className, (TypeElement) element);
+            }
+        }
+
+        Set<Element> methods = new HashSet<Element>();
+        methods.addAll(roundEnv.getElementsAnnotatedWith(OSGiSpec.class));
+        methods.addAll(roundEnv.getElementsAnnotatedWith(OSGiVersionSpecs.class));
+        for (Element method : methods) {
+            if (method.getKind() == ElementKind.METHOD) {
+                addMethod(method);
+            }
+        }
+
+        if (roundEnv.processingOver()) {
+            writeIndex();
+        }
+        return false;
+    }
+
+    /**
+     * Adds the superclass of a compiled class to the index, so the annotated methods it inherits are found.
+     */
+    private void addSuperclass(String className, TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return;
+        }
+        String superclassName = processingEnv.getElementUtils().getBinaryName((TypeElement) ((DeclaredType) superclass).asElement()).toString();
+        if (!Object.class.getName().equals(superclassName)) {
+            m_index.putSuperclass(className, superclassName);
+        }
+    }
+
+    /**
+     * Adds the declarations of a method to the index. {@link OSGiVersionSpecs} takes precedence over
+     * {@link OSGiSpec}, like it does in the result formatter.
+     */
+    private void addMethod(Element method) {
+        OSGiSpec[] specs;
+        OSGiVersionSpecs versionSpecs = method.getAnnotation(OSGiVersionSpecs.class);
+        if (versionSpecs != null) {
+            specs = versionSpecs.value();
+        }
+        else {
+            specs = new OSGiSpec[] {method.getAnnotation(OSGiSpec.class)};
+        }
+
+        String className = processingEnv.getElementUtils().getBinaryName((TypeElement) method.getEnclosingElement()).toString();
+        for (OSGiSpec spec : specs) {
+            validate(method, spec);
+            m_index.put(className, method.getSimpleName().toString(), spec.version(), Arrays.asList(spec.sections()));
+        }
+    }
+
+    private void validate(Element method, OSGiSpec spec) {
+        if (m_specifications == null) {
+            return;
+        }
+        Set<String> sections = m_specifications.get(spec.version());
+        if (sections == null) {
+            processingEnv.getMessager().printMessage(Kind.ERROR,
+                "Unknown OSGi specification version " + spec.version() + ", known versions are " + m_specifications.keySet(), method);
+            return;
+        }
+        for (String section : spec.sections()) {
+            if (!sections.contains(section.trim())) {
+                processingEnv.getMessager().printMessage(Kind.ERROR,
+                    "Unknown section " + section + " of OSGi specification version " + spec.version(), method);
+            }
+        }
+    }
+
+    private OSGiSpecIndex readIndex() {
+        OSGiSpecIndex index = new OSGiSpecIndex();
+        try {
+            FileObject resource = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", OSGiSpecIndex.INDEX_RESOURCE);
+            InputStream in = resource.openInputStream();
+            try {
+                index.read(new InputStreamReader(in, "UTF-8"));
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            /*
+             * Not compiled before, start with an empty index.
+             */
+        }
+        catch (IllegalArgumentException e) {
+            // Idem, some compilers don't allow reading resources from the class output.
+        }
+        return index;
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", OSGiSpecIndex.INDEX_RESOURCE);
+            Writer out = new OutputStreamWriter(resource.openOutputStream(), "UTF-8");
+            try {
+                m_index.write(out);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to write " + OSGiSpecIndex.INDEX_RESOURCE + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the section numbers of every version from the osgi-specifications.xml passed as processor option.
+     */
+    private Map<String, Set<String>> readSpecifications() {
+        String location = processingEnv.getOptions().get(OPTION_SPECIFICATIONS);
+        if (location == null) {
+            return null;
+        }
+
+        Map<String, Set<String>> specifications = new HashMap<String, Set<String>>();
+        try {
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(location));
+            NodeList versions = document.getDocumentElement().getElementsByTagName("version");
+            for (int i = 0; i < versions.getLength(); i++) {
+                org.w3c.dom.Element version = (org.w3c.dom.Element) versions.item(i);
+                Set<String> sections = new HashSet<String>();
+                NodeList sectionElements = version.getElementsByTagName("section");
+                for (int j = 0; j < sectionElements.getLength(); j++) {
+                    sections.add(((org.w3c.dom.Element) sectionElements.item(j)).getAttribute("number"));
+                }
+                specifications.put(version.getAttribute("name"), sections);
+            }
+        }
+        catch (Exception e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to read OSGi specifications from " + location + ": " + e.getMessage());
+            return null;
+        }
+        return specifications;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.ops4j.pax.exam.junit.JUnit4TestRunner;
+import org.ops4j.pax.exam.junit.internal.JUnit4TestMethod;
+
+/**
+ * JUnit runner for the tests of the OSGi testing framework. Extends the Pax Exam runner with the selection
+ * of test methods by the OSGi specification sections they cover (see {@link OSGiSpecFilter}) and by their
+ * outcome in a previous run (see {@link RerunFilter}).
+ *
+ * @see net.luminis.osgitest.testhelper.TestBase
+ */
+public class OSGiTestRunner extends JUnit4TestRunner {
+
+    @SuppressWarnings("deprecation")
+    public OSGiTestRunner(Class<?> klass) throws org.junit.internal.runners.InitializationError {
+        super(klass);
+    }
+
+    /**
+     * Returns the test methods (one per method per framework) that match the {@link OSGiSpecFilter}
+     * and the {@link RerunFilter} passed in the system properties. The sections of the methods are read from the
+     * {@link OSGiSpecIndex}, only a test class that isn't in the index is inspected with reflection.
+     *
+     * Note: called from the constructor of {@link JUnit4TestRunner}, so fields of this class aren't initialized yet.
+     */
+    @Override
+    protected List<JUnit4TestMethod> getTestMethods() throws Exception {
+        List<JUnit4TestMethod> methods = super.getTestMethods();
+        final String className = getTestClass().getName();
+
+        OSGiSpecFilter filter = OSGiSpecFilter.fromSystemProperties();
+        if (filter != null) {
+            OSGiSpecIndex index = OSGiSpecIndex.load(getTestClass().getJavaClass().getClassLoader());
+            for (Iterator<JUnit4TestMethod> it = methods.iterator(); it.hasNext(); ) {
+                Method method = it.next().getTestMethod();
+                Map<String, List<String>> specs = index.containsClass(className)
+                    ? index.getSpecs(className, method.getName())
+                    : OSGiSpecIndex.getSpecs(method);
+                if (!filter.matches(specs)) {
+                    it.remove();
+                }
+            }
+        }
+
+        final RerunFilter rerunFilter = RerunFilter.fromSystemProperties();
+        if (rerunFilter != null) {
+            if (rerunFilter.isFailedOnly()) {
+                for (Iterator<JUnit4TestMethod> it = methods.iterator(); it.hasNext(); ) {
+                    if (!rerunFilter.isFailed(className, it.next().getName())) {
+                        it.remove();
+                    }
+                }
+            }
+            else {
+                /*
+                 * The sort is stable, so the tests keep their order within the failed and the other tests.
+                 */
+                Collections.sort(methods, new Comparator<JUnit4TestMethod>() {
+                    public int compare(JUnit4TestMethod m1, JUnit4TestMethod m2) {
+                        boolean failed1 = rerunFilter.isFailed(className, m1.getName());
+                        boolean failed2 = rerunFilter.isFailed(className, m2.getName());
+                        return failed1 == failed2 ? 0 : (failed1 ? -1 : 1);
+                    }
+                });
+            }
+        }
+        return methods;
+    }
+}
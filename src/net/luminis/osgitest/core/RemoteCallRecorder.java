@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ops4j.pax.exam.spi.container.TestContainer;
+
+/**
+ * Counts the calls the host makes to the test container of a single test method, and the time they take.
+ *
+ * With the default Pax Runner container every call is an RMI round-trip to the container VM: installing and
+ * starting the probe, looking up the test service, calling the test, waiting for bundle states. The test method
+ * itself (including the {@link net.luminis.osgitest.testhelper.BundleUtil} helpers) runs inside the container
+ * and only costs a single call.
+ */
+public class RemoteCallRecorder {
+
+    private final Map<String, long[]> m_calls = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Records a call.
+     *
+     * @param call The name of the call (eg: TestContainer.installBundle)
+     * @param nanos The time the call took in nanoseconds.
+     */
+    public synchronized void record(String call, long nanos) {
+        long[] totals = m_calls.get(call);
+        if (totals == null) {
+            totals = new long[2];
+            m_calls.put(call, totals);
+        }
+        totals[0]++;
+        totals[1] += nanos;
+    }
+
+    /**
+     * Returns the recorded calls in the order they were first made.
+     *
+     * @return A map of call names to an array with the number of calls and the total time in nanoseconds.
+     */
+    public synchronized Map<String, long[]> getCalls() {
+        Map<String, long[]> calls = new LinkedHashMap<String, long[]>();
+        for (Map.Entry<String, long[]> call : m_calls.entrySet()) {
+            calls.put(call.getKey(), call.getValue().clone());
+        }
+        return Collections.unmodifiableMap(calls);
+    }
+
+    /**
+     * Returns the total number of recorded calls.
+     */
+    public synchronized long getCount() {
+        long count = 0;
+        for (long[] totals : m_calls.values()) {
+            count += totals[0];
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total time of the recorded calls in nanoseconds.
+     */
+    public synchronized long getNanos() {
+        long nanos = 0;
+        for (long[] totals : m_calls.values()) {
+            nanos += totals[1];
+        }
+        return nanos;
+    }
+
+    /**
+     * Wraps a test container, so every call to it is recorded. The services it returns are wrapped as well,
+     * so the calls on them (eg. the call of the test method) are recorded too.
+     *
+     * @param container The container to wrap.
+     * @return The wrapped container.
+     */
+    public TestContainer wrap(TestContainer container) {
+        return wrap(TestContainer.class, container);
+    }
+
+    private <T> T wrap(final Class<T> type, final T target) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                long start = System.nanoTime();
+                Object result;
+                try {
+                    result = method.invoke(target, args);
+                }
+                catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                finally {
+                    record(type.getSimpleName() + "." + method.getName(), System.nanoTime() - start);
+                }
+                if ((type == TestContainer.class) && method.getName().equals("getService") && (result != null)
+                    && ((Class<?>) args[0]).isInterface()) {
+                    return wrapService((Class<?>) args[0], result);
+                }
+                return result;
+            }
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T wrapService(Class<T> type, Object service) {
+        return wrap(type, (T) service);
+    }
+}
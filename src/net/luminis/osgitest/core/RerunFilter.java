@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Selects and orders tests by the outcome of a previous run.
+ *
+ * The {@link net.luminis.osgitest.ant.OSGiTestTask} writes the tests that failed or erred in the previous run
+ * to a file, one key (see {@link #getKey(String, String, String)}) per line, and passes it to the forked test
+ * VMs with the system properties {@link #PROP_RERUN_MODE} and {@link #PROP_RERUN_FILE}.
+ */
+public class RerunFilter {
+
+    /**
+     * The rerun mode: {@link #MODE_FAILED_FIRST} or {@link #MODE_FAILED_ONLY}.
+     */
+    public static final String PROP_RERUN_MODE = "net.luminis.osgitest.rerun.mode";
+    /**
+     * The file containing the keys of the tests that failed in the previous run.
+     */
+    public static final String PROP_RERUN_FILE = "net.luminis.osgitest.rerun.file";
+
+    /**
+     * Run all tests, previously failing tests first.
+     */
+    public static final String MODE_FAILED_FIRST = "failedfirst";
+    /**
+     * Only run the previously failing tests.
+     */
+    public static final String MODE_FAILED_ONLY = "failedonly";
+
+    /**
+     * The name of a test as reported to JUnit: the method name followed by the framework vendor and version
+     * between brackets (eg: sometest [felix/1.8.0]). See the PaxExamResultFormatter for all variants.
+     */
+    private static final Pattern TEST_NAME = Pattern.compile("^([^\\s]+)\\s*\\[([^\\[]+)[\\[]?.*[\\]]?\\]$");
+
+    private final boolean m_failedOnly;
+    private final Set<String> m_failed;
+
+    /**
+     * Creates a filter.
+     *
+     * @param failedOnly True if only failed tests should run, false if they should run first.
+     * @param failed The keys of the failed tests.
+     */
+    public RerunFilter(boolean failedOnly, Set<String> failed) {
+        m_failedOnly = failedOnly;
+        m_failed = failed;
+    }
+
+    /**
+     * Creates the filter passed in the system properties.
+     *
+     * @return The filter, or null if all tests should run in their normal order.
+     * @throws IOException If the file with failed tests can't be read.
+     */
+    public static RerunFilter fromSystemProperties() throws IOException {
+        String mode = System.getProperty(PROP_RERUN_MODE);
+        String file = System.getProperty(PROP_RERUN_FILE);
+        if ((file == null) || !(MODE_FAILED_FIRST.equals(mode) || MODE_FAILED_ONLY.equals(mode))) {
+            return null;
+        }
+
+        Set<String> failed = new HashSet<String>();
+        BufferedReader in = new BufferedReader(new FileReader(new File(file)));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    failed.add(line);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return new RerunFilter(MODE_FAILED_ONLY.equals(mode), failed);
+    }
+
+    /**
+     * Returns whether only the failed tests should run.
+     *
+     * @return
+     */
+    public boolean isFailedOnly() {
+        return m_failedOnly;
+    }
+
+    /**
+     * Returns whether a test failed in the previous run.
+     *
+     * @param className The name of the test class.
+     * @param testName The name of the test as reported to JUnit (eg: sometest [felix/1.8.0])
+     * @return
+     */
+    public boolean isFailed(String className, String testName) {
+        Matcher matcher = TEST_NAME.matcher(testName);
+        if (!matcher.find()) {
+            return false;
+        }
+        return m_failed.contains(getKey(className, matcher.group(1), matcher.group(2)));
+    }
+
+    /**
+     * Returns the key of a test on a single framework.
+     *
+     * @param className The name of the test class.
+     * @param methodName The name of the test method.
+     * @param vendor The framework vendor and version, as written by the PaxExamResultFormatter (eg: felix/1.8.0)
+     * @return
+     */
+    public static String getKey(String className, String methodName, String vendor) {
+        return className + "#" + methodName + " [" + vendor + "]";
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import net.luminis.osgitest.testhelper.LatencyHistogram;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+/**
+ * Times the phases of a single test method run on the host side, and combines them with the phases
+ * measured inside the test container.
+ *
+ * The timer of a finished test is registered under the test class and test name, so the result formatter
+ * (which runs in the same VM) can pick it up when the test ends.
+ *
+ * All phase durations are in nanoseconds. Phases that span the host and the container VM (spawning the VM,
+ * booting the framework and provisioning) can only be derived from wall clock times and therefore have
+ * millisecond precision.
+ */
+public class TestPhaseTimer {
+
+    /*
+     * Phases timed on the host.
+     */
+    /**
+     * Starting the test container: spawning the VM, booting the framework and provisioning the bundles.
+     */
+    public static final String CONTAINER_START = "container-start";
+    /**
+     * Installing the probe (the bundle containing the test) in the test container.
+     */
+    public static final String PROBE_INSTALL = "probe-install";
+    /**
+     * Starting the probe in the test container.
+     */
+    public static final String PROBE_START = "probe-start";
+    /**
+     * Looking up and calling the test method in the container, including setup and cleanup.
+     */
+    public static final String PROBE_CALL = "probe-call";
+    /**
+     * Stopping the test container.
+     */
+    public static final String CONTAINER_STOP = "container-stop";
+
+    /*
+     * Phases derived from the container measurements.
+     */
+    /**
+     * Part of {@link #CONTAINER_START} until the container VM was running.
+     */
+    public static final String CONTAINER_SPAWN = "container-spawn";
+    /**
+     * Part of {@link #CONTAINER_START} until the framework installed its first bundle.
+     */
+    public static final String FRAMEWORK_BOOT = "framework-boot";
+    /**
+     * Part of {@link #CONTAINER_START} after the framework installed its first bundle.
+     */
+    public static final String PROVISIONING = "provisioning";
+    /**
+     * The {@link org.junit.Before} methods in the container.
+     */
+    public static final String SETUP = "setup";
+    /**
+     * The test method in the container.
+     */
+    public static final String TEST = "test";
+    /**
+     * The {@link org.junit.After} methods in the container.
+     */
+    public static final String CLEANUP = "cleanup";
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * Timers of finished tests, waiting to be picked up by the result formatter.
+     */
+    private static final Map<String, TestPhaseTimer> s_finished = Collections.synchronizedMap(new HashMap<String, TestPhaseTimer>());
+
+    private final Map<String, Long> m_phases = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> m_phaseStarts = new HashMap<String, Long>();
+    private final RemoteCallRecorder m_remoteCalls = new RemoteCallRecorder();
+    private final List<TestMeasurements.Result> m_results = new ArrayList<TestMeasurements.Result>();
+    private final Map<String, LatencyHistogram> m_histograms = new TreeMap<String, LatencyHistogram>();
+
+    private String m_currentPhase;
+    private long m_currentPhaseStart;
+    private TestWatchdog m_watchdog;
+
+    /**
+     * Sets the watchdog that enforces the phase deadline, it's notified whenever a phase begins.
+     *
+     * @param watchdog
+     */
+    public void setWatchdog(TestWatchdog watchdog) {
+        m_watchdog = watchdog;
+    }
+
+    /**
+     * Returns the recorder of the calls made to the test container during the test.
+     *
+     * @return
+     */
+    public RemoteCallRecorder getRemoteCalls() {
+        return m_remoteCalls;
+    }
+
+    /**
+     * Begins timing a phase. The phase that is currently timed (if any) is ended first.
+     *
+     * @param phase The name of the phase.
+     */
+    public void begin(String phase) {
+        end();
+        m_phaseStarts.put(phase, Long.valueOf(System.currentTimeMillis()));
+        m_currentPhase = phase;
+        if (m_watchdog != null) {
+            m_watchdog.enterPhase(phase);
+        }
+        m_currentPhaseStart = System.nanoTime();
+    }
+
+    /**
+     * Ends timing the current phase. Does nothing if no phase is timed.
+     */
+    public void end() {
+        long now = System.nanoTime();
+        if (m_currentPhase != null) {
+            put(m_currentPhase, now - m_currentPhaseStart);
+            m_currentPhase = null;
+        }
+    }
+
+    /**
+     * Sets the duration of a phase.
+     *
+     * @param phase The name of the phase.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void put(String phase, long nanos) {
+        m_phases.put(phase, Long.valueOf(nanos));
+    }
+
+    /**
+     * Adds the phases measured inside the test container.
+     *
+     * @param measurements The measurements taken by {@link TestMeasurements#take(java.io.File, String, String)}.
+     */
+    public void addContainerMeasurements(Properties measurements) {
+        Long containerStartBegin = m_phaseStarts.get(CONTAINER_START);
+        Long containerStart = m_phases.get(CONTAINER_START);
+        long vmStarted = getLong(measurements, TestMeasurements.CONTAINER_VM_STARTED);
+        if ((containerStartBegin != null) && (vmStarted > 0) && (vmStarted < containerStartBegin.longValue())) {
+            // an embedded container runs in the VM of the test runner, no VM was spawned
+            vmStarted = containerStartBegin.longValue();
+        }
+        long frameworkStarted = getLong(measurements, TestMeasurements.CONTAINER_FRAMEWORK_STARTED);
+
+        if ((containerStartBegin != null) && (containerStart != null) && (vmStarted > 0) && (frameworkStarted >= vmStarted)) {
+            long containerStarted = containerStartBegin.longValue() + containerStart.longValue() / NANOS_PER_MILLI;
+
+            put(CONTAINER_SPAWN, Math.max(0, vmStarted - containerStartBegin.longValue()) * NANOS_PER_MILLI);
+            put(FRAMEWORK_BOOT, (frameworkStarted - vmStarted) * NANOS_PER_MILLI);
+            put(PROVISIONING, Math.max(0, containerStarted - frameworkStarted) * NANOS_PER_MILLI);
+        }
+
+        putMeasurement(SETUP, measurements, TestMeasurements.PHASE_SETUP);
+        putMeasurement(TEST, measurements, TestMeasurements.PHASE_TEST);
+        putMeasurement(CLEANUP, measurements, TestMeasurements.PHASE_CLEANUP);
+        m_results.addAll(TestMeasurements.getResults(measurements));
+        m_histograms.putAll(TestMeasurements.getHistograms(measurements));
+    }
+
+    /**
+     * Adds the results of a benchmark run by the host (eg. a {@link MicroBenchmarkRunner}).
+     *
+     * @param results
+     */
+    public void addResults(List<TestMeasurements.Result> results) {
+        m_results.addAll(results);
+    }
+
+    /**
+     * Returns the latency histograms the test put in the container measurements.
+     *
+     * @return The histograms by name, sorted by name.
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(m_histograms);
+    }
+
+    /**
+     * Returns the benchmark results the test put in the container measurements.
+     *
+     * @return
+     */
+    public List<TestMeasurements.Result> getResults() {
+        return Collections.unmodifiableList(m_results);
+    }
+
+    /**
+     * Returns the timed phases in the order they were timed.
+     *
+     * @return A map of phase names to durations in nanoseconds.
+     */
+    public Map<String, Long> getPhases() {
+        return Collections.unmodifiableMap(m_phases);
+    }
+
+    /**
+     * Registers the timer of a finished test.
+     *
+     * @param className The name of the test class.
+     * @param testName The name of the test as reported to JUnit (eg: sometest [felix/1.8.0])
+     * @param timer The timer of the test.
+     */
+    public static void register(String className, String testName, TestPhaseTimer timer) {
+        s_finished.put(getKey(className, testName), timer);
+    }
+
+    /**
+     * Takes the timer of a finished test. The timer can only be taken once.
+     *
+     * @param className The name of the test class.
+     * @param testName The name of the test as reported to JUnit (eg: sometest [felix/1.8.0])
+     * @return The timer, or null if no timer is registered for the test.
+     */
+    public static TestPhaseTimer take(String className, String testName) {
+        return s_finished.remove(getKey(className, testName));
+    }
+
+    private void putMeasurement(String phase, Properties measurements, String key) {
+        if (measurements.getProperty(key) != null) {
+            put(phase, getLong(measurements, key));
+        }
+    }
+
+    private static long getLong(Properties measurements, String key) {
+        try {
+            return Long.parseLong(measurements.getProperty(key, "-1"));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String getKey(String className, String testName) {
+        return className + "#" + testName;
+    }
+}
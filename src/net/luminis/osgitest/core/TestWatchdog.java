@@ -0,0 +1,415 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import net.luminis.osgitest.testhelper.ContainerDiagnostics;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+/**
+ * Enforces the deadlines of a single test method run on the host.
+ *
+ * Two deadlines can be configured with system properties (in seconds, 0 or absent disables them): one for the
+ * whole test ({@link #PROP_TEST_TIMEOUT}) and one for every phase timed by the {@link TestPhaseTimer}
+ * ({@link #PROP_PHASE_TIMEOUT}). When a deadline passes, the watchdog asks the container for a dump of its threads
+ * and framework state (see {@link ContainerDiagnostics}), kills the container VM and interrupts the test thread.
+ * The test then fails with a {@link TestTimeoutException} that includes the dump, so it ends up in the output of
+ * the result formatter.
+ *
+ * The container can only be dumped once the test method is set up inside it, it then writes its process id to the
+ * exchange directory. The files exchanged with the container are kept in a directory per run and framework, and the
+ * ones a previous container left behind are removed when the watchdog starts, so only the container of this test in
+ * this run can be killed. Before the test is set up (eg. while the framework boots), the container VM is found by
+ * the system property {@link #PROP_CONTAINER_ID} the host passes on its command line.
+ */
+public class TestWatchdog implements Runnable {
+
+    /**
+     * Maximum number of seconds a test method may take, from starting until stopping the container.
+     */
+    public static final String PROP_TEST_TIMEOUT = "net.luminis.osgitest.timeout.test";
+    /**
+     * Maximum number of seconds a single phase of a test method may take.
+     */
+    public static final String PROP_PHASE_TIMEOUT = "net.luminis.osgitest.timeout.phase";
+    /**
+     * Passed to the container VM to find it by its command line, see {@link #getContainerId()}.
+     */
+    public static final String PROP_CONTAINER_ID = "net.luminis.osgitest.watchdog.container";
+
+    /**
+     * Time the container gets to answer a dump request.
+     */
+    private static final long DUMP_TIMEOUT = 10000;
+    private static final long POLL_INTERVAL = 100;
+    /**
+     * Some file systems only keep the modification time in seconds.
+     */
+    private static final long FILE_TIME_RESOLUTION = 2000;
+
+    private final File m_exchangeDir;
+    private final String m_className;
+    private final String m_methodName;
+    private final String m_testName;
+    private final long m_testTimeout;
+    private final long m_phaseTimeout;
+    private final Thread m_testThread;
+    private final String m_containerId = UUID.randomUUID().toString();
+
+    private long m_startedAt;
+    private long m_testDeadline;
+    private long m_phaseDeadline;
+    private String m_phase;
+    private Thread m_thread;
+    private boolean m_stopped;
+    private String m_firedPhase;
+    private TestTimeoutException m_timeout;
+
+    /**
+     * Creates a watchdog for the current thread, with the deadlines from the system properties.
+     *
+     * @param exchangeDir The directory the container exchanges files in, see {@link TestMeasurements#getExchangeDir(String, String)}.
+     * @param className The name of the test class.
+     * @param methodName The name of the test method.
+     * @param testName The name of the test as reported to JUnit (eg: sometest [felix/1.8.0])
+     */
+    public TestWatchdog(File exchangeDir, String className, String methodName, String testName) {
+        m_exchangeDir = exchangeDir;
+        m_className = className;
+        m_methodName = methodName;
+        m_testName = testName;
+        m_testTimeout = getTimeout(PROP_TEST_TIMEOUT);
+        m_phaseTimeout = getTimeout(PROP_PHASE_TIMEOUT);
+        m_testThread = Thread.currentThread();
+    }
+
+    /**
+     * Returns the value of {@link #PROP_CONTAINER_ID} for the container VM of this test, unique for every watchdog.
+     *
+     * @return
+     */
+    public String getContainerId() {
+        return m_containerId;
+    }
+
+    /**
+     * Returns whether a deadline is configured.
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return (m_testTimeout > 0) || (m_phaseTimeout > 0);
+    }
+
+    /**
+     * Starts watching the test, and removes the files a previous container of the test left behind. Does nothing
+     * else if no deadline is configured.
+     */
+    public synchronized void start() {
+        if (m_thread != null) {
+            return;
+        }
+        m_startedAt = System.currentTimeMillis();
+        getExchangeFile(ContainerDiagnostics.PID_EXTENSION).delete();
+        getExchangeFile(ContainerDiagnostics.DUMP_REQUEST_EXTENSION).delete();
+        getExchangeFile(ContainerDiagnostics.DUMP_EXTENSION).delete();
+        if (!isEnabled()) {
+            return;
+        }
+        m_testDeadline = m_testTimeout > 0 ? System.currentTimeMillis() + m_testTimeout : Long.MAX_VALUE;
+        m_phaseDeadline = Long.MAX_VALUE;
+        m_thread = new Thread(this, "osgitest watchdog " + m_testName);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /**
+     * Restarts the phase deadline, called when the test enters a new phase.
+     *
+     * @param phase The name of the phase.
+     */
+    public synchronized void enterPhase(String phase) {
+        m_phase = phase;
+        m_phaseDeadline = m_phaseTimeout > 0 ? System.currentTimeMillis() + m_phaseTimeout : Long.MAX_VALUE;
+        notifyAll();
+    }
+
+    /**
+     * Returns the phase in which a deadline passed. The test thread may fail on the interrupt or the killed
+     * container before {@link #stop()} returns the timeout.
+     *
+     * @return The phase, or null if no deadline passed.
+     */
+    public synchronized String getFiredPhase() {
+        return m_firedPhase;
+    }
+
+    /**
+     * Stops watching the test.
+     *
+     * @return The timeout if a deadline passed, null otherwise.
+     */
+    public TestTimeoutException stop() {
+        TestTimeoutException timeout;
+        synchronized (this) {
+            m_stopped = true;
+            timeout = m_timeout;
+            notifyAll();
+        }
+        /*
+         * The interrupt of the test thread may still be pending if the watchdog fired.
+         */
+        if (timeout != null) {
+            Thread.interrupted();
+        }
+        return timeout;
+    }
+
+    public void run() {
+        String deadlinePassed;
+        String phase;
+        synchronized (this) {
+            while (true) {
+                if (m_stopped) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if (now >= m_testDeadline) {
+                    deadlinePassed = "test deadline of " + (m_testTimeout / 1000) + "s";
+                    break;
+                }
+                if (now >= m_phaseDeadline) {
+                    deadlinePassed = "phase deadline of " + (m_phaseTimeout / 1000) + "s";
+                    break;
+                }
+                try {
+                    wait(Math.min(m_testDeadline, m_phaseDeadline) - now);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+            phase = m_phase;
+            m_firedPhase = phase;
+        }
+
+        String dump = requestDump();
+        boolean killed = killContainer();
+        synchronized (this) {
+            m_timeout = new TestTimeoutException(m_testName + " exceeded the " + deadlinePassed + " in phase " + phase
+                + (killed ? ", the container was killed" : ", the container couldn't be killed"), dump);
+            if (!m_stopped) {
+                m_testThread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Asks the container for a dump and waits for it.
+     *
+     * @return The dump, or an explanation why there isn't one.
+     */
+    private String requestDump() {
+        File request = getExchangeFile(ContainerDiagnostics.DUMP_REQUEST_EXTENSION);
+        File dump = getExchangeFile(ContainerDiagnostics.DUMP_EXTENSION);
+        if (!getExchangeFile(ContainerDiagnostics.PID_EXTENSION).isFile()) {
+            return "No container dump available, the test wasn't set up in the container yet.";
+        }
+
+        try {
+            request.getParentFile().mkdirs();
+            request.createNewFile();
+            long deadline = System.currentTimeMillis() + DUMP_TIMEOUT;
+            while (!dump.isFile() && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(POLL_INTERVAL);
+            }
+            if (!dump.isFile()) {
+                return "The container didn't answer the dump request within " + (DUMP_TIMEOUT / 1000) + "s.";
+            }
+            return read(dump);
+        }
+        catch (IOException e) {
+            return "Unable to get the container dump: " + e;
+        }
+        catch (InterruptedException e) {
+            return "Interrupted while waiting for the container dump.";
+        }
+        finally {
+            request.delete();
+            dump.delete();
+        }
+    }
+
+    /**
+     * Kills the container VM with the process id it wrote when the test was set up. A process id file older than
+     * this watchdog wasn't written by the container of this test, it is left alone. Without a process id file, the
+     * container VM is looked up by the {@link #PROP_CONTAINER_ID} on its command line.
+     *
+     * @return true if the container was killed.
+     */
+    private boolean killContainer() {
+        File pidFile = getExchangeFile(ContainerDiagnostics.PID_EXTENSION);
+        try {
+            List<String> pids = new ArrayList<String>();
+            if (pidFile.isFile() && (pidFile.lastModified() >= m_startedAt - FILE_TIME_RESOLUTION)) {
+                pids.add(read(pidFile).trim());
+                pidFile.delete();
+            }
+            else {
+                pids.addAll(findContainerProcesses());
+            }
+            // an embedded container runs in this VM, interrupting the test is all we can do
+            pids.remove(getProcessId());
+
+            boolean killed = !pids.isEmpty();
+            for (String pid : pids) {
+                String[] command = isWindows()
+                    ? new String[] {"taskkill", "/F", "/PID", pid}
+                    : new String[] {"kill", "-9", pid};
+                killed &= Runtime.getRuntime().exec(command).waitFor() == 0;
+            }
+            return killed;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the process ids of the VMs that have the container id of this watchdog on their command line.
+     */
+    private List<String> findContainerProcesses() throws IOException, InterruptedException {
+        String[] command = isWindows()
+            ? new String[] {"wmic", "process", "where", "CommandLine like '%" + m_containerId + "%' and not Name='wmic.exe'", "get", "ProcessId"}
+            : new String[] {"ps", "-e", "-ww", "-o", "pid=", "-o", "args="};
+        Process process = Runtime.getRuntime().exec(command);
+        process.getOutputStream().close();
+        List<String> pids = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (isWindows()) {
+                    if ((line.length() > 0) && Character.isDigit(line.charAt(0))) {
+                        pids.add(line);
+                    }
+                }
+                else if (line.indexOf(m_containerId) >= 0) {
+                    pids.add(line.substring(0, line.indexOf(' ')));
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        process.waitFor();
+        return pids;
+    }
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().startsWith("windows");
+    }
+
+    private File getExchangeFile(String extension) {
+        return TestMeasurements.getExchangeFile(m_exchangeDir, m_className, m_methodName, extension);
+    }
+
+    /**
+     * Returns the process id of this VM, as found in the name of the runtime (pid@hostname).
+     */
+    private static String getProcessId() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        return at > 0 ? name.substring(0, at) : name;
+    }
+
+    private static String read(File file) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                contents.append(line).append('\n');
+            }
+        }
+        finally {
+            in.close();
+        }
+        return contents.toString();
+    }
+
+    private static long getTimeout(String property) {
+        try {
+            return Math.max(0, Long.parseLong(System.getProperty(property, "0").trim()) * 1000);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Thrown for a test that exceeded a deadline. The dump of the container is included in the stack trace.
+     */
+    public static class TestTimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final String m_dump;
+
+        public TestTimeoutException(String message, String dump) {
+            super(message);
+            m_dump = dump;
+        }
+
+        /**
+         * Returns the dump of the container.
+         *
+         * @return
+         */
+        public String getDump() {
+            return m_dump;
+        }
+
+        @Override
+        public void printStackTrace(PrintWriter writer) {
+            super.printStackTrace(writer);
+            writer.print(m_dump);
+        }
+
+        @Override
+        public void printStackTrace(PrintStream stream) {
+            super.printStackTrace(stream);
+            stream.print(m_dump);
+        }
+    }
+}
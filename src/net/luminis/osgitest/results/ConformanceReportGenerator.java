@@ -0,0 +1,682 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.results;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import net.luminis.osgitest.testhelper.LatencyHistogram;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Generates the conformance report out of the XML output of the {@link PaxExamResultFormatter}.
+ *
+ * The result files are streamed one by one: only the outcome of every testcase per specification section
+ * is kept in memory, and the details page of a testsuite is written as soon as the testsuite has been read.
+ * When all files are read, the matrix of specification sections (from osgi-specifications.xml) against
+ * vendors is written to index.html.
+ *
+ * index.html only contains the rows of the versions. The top level sections of every version, and the
+ * subsections of every top level section, are written as separate chunks to the data/ directory, which the page
+ * loads when the version or section is expanded (see web/scripts/lib/Version.js and Section.js). The chunks are
+ * JavaScript files rather than plain JSON, so they can be loaded with a script element when the report is opened
+ * from the filesystem.
+ *
+ * When the results contain latency histograms of lifecycle operations (see
+ * {@link net.luminis.osgitest.testhelper.BundleUtil#PROP_LIFECYCLE_HISTOGRAMS}), they are merged per vendor and
+ * operation, and written to lifecycle.html, which is linked from index.html.
+ *
+ * The generated pages expect the contents of the web/ resources in a directory named resources/ next to
+ * index.html, like the pages generated by junit-frames.xsl.
+ */
+public class ConformanceReportGenerator {
+
+    /*
+     * Names used in the XML output of the PaxExamResultFormatter.
+     */
+    private static final String ELEMENT_TESTSUITE = "testsuite";
+    private static final String ELEMENT_TESTCASE = "testcase";
+    private static final String ELEMENT_FAILURE = "failure";
+    private static final String ELEMENT_ERROR = "error";
+    private static final String ELEMENT_OSGI_SPEC = "osgi-spec";
+    private static final String ELEMENT_SECTION = "section";
+    private static final String ATTR_NAME = "name";
+    private static final String ATTR_CLASSNAME = "classname";
+    private static final String ATTR_TIME = "time";
+    private static final String ATTR_MESSAGE = "message";
+    private static final String ATTR_VERSION = "version";
+    private static final String ATTR_OSGI_VENDOR_NAME = "osgi-vendor-name";
+    private static final String ELEMENT_HISTOGRAM = "histogram";
+    private static final String ELEMENT_BUCKET = "bucket";
+    private static final String ATTR_COUNT = "count";
+    private static final String ATTR_TOTAL = "total";
+    private static final String ATTR_MAX = "max";
+    private static final String ATTR_INDEX = "index";
+
+    /*
+     * Names used in osgi-specifications.xml.
+     */
+    private static final String SPEC_ELEMENT_VERSION = "version";
+    private static final String SPEC_ELEMENT_SECTIONS = "sections";
+    private static final String SPEC_ELEMENT_SECTION = "section";
+
+    static final String DETAILS_DIR = "details";
+    static final String DATA_DIR = "data";
+    static final String LIFECYCLE_PAGE = "lifecycle.html";
+
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    private static final byte OUTCOME_SUCCESS = 0;
+    private static final byte OUTCOME_FAILURE = 1;
+    private static final byte OUTCOME_ERROR = 2;
+
+    private static final String[] OUTCOME_NAMES = new String[] {"Success", "Failure", "Error"};
+
+    private final List<SpecVersion> m_versions;
+    private final File m_outputDir;
+    private final SAXParserFactory m_parserFactory = SAXParserFactory.newInstance();
+
+    /**
+     * Vendors in the order they are encountered in the results.
+     */
+    private final Set<String> m_vendors = new LinkedHashSet<String>();
+    /**
+     * Outcomes per specification version and section (see {@link #getMatrixKey(String, String)}) per vendor.
+     */
+    private final Map<String, Map<String, List<CaseResult>>> m_matrix = new HashMap<String, Map<String, List<CaseResult>>>();
+    /**
+     * Latency histograms of all testcases merged per operation (in the order they are encountered) per vendor.
+     */
+    private final Map<String, Map<String, LatencyHistogram>> m_histograms = new LinkedHashMap<String, Map<String, LatencyHistogram>>();
+
+    /**
+     * Creates a generator.
+     *
+     * @param specificationFile osgi-specifications.xml, describing the sections of every OSGi version.
+     * @param outputDir The directory the report is written to.
+     * @throws IOException If the specification file can't be read.
+     */
+    public ConformanceReportGenerator(File specificationFile, File outputDir) throws IOException {
+        m_versions = readSpecifications(specificationFile);
+        m_outputDir = outputDir;
+    }
+
+    /**
+     * Reads a result file and writes its details page.
+     *
+     * @param resultFile A file written by the {@link PaxExamResultFormatter}.
+     * @throws IOException
+     */
+    public void addResults(File resultFile) throws IOException {
+        try {
+            SAXParser parser = m_parserFactory.newSAXParser();
+            parser.parse(resultFile, new ResultHandler());
+        }
+        catch (SAXException e) {
+            throw new IOException("Unable to parse " + resultFile + ": " + e.getMessage());
+        }
+        catch (ParserConfigurationException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the matrix of all results read so far to index.html, and the lifecycle latencies to lifecycle.html
+     * if there are any.
+     *
+     * @throws IOException
+     */
+    public void writeMatrix() throws IOException {
+        if (!m_histograms.isEmpty()) {
+            writeLifecycle();
+        }
+        Writer out = openWriter(new File(m_outputDir, "index.html"));
+        try {
+            out.write("<html>\n<head>\n<title>OSGi specification conformance</title>\n");
+            out.write("<link rel=\"stylesheet\" href=\"resources/style/reset.css\" type=\"text/css\" />\n");
+            out.write("<link rel=\"stylesheet\" href=\"resources/style/matrix.css\" type=\"text/css\" />\n");
+            for (String script : new String[] {"lib/mootools-1.2.4-core.js", "lib/mootools-1.2.4.2-more.js",
+                "lib/Version.js", "lib/Section.js", "lib/RowHighlighter.js", "result-matrix.js"}) {
+                out.write("<script type=\"text/javascript\" src=\"resources/scripts/" + script + "\"></script>\n");
+            }
+            out.write("</head>\n<body>\n<h1>Result matrix of OSGi-framework conformance tests</h1>\n");
+            if (!m_histograms.isEmpty()) {
+                out.write("<p><a href=\"" + LIFECYCLE_PAGE + "\">Lifecycle latencies</a></p>\n");
+            }
+            out.write("<table cellspacing=\"0\" cellpadding=\"0\" class=\"results\">\n<thead>\n<tr>\n");
+            out.write("<th colspan=\"2\" class=\"osgi-version\">OSGi version</th>\n<th>OSGi section</th>\n");
+            for (String vendor : m_vendors) {
+                out.write("<th class=\"vendor\">" + escape(vendor.replace('_', '-').replace("/", " / ")) + "</th>\n");
+            }
+            out.write("</tr>\n</thead>\n<tbody>\n");
+
+            for (SpecVersion version : m_versions) {
+                out.write("<tr id=\"" + escape(version.m_id) + "\" class=\"osgi-version lazy\">\n");
+                out.write("<td class=\"osgi-version-handle\"><img src=\"resources/images/folder_closed.png\" alt=\"handle\" class=\"handler\" /></td>\n");
+                out.write("<td class=\"osgi-version\">" + escape(version.m_name) + "</td>\n");
+                out.write("<td colspan=\"" + (m_vendors.size() + 1) + "\" class=\"osgi-sections\">&#160;</td>\n</tr>\n");
+                writeVersionChunk(version);
+            }
+
+            out.write("</tbody>\n</table>\n</body>\n</html>\n");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the top level sections of a version to data/&lt;version id&gt;.js, and a chunk for each of them that has
+     * subsections. The top level sections in the version chunk are marked lazy when they have subsections, their
+     * subsections are only in their own chunk.
+     */
+    private void writeVersionChunk(SpecVersion version) throws IOException {
+        writeChunk(version.m_id, version, version.m_sections, false);
+        for (SpecSection section : version.m_sections) {
+            if (!section.m_subsections.isEmpty()) {
+                writeChunk(version.m_id + "-" + section.m_id, version, section.m_subsections, true);
+            }
+        }
+    }
+
+    /**
+     * Writes sections to data/&lt;id&gt;.js, as a call to Section.addChunk(id, chunk). The results per vendor are in
+     * the same order as the vendor columns of the matrix, every result is an array of the outcome, the class name and
+     * the method name.
+     *
+     * @param nested Whether the subsections are written along with the sections, or only marked lazy.
+     */
+    private void writeChunk(String id, SpecVersion version, List<SpecSection> sections, boolean nested) throws IOException {
+        Writer out = openWriter(new File(new File(m_outputDir, DATA_DIR), id + ".js"));
+        try {
+            out.write("Section.addChunk(" + quote(id) + ", {\"version\":" + quote(version.m_id) + ",\"vendors\":[");
+            boolean first = true;
+            for (String vendor : m_vendors) {
+                out.write((first ? "" : ",") + quote(vendor));
+                first = false;
+            }
+            out.write("],\"sections\":");
+            writeChunkSections(out, version, sections, nested);
+            out.write("});\n");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void writeChunkSections(Writer out, SpecVersion version, List<SpecSection> sections, boolean nested) throws IOException {
+        out.write("[");
+        for (int i = 0; i < sections.size(); i++) {
+            SpecSection section = sections.get(i);
+            out.write(i == 0 ? "\n{" : ",\n{");
+            out.write("\"id\":" + quote(section.m_id) + ",\"number\":" + quote(section.m_number) + ",\"name\":" + quote(section.m_name) + ",\"results\":[");
+            Map<String, List<CaseResult>> results = m_matrix.get(getMatrixKey(version.m_name, section.m_number));
+            boolean firstVendor = true;
+            for (String vendor : m_vendors) {
+                out.write(firstVendor ? "[" : ",[");
+                firstVendor = false;
+                List<CaseResult> cases = results == null ? null : results.get(vendor);
+                if (cases != null) {
+                    boolean firstCase = true;
+                    for (CaseResult result : sortByOutcome(cases)) {
+                        out.write((firstCase ? "[" : ",[") + result.m_outcome + "," + quote(result.m_className) + "," + quote(result.m_methodName) + "]");
+                        firstCase = false;
+                    }
+                }
+                out.write("]");
+            }
+            if (nested) {
+                out.write("],\"sections\":");
+                writeChunkSections(out, version, section.m_subsections, true);
+            }
+            else {
+                out.write("],\"lazy\":" + !section.m_subsections.isEmpty() + ",\"sections\":[]");
+            }
+            out.write("}");
+        }
+        out.write("]");
+    }
+
+    /**
+     * Sorts the results so errors come first and successes last.
+     */
+    private static List<CaseResult> sortByOutcome(List<CaseResult> cases) {
+        List<CaseResult> sorted = new ArrayList<CaseResult>(cases);
+        Collections.sort(sorted, new Comparator<CaseResult>() {
+            public int compare(CaseResult c1, CaseResult c2) {
+                return c2.m_outcome - c1.m_outcome;
+            }
+        });
+        return sorted;
+    }
+
+    private static String getMatrixKey(String version, String sectionNumber) {
+        return version + " " + sectionNumber;
+    }
+
+    private void addToMatrix(CaseResult result, String version, String sectionNumber) {
+        String key = getMatrixKey(version, sectionNumber);
+        Map<String, List<CaseResult>> vendors = m_matrix.get(key);
+        if (vendors == null) {
+            vendors = new HashMap<String, List<CaseResult>>();
+            m_matrix.put(key, vendors);
+        }
+        List<CaseResult> cases = vendors.get(result.m_vendor);
+        if (cases == null) {
+            cases = new ArrayList<CaseResult>();
+            vendors.put(result.m_vendor, cases);
+        }
+        cases.add(result);
+    }
+
+    /**
+     * Writes the details page of a single testsuite.
+     */
+    private void writeDetails(String suiteName, List<CaseDetails> cases) throws IOException {
+        File detailsDir = new File(m_outputDir, DETAILS_DIR);
+        detailsDir.mkdirs();
+        Writer out = openWriter(new File(detailsDir, suiteName + ".html"));
+        try {
+            out.write("<html>\n<head>\n<title>" + escape(suiteName) + "</title>\n");
+            out.write("<link rel=\"stylesheet\" href=\"../resources/style/reset.css\" type=\"text/css\" />\n");
+            out.write("<link rel=\"stylesheet\" href=\"../resources/style/details.css\" type=\"text/css\" />\n");
+            out.write("</head>\n<body>\n<h1>" + escape(suiteName) + "</h1>\n");
+            out.write("<p><a href=\"../index.html\">Result matrix</a></p>\n");
+            out.write("<table cellspacing=\"0\" cellpadding=\"0\" class=\"details\">\n");
+            out.write("<tr><th>Name</th><th>OSGi specification</th><th>OSGi framework</th><th>Status</th><th>Type</th><th>Time(s)</th></tr>\n");
+            for (CaseDetails details : cases) {
+                CaseResult result = details.m_result;
+                out.write("<tr class=\"" + OUTCOME_NAMES[result.m_outcome] + "\">\n");
+                out.write("<td><a name=\"" + escape(result.m_methodName + "_" + result.m_vendor) + "\"></a>"
+                    + escape(result.m_methodName) + "</td>\n");
+                out.write("<td>");
+                for (Map.Entry<String, List<String>> spec : details.m_specs.entrySet()) {
+                    out.write("<div><strong>" + escape(spec.getKey()) + "</strong>");
+                    for (String section : spec.getValue()) {
+                        out.write(" " + escape(section));
+                    }
+                    out.write("</div>");
+                }
+                out.write("</td>\n");
+                out.write("<td>" + escape(result.m_vendor) + "</td>\n");
+                out.write("<td>" + OUTCOME_NAMES[result.m_outcome] + "</td>\n");
+                out.write("<td>");
+                if (result.m_outcome != OUTCOME_SUCCESS) {
+                    out.write(escape(details.m_message == null ? "N/A" : details.m_message));
+                    out.write("<pre>" + escape(details.m_trace) + "</pre>");
+                }
+                out.write("</td>\n");
+                out.write("<td>" + escape(details.m_time) + "</td>\n");
+                out.write("</tr>\n");
+            }
+            out.write("</table>\n</body>\n</html>\n");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes lifecycle.html, with the number of operations, the mean, some percentiles and the maximum latency
+     * of every lifecycle operation per vendor.
+     */
+    private void writeLifecycle() throws IOException {
+        Writer out = openWriter(new File(m_outputDir, LIFECYCLE_PAGE));
+        try {
+            out.write("<html>\n<head>\n<title>Lifecycle latencies</title>\n");
+            out.write("<link rel=\"stylesheet\" href=\"resources/style/reset.css\" type=\"text/css\" />\n");
+            out.write("<link rel=\"stylesheet\" href=\"resources/style/details.css\" type=\"text/css\" />\n");
+            out.write("</head>\n<body>\n<h1>Lifecycle latencies</h1>\n");
+            out.write("<p><a href=\"index.html\">Result matrix</a></p>\n");
+            out.write("<table cellspacing=\"0\" cellpadding=\"0\" class=\"details\">\n");
+            out.write("<tr><th>Operation</th><th>OSGi framework</th><th>Count</th><th>Mean (&#181;s)</th><th>50% (&#181;s)</th>"
+                + "<th>90% (&#181;s)</th><th>99% (&#181;s)</th><th>Max (&#181;s)</th></tr>\n");
+            for (Map.Entry<String, Map<String, LatencyHistogram>> operation : m_histograms.entrySet()) {
+                for (String vendor : m_vendors) {
+                    LatencyHistogram histogram = operation.getValue().get(vendor);
+                    if (histogram == null) {
+                        continue;
+                    }
+                    out.write("<tr>\n<td>" + escape(operation.getKey()) + "</td>\n<td>" + escape(vendor) + "</td>\n");
+                    out.write("<td>" + histogram.getCount() + "</td>\n");
+                    out.write("<td>" + toMicros(histogram.getMean()) + "</td>\n");
+                    out.write("<td>" + toMicros(histogram.getPercentile(50)) + "</td>\n");
+                    out.write("<td>" + toMicros(histogram.getPercentile(90)) + "</td>\n");
+                    out.write("<td>" + toMicros(histogram.getPercentile(99)) + "</td>\n");
+                    out.write("<td>" + toMicros(histogram.getMax()) + "</td>\n</tr>\n");
+                }
+            }
+            out.write("</table>\n</body>\n</html>\n");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static String toMicros(double nanos) {
+        return String.format("%.1f", Double.valueOf(nanos / NANOS_PER_MICRO));
+    }
+
+    private void addHistogram(String operation, String vendor, long count, long total, long max, long[] buckets) {
+        Map<String, LatencyHistogram> vendors = m_histograms.get(operation);
+        if (vendors == null) {
+            vendors = new HashMap<String, LatencyHistogram>();
+            m_histograms.put(operation, vendors);
+        }
+        LatencyHistogram histogram = vendors.get(vendor);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            vendors.put(vendor, histogram);
+        }
+        histogram.merge(count, total, max, buckets);
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Writer openWriter(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+    }
+
+    static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '&': escaped.append("&amp;"); break;
+                case '"': escaped.append("&quot;"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Returns the text as a JavaScript string literal.
+     */
+    static String quote(String text) {
+        if (text == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if ((c < 0x20) || (c == 0x2028) || (c == 0x2029)) {
+                        quoted.append(String.format("\\u%04x", Integer.valueOf(c)));
+                    }
+                    else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Reads the versions and their (nested) sections from osgi-specifications.xml.
+     */
+    private static List<SpecVersion> readSpecifications(File specificationFile) throws IOException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(specificationFile);
+        }
+        catch (Exception e) {
+            throw new IOException("Unable to read specifications from " + specificationFile + ": " + e.getMessage());
+        }
+
+        List<SpecVersion> versions = new ArrayList<SpecVersion>();
+        NodeList versionElements = document.getDocumentElement().getElementsByTagName(SPEC_ELEMENT_VERSION);
+        for (int i = 0; i < versionElements.getLength(); i++) {
+            Element versionElement = (Element) versionElements.item(i);
+            SpecVersion version = new SpecVersion(versionElement.getAttribute("id"), versionElement.getAttribute("name"));
+            readSections(versionElement, version.m_sections);
+            versions.add(version);
+        }
+        return versions;
+    }
+
+    private static void readSections(Element parent, List<SpecSection> sections) {
+        for (Node sectionsNode = parent.getFirstChild(); sectionsNode != null; sectionsNode = sectionsNode.getNextSibling()) {
+            if (SPEC_ELEMENT_SECTIONS.equals(sectionsNode.getNodeName())) {
+                for (Node node = sectionsNode.getFirstChild(); node != null; node = node.getNextSibling()) {
+                    if (SPEC_ELEMENT_SECTION.equals(node.getNodeName())) {
+                        Element sectionElement = (Element) node;
+                        SpecSection section = new SpecSection(sectionElement.getAttribute("id"),
+                            sectionElement.getAttribute("number"), sectionElement.getAttribute("name"));
+                        readSections(sectionElement, section.m_subsections);
+                        sections.add(section);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams a single result file. Only the text of sections, failures and errors is buffered.
+     */
+    private class ResultHandler extends DefaultHandler {
+        private String m_suiteName;
+        private final List<CaseDetails> m_cases = new ArrayList<CaseDetails>();
+
+        private CaseDetails m_case;
+        private String m_specVersion;
+        private StringBuilder m_text;
+        private String m_histogram;
+        private Attributes m_histogramAttributes;
+        private long[] m_buckets;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (ELEMENT_TESTSUITE.equals(qName)) {
+                m_suiteName = attributes.getValue(ATTR_NAME);
+            }
+            else if (ELEMENT_TESTCASE.equals(qName)) {
+                m_case = new CaseDetails(new CaseResult(attributes.getValue(ATTR_CLASSNAME),
+                    attributes.getValue(ATTR_NAME), attributes.getValue(ATTR_OSGI_VENDOR_NAME)));
+                m_case.m_time = attributes.getValue(ATTR_TIME);
+            }
+            else if (m_case != null) {
+                if (ELEMENT_OSGI_SPEC.equals(qName)) {
+                    m_specVersion = attributes.getValue(ATTR_VERSION);
+                }
+                else if (ELEMENT_SECTION.equals(qName)) {
+                    m_text = new StringBuilder();
+                }
+                else if (ELEMENT_FAILURE.equals(qName) || ELEMENT_ERROR.equals(qName)) {
+                    m_case.m_result.m_outcome = ELEMENT_ERROR.equals(qName) ? OUTCOME_ERROR : OUTCOME_FAILURE;
+                    m_case.m_message = attributes.getValue(ATTR_MESSAGE);
+                    m_text = new StringBuilder();
+                }
+                else if (ELEMENT_HISTOGRAM.equals(qName)) {
+                    m_histogram = attributes.getValue(ATTR_NAME);
+                    m_histogramAttributes = new AttributesImpl(attributes);
+                    m_buckets = new long[LatencyHistogram.BUCKETS];
+                }
+                else if (ELEMENT_BUCKET.equals(qName) && (m_buckets != null)) {
+                    try {
+                        m_buckets[Integer.parseInt(attributes.getValue(ATTR_INDEX))] += parseLong(attributes.getValue(ATTR_COUNT));
+                    }
+                    catch (RuntimeException ignore) {
+                        // Not a bucket of a LatencyHistogram.
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (m_text != null) {
+                m_text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if ((m_case != null) && (m_text != null)) {
+                if (ELEMENT_SECTION.equals(qName) && (m_specVersion != null)) {
+                    m_case.addSection(m_specVersion, m_text.toString().trim());
+                }
+                else if (ELEMENT_FAILURE.equals(qName) || ELEMENT_ERROR.equals(qName)) {
+                    m_case.m_trace = m_text.toString();
+                }
+                m_text = null;
+            }
+
+            if (ELEMENT_TESTCASE.equals(qName) && (m_case != null)) {
+                CaseResult result = m_case.m_result;
+                m_vendors.add(result.m_vendor);
+                for (Map.Entry<String, List<String>> spec : m_case.m_specs.entrySet()) {
+                    for (String section : spec.getValue()) {
+                        addToMatrix(result, spec.getKey(), section);
+                    }
+                }
+                m_cases.add(m_case);
+                m_case = null;
+            }
+            else if (ELEMENT_OSGI_SPEC.equals(qName)) {
+                m_specVersion = null;
+            }
+            else if (ELEMENT_HISTOGRAM.equals(qName) && (m_case != null) && (m_histogram != null)) {
+                addHistogram(m_histogram, m_case.m_result.m_vendor, parseLong(m_histogramAttributes.getValue(ATTR_COUNT)),
+                    parseLong(m_histogramAttributes.getValue(ATTR_TOTAL)), parseLong(m_histogramAttributes.getValue(ATTR_MAX)), m_buckets);
+                m_histogram = null;
+                m_histogramAttributes = null;
+                m_buckets = null;
+            }
+            else if (ELEMENT_TESTSUITE.equals(qName) && (m_suiteName != null)) {
+                try {
+                    writeDetails(m_suiteName, m_cases);
+                }
+                catch (IOException e) {
+                    throw new SAXException(e);
+                }
+                m_cases.clear();
+            }
+        }
+    }
+
+    /**
+     * The outcome of a testcase, as kept in the matrix.
+     */
+    private static class CaseResult {
+        private final String m_className;
+        private final String m_methodName;
+        private final String m_vendor;
+        private byte m_outcome = OUTCOME_SUCCESS;
+
+        CaseResult(String className, String methodName, String vendor) {
+            m_className = className;
+            m_methodName = methodName;
+            m_vendor = vendor;
+        }
+    }
+
+    /**
+     * All information about a testcase, as kept while its testsuite is read.
+     */
+    private static class CaseDetails {
+        private final CaseResult m_result;
+        private final Map<String, List<String>> m_specs = new LinkedHashMap<String, List<String>>();
+        private String m_time;
+        private String m_message;
+        private String m_trace;
+
+        CaseDetails(CaseResult result) {
+            m_result = result;
+        }
+
+        void addSection(String version, String section) {
+            List<String> sections = m_specs.get(version);
+            if (sections == null) {
+                sections = new ArrayList<String>();
+                m_specs.put(version, sections);
+            }
+            sections.add(section);
+        }
+    }
+
+    private static class SpecVersion {
+        private final String m_id;
+        private final String m_name;
+        private final List<SpecSection> m_sections = new ArrayList<SpecSection>();
+
+        SpecVersion(String id, String name) {
+            m_id = id;
+            m_name = name;
+        }
+    }
+
+    private static class SpecSection {
+        private final String m_id;
+        private final String m_number;
+        private final String m_name;
+        private final List<SpecSection> m_subsections = new ArrayList<SpecSection>();
+
+        SpecSection(String id, String number, String name) {
+            m_id = id;
+            m_number = number;
+            m_name = name;
+        }
+    }
+}
@@ -19,19 +19,20 @@
 package net.luminis.osgitest.results;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -41,8 +42,11 @@ import javax.xml.parsers.DocumentBuilderFactory;
 
 import junit.framework.AssertionFailedError;
 import junit.framework.Test;
-import net.luminis.osgitest.testhelper.OSGiSpec;
-import net.luminis.osgitest.testhelper.OSGiVersionSpecs;
+import net.luminis.osgitest.core.OSGiSpecIndex;
+import net.luminis.osgitest.core.RemoteCallRecorder;
+import net.luminis.osgitest.core.TestPhaseTimer;
+import net.luminis.osgitest.testhelper.LatencyHistogram;
+import net.luminis.osgitest.testhelper.TestMeasurements;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.taskdefs.optional.junit.JUnitResultFormatter;
@@ -55,6 +59,9 @@ import org.apache.tools.ant.util.DateUtils;
 import org.apache.tools.ant.util.FileUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
 
 /**
@@ -67,6 +74,7 @@ import org.w3c.dom.Text;
 public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstants {
 
     private static final double ONE_SECOND = 1000.0;
+    private static final double ONE_SECOND_IN_NANOS = 1000000000.0;
 
     /*
      * Constants needed for the xml output. Like node names and attribute names.
@@ -78,12 +86,37 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
     private static final String ATTR_OSGI_SPEC_VERSION = "version";
     private static final String ELEMENT_OSGI_SPEC_SECTIONS = "sections";
     private static final String ELEMENT_OSGI_SPEC_SECTION = "section";
+    private static final String ATTR_PHASE_TIME_PREFIX = "time-";
+    private static final String ELEMENT_REMOTE_CALLS = "remote-calls";
+    private static final String ELEMENT_REMOTE_CALL = "call";
+    private static final String ATTR_COUNT = "count";
+    private static final String ELEMENT_RESULTS = "results";
+    private static final String ELEMENT_RESULT = "result";
+    private static final String ATTR_SERIES = "series";
+    private static final String ATTR_X = "x";
+    private static final String ATTR_METRIC = "metric";
+    private static final String ATTR_UNIT = "unit";
+    private static final String ELEMENT_HISTOGRAMS = "histograms";
+    private static final String ELEMENT_HISTOGRAM = "histogram";
+    private static final String ELEMENT_BUCKET = "bucket";
+    private static final String ATTR_TOTAL = "total";
+    private static final String ATTR_MAX = "max";
+    private static final String ATTR_MEAN = "mean";
+    private static final String ATTR_INDEX = "index";
+    private static final String ATTR_UPPER = "upper";
+    private static final String UNIT_NANOS = "ns";
+    private static final double[] PERCENTILES = {50, 90, 99};
 
     /*
      * constant for unnnamed testsuites/cases
      */
     private static final String UNKNOWN = "unknown";
 
+    /**
+     * Run id used for the history when it isn't passed by the {@link net.luminis.osgitest.ant.OSGiTestTask}.
+     */
+    private static final long DEFAULT_RUN_ID = System.currentTimeMillis();
+
     private static DocumentBuilder getDocumentBuilder() {
         try {
             return DocumentBuilderFactory.newInstance().newDocumentBuilder();
@@ -109,13 +142,17 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
      */
     private final Hashtable<Test, Test> m_failedTests = new Hashtable<Test, Test>();
     /**
-     * Timing helper.
+     * Timing helper, values are taken from {@link System#nanoTime()}.
      */
     private final Hashtable<Test, Long> m_testStarts = new Hashtable<Test, Long>();
     /**
      * Where to write the log to.
      */
     private OutputStream m_out;
+    /**
+     * The OSGi specification sections covered by the test methods, loaded when first needed.
+     */
+    private OSGiSpecIndex m_specIndex;
 
     /** No arg constructor. */
     public PaxExamResultFormatter() {
@@ -191,6 +228,7 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
         m_rootElement.setAttribute(ATTR_FAILURES, Long.toString(suite.failureCount()));
         m_rootElement.setAttribute(ATTR_ERRORS, Long.toString(suite.errorCount()));
         m_rootElement.setAttribute(ATTR_TIME, Double.toString(suite.getRunTime() / ONE_SECOND));
+        appendHistory();
         if (m_out != null) {
             Writer wri = null;
             try {
@@ -208,6 +246,71 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
         }
     }
 
+    /**
+     * Appends the results of the testsuite to the {@link ResultHistory} named by the system property
+     * {@link ResultHistory#PROP_HISTORY_FILE}. Does nothing if the property isn't set.
+     *
+     * The entries are created from the testcase elements, so the history contains exactly what is written
+     * in the XML output.
+     */
+    private void appendHistory() {
+        String historyFile = System.getProperty(ResultHistory.PROP_HISTORY_FILE);
+        if (historyFile == null) {
+            return;
+        }
+
+        long runId = Long.getLong(ResultHistory.PROP_RUN_ID, DEFAULT_RUN_ID).longValue();
+        List<ResultHistory.Entry> entries = new ArrayList<ResultHistory.Entry>();
+        NodeList testElements = m_rootElement.getElementsByTagName(TESTCASE);
+        for (int i = 0; i < testElements.getLength(); i++) {
+            Element testElement = (Element) testElements.item(i);
+
+            byte outcome = ResultHistory.OUTCOME_SUCCESS;
+            if (testElement.getElementsByTagName(ERROR).getLength() > 0) {
+                outcome = ResultHistory.OUTCOME_ERROR;
+            }
+            else if (testElement.getElementsByTagName(FAILURE).getLength() > 0) {
+                outcome = ResultHistory.OUTCOME_FAILURE;
+            }
+
+            ResultHistory.Entry entry = new ResultHistory.Entry(runId,
+                testElement.getAttribute(ATTR_CLASSNAME),
+                testElement.getAttribute(ATTR_NAME),
+                testElement.getAttribute(ATTR_OSGI_VENDOR_NAME),
+                outcome,
+                toNanos(testElement.getAttribute(ATTR_TIME)));
+
+            NamedNodeMap attributes = testElement.getAttributes();
+            for (int j = 0; j < attributes.getLength(); j++) {
+                Node attribute = attributes.item(j);
+                if (attribute.getNodeName().startsWith(ATTR_PHASE_TIME_PREFIX)) {
+                    entry.putPhase(attribute.getNodeName().substring(ATTR_PHASE_TIME_PREFIX.length()),
+                        toNanos(attribute.getNodeValue()));
+                }
+            }
+            entries.add(entry);
+        }
+
+        try {
+            new ResultHistory(new File(historyFile)).append(entries);
+        }
+        catch (IOException e) {
+            /*
+             * The history is a convenience, failing to write it shouldn't break the test run.
+             */
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private static long toNanos(String seconds) {
+        try {
+            return (long) (Double.parseDouble(seconds) * ONE_SECOND_IN_NANOS);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * Interface TestListener.
      *
@@ -215,7 +318,7 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
      * @param t the test.
      */
     public void startTest(Test t) {
-        m_testStarts.put(t, Long.valueOf(System.currentTimeMillis()));
+        m_testStarts.put(t, Long.valueOf(System.nanoTime()));
     }
 
     /**
@@ -234,6 +337,7 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
             currentTest = m_doc.createElement(TESTCASE);
 
             addOSGiInfo(currentTest, test);
+            addPhaseTimes(currentTest, test);
 
             /*
              * a TestSuite can contain Tests from multiple classes,
@@ -248,7 +352,125 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
         }
 
         Long l = m_testStarts.get(test);
-        currentTest.setAttribute(ATTR_TIME, Double.toString((System.currentTimeMillis() - l.longValue()) / ONE_SECOND));
+        currentTest.setAttribute(ATTR_TIME, Double.toString((System.nanoTime() - l.longValue()) / ONE_SECOND_IN_NANOS));
+    }
+
+    /**
+     * Adds the time spent in every phase of the test (starting the container, setup, the test itself, etc.)
+     * as attributes to the testElement. The attribute names are the phase names prefixed by "time-", the values
+     * are in seconds like the time attribute.
+     *
+     * @see TestPhaseTimer
+     * @param testElement
+     * @param test
+     */
+    private void addPhaseTimes(Element testElement, Test test) {
+        TestPhaseTimer timer = TestPhaseTimer.take(JUnitVersionHelper.getTestCaseClassName(test),
+            JUnitVersionHelper.getTestCaseName(test));
+
+        if (timer != null) {
+            for (Map.Entry<String, Long> phase : timer.getPhases().entrySet()) {
+                testElement.setAttribute(ATTR_PHASE_TIME_PREFIX + phase.getKey(),
+                    Double.toString(phase.getValue().longValue() / ONE_SECOND_IN_NANOS));
+            }
+            addRemoteCalls(testElement, timer.getRemoteCalls());
+            addResults(testElement, timer.getResults());
+            addHistograms(testElement, timer.getHistograms());
+        }
+    }
+
+    /**
+     * Adds the benchmark results of the test as a results element to the testElement, with a result element
+     * per measured value.
+     *
+     * @see TestMeasurements#putResult(String, String, String, double, String)
+     * @param testElement
+     * @param results
+     */
+    private void addResults(Element testElement, List<TestMeasurements.Result> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+
+        Element resultsElement = m_doc.createElement(ELEMENT_RESULTS);
+        for (TestMeasurements.Result result : results) {
+            Element resultElement = m_doc.createElement(ELEMENT_RESULT);
+            resultElement.setAttribute(ATTR_SERIES, result.getSeries());
+            resultElement.setAttribute(ATTR_X, result.getX());
+            resultElement.setAttribute(ATTR_METRIC, result.getMetric());
+            resultElement.setAttribute(ATTR_VALUE, Double.toString(result.getValue()));
+            resultElement.setAttribute(ATTR_UNIT, result.getUnit());
+            resultsElement.appendChild(resultElement);
+        }
+        testElement.appendChild(resultsElement);
+    }
+
+    /**
+     * Adds the latency histograms of the test as a histograms element to the testElement. Every histogram element
+     * has the count, total, maximum, mean and some percentiles (eg: p99) of the latencies, and a bucket element per
+     * bucket that isn't empty. All latencies are in nanoseconds.
+     *
+     * @see LatencyHistogram
+     * @param testElement
+     * @param histograms
+     */
+    private void addHistograms(Element testElement, Map<String, LatencyHistogram> histograms) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+
+        Element histogramsElement = m_doc.createElement(ELEMENT_HISTOGRAMS);
+        histogramsElement.setAttribute(ATTR_UNIT, UNIT_NANOS);
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            Element histogramElement = m_doc.createElement(ELEMENT_HISTOGRAM);
+            histogramElement.setAttribute(ATTR_NAME, entry.getKey());
+            histogramElement.setAttribute(ATTR_COUNT, Long.toString(histogram.getCount()));
+            histogramElement.setAttribute(ATTR_TOTAL, Long.toString(histogram.getTotal()));
+            histogramElement.setAttribute(ATTR_MAX, Long.toString(histogram.getMax()));
+            histogramElement.setAttribute(ATTR_MEAN, Double.toString(histogram.getMean()));
+            for (double percentile : PERCENTILES) {
+                histogramElement.setAttribute("p" + (int) percentile, Long.toString(histogram.getPercentile(percentile)));
+            }
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                long count = histogram.getBucketCount(i);
+                if (count > 0) {
+                    Element bucketElement = m_doc.createElement(ELEMENT_BUCKET);
+                    bucketElement.setAttribute(ATTR_INDEX, Integer.toString(i));
+                    bucketElement.setAttribute(ATTR_UPPER, Long.toString(LatencyHistogram.getUpperBound(i)));
+                    bucketElement.setAttribute(ATTR_COUNT, Long.toString(count));
+                    histogramElement.appendChild(bucketElement);
+                }
+            }
+            histogramsElement.appendChild(histogramElement);
+        }
+        testElement.appendChild(histogramsElement);
+    }
+
+    /**
+     * Adds the calls made to the test container as a remote-calls element to the testElement, with the total
+     * number of calls and their time in seconds, and a call element per kind of call.
+     *
+     * @see RemoteCallRecorder
+     * @param testElement
+     * @param remoteCalls
+     */
+    private void addRemoteCalls(Element testElement, RemoteCallRecorder remoteCalls) {
+        if (remoteCalls.getCount() == 0) {
+            return;
+        }
+
+        Element remoteCallsElement = m_doc.createElement(ELEMENT_REMOTE_CALLS);
+        remoteCallsElement.setAttribute(ATTR_COUNT, Long.toString(remoteCalls.getCount()));
+        remoteCallsElement.setAttribute(ATTR_TIME, Double.toString(remoteCalls.getNanos() / ONE_SECOND_IN_NANOS));
+        for (Map.Entry<String, long[]> call : remoteCalls.getCalls().entrySet()) {
+            Element callElement = m_doc.createElement(ELEMENT_REMOTE_CALL);
+            callElement.setAttribute(ATTR_NAME, call.getKey());
+            callElement.setAttribute(ATTR_COUNT, Long.toString(call.getValue()[0]));
+            callElement.setAttribute(ATTR_TIME, Double.toString(call.getValue()[1] / ONE_SECOND_IN_NANOS));
+            remoteCallsElement.appendChild(callElement);
+        }
+        testElement.appendChild(remoteCallsElement);
     }
 
     /**
@@ -301,13 +523,13 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
 
                     String testcaseClassName = JUnitVersionHelper.getTestCaseClassName(test);
 
-                    List<OSGiSpec> osgiSpecs = getOsgiSpecs(testcaseClassName, methodName);
+                    Map<String, List<String>> osgiSpecs = getOsgiSpecs(testcaseClassName, methodName);
                     Element osgiVersionSpecElements = m_doc.createElement(ELEMENT_OSGI_SPECS);
-                    for (OSGiSpec osgiSpec : osgiSpecs) {
+                    for (Map.Entry<String, List<String>> osgiSpec : osgiSpecs.entrySet()) {
                         Element osgiVersionSpecElement = m_doc.createElement(ELEMENT_OSGI_SPEC);
-                        osgiVersionSpecElement.setAttribute(ATTR_OSGI_SPEC_VERSION, osgiSpec.version());
+                        osgiVersionSpecElement.setAttribute(ATTR_OSGI_SPEC_VERSION, osgiSpec.getKey());
 
-                        String[] sections = osgiSpec.sections();
+                        List<String> sections = osgiSpec.getValue();
                         Element osgiSectionsElement = m_doc.createElement(ELEMENT_OSGI_SPEC_SECTIONS);
                         for (String section : sections) {
                             Element osgiSectionElement = m_doc.createElement(ELEMENT_OSGI_SPEC_SECTION);
@@ -332,42 +554,49 @@ public class PaxExamResultFormatter implements JUnitResultFormatter, XMLConstant
     }
 
     /**
-     * Returns a list of OSGispec annotations of a specific method. Used to provide osgi specification
-     * information in the xml testcase nodes.
+     * Returns the OSGi specification sections per version covered by a specific method. Used to provide osgi
+     * specification information in the xml testcase nodes.
+     *
+     * The sections are looked up in the {@link OSGiSpecIndex} generated at compile time, including the ones of
+     * inherited methods. Only the methods of classes that aren't in the index (because they were compiled without
+     * the {@link net.luminis.osgitest.core.OSGiSpecProcessor}) are inspected with reflection.
      *
-     * If no annotations are found, the returned list will be empty.
-     * {@link OSGiVersionSpecs} takes precedence over {@link OSGiSpec} if the method
-     * contains both annotations.
+     * If no sections are found, the returned map will be empty.
      *
      * @param testcaseClassName
      * @param methodName
      * @return
      */
-    private List<OSGiSpec> getOsgiSpecs(String testcaseClassName, String methodName) {
-        List<OSGiSpec> osgiSpecs = new ArrayList<OSGiSpec>();
-        try {
+    private Map<String, List<String>> getOsgiSpecs(String testcaseClassName, String methodName) {
+        OSGiSpecIndex index = getSpecIndex();
+        if (index.containsClass(testcaseClassName)) {
+            return index.getSpecs(testcaseClassName, methodName);
+        }
 
+        try {
             Class<?> testClass = Class.forName(testcaseClassName);
-            Method testMethod = testClass.getMethod(methodName, new Class[0]);
-
-            OSGiVersionSpecs osgiVersionSpecs = testMethod.getAnnotation(OSGiVersionSpecs.class);
-            if (osgiVersionSpecs != null) {
-                osgiSpecs.addAll(Arrays.asList(osgiVersionSpecs.value()));
-            }
-            else {
-                OSGiSpec osgiSpec = testMethod.getAnnotation(OSGiSpec.class);
-                if (osgiSpec != null) {
-                    osgiSpecs.add(osgiSpec);
-                }
-            }
+            return OSGiSpecIndex.getSpecs(testClass.getMethod(methodName));
         }
         /**
          * If something goes wrong with reflection or so, results should still be
-         * formatted and returned. So error are ignored and an empty list is returned.
+         * formatted and returned. So error are ignored and an empty map is returned.
          */
-        catch (Throwable ignore) { }
+        catch (Throwable ignore) {
+            return Collections.emptyMap();
+        }
+    }
 
-        return osgiSpecs;
+    private OSGiSpecIndex getSpecIndex() {
+        if (m_specIndex == null) {
+            try {
+                m_specIndex = OSGiSpecIndex.load(getClass().getClassLoader());
+            }
+            catch (IOException e) {
+                // Fall back on reflection for all classes.
+                m_specIndex = new OSGiSpecIndex();
+            }
+        }
+        return m_specIndex;
     }
 
     /**
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.results;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import net.luminis.osgitest.core.RerunFilter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The outcome of a previous run, as written by the {@link PaxExamResultFormatter}.
+ *
+ * Used to rerun the failed tests first or only (see {@link RerunFilter}), and to merge the results of a run of
+ * only the failed tests back into the full result set.
+ */
+public class PreviousResults {
+
+    private static final String ELEMENT_TESTSUITE = "testsuite";
+    private static final String ELEMENT_TESTCASE = "testcase";
+    private static final String ELEMENT_FAILURE = "failure";
+    private static final String ELEMENT_ERROR = "error";
+    private static final String ATTR_NAME = "name";
+    private static final String ATTR_CLASSNAME = "classname";
+    private static final String ATTR_OSGI_VENDOR_NAME = "osgi-vendor-name";
+    private static final String ATTR_TESTS = "tests";
+    private static final String ATTR_FAILURES = "failures";
+    private static final String ATTR_ERRORS = "errors";
+    private static final String ATTR_TIME = "time";
+
+    /**
+     * Keys (see {@link RerunFilter#getKey(String, String, String)}) of the tests that failed or erred.
+     */
+    private final Set<String> m_failed = new LinkedHashSet<String>();
+    private final Set<String> m_failedClasses = new LinkedHashSet<String>();
+    /**
+     * Result file per testsuite.
+     */
+    private final Map<String, File> m_files = new HashMap<String, File>();
+
+    /**
+     * Reads all result files in a directory.
+     *
+     * @param resultDir The directory the {@link PaxExamResultFormatter} wrote its output to.
+     * @return
+     * @throws IOException If a result file can't be read.
+     */
+    public static PreviousResults read(File resultDir) throws IOException {
+        PreviousResults results = new PreviousResults();
+        File[] files = resultDir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".xml");
+            }
+        });
+        if (files == null) {
+            return results;
+        }
+
+        try {
+            SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+            for (File file : files) {
+                parser.reset();
+                parser.parse(file, results.new ResultHandler(file));
+            }
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException("Unable to read previous results from " + resultDir + ": " + e.getMessage());
+        }
+        return results;
+    }
+
+    /**
+     * Returns the keys of the tests that failed or erred.
+     *
+     * @return
+     */
+    public Set<String> getFailed() {
+        return Collections.unmodifiableSet(m_failed);
+    }
+
+    /**
+     * Returns the test classes with at least one test that failed or erred.
+     *
+     * @return
+     */
+    public Set<String> getFailedClasses() {
+        return Collections.unmodifiableSet(m_failedClasses);
+    }
+
+    /**
+     * Returns the result file of a testsuite.
+     *
+     * @param suiteName The name of the testsuite, the test class name.
+     * @return The file, or null if the testsuite isn't in the previous results.
+     */
+    public File getFile(String suiteName) {
+        return m_files.get(suiteName);
+    }
+
+    /**
+     * Merges the results of a rerun into the previous results of a testsuite. Testcases of the rerun replace the
+     * previous testcase of the same method on the same framework, and the totals of the testsuite are recalculated.
+     *
+     * @param previous The previous result file.
+     * @param rerun The result file of the rerun.
+     * @param target The file the merged results are written to, may be the previous or the rerun file.
+     * @throws IOException
+     */
+    public static void merge(File previous, File rerun, File target) throws IOException {
+        try {
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(previous);
+            Document rerunDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(rerun);
+            Element suite = document.getDocumentElement();
+
+            Map<String, Element> testcases = new LinkedHashMap<String, Element>();
+            Node insertBefore = null;
+            for (Node node = suite.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (ELEMENT_TESTCASE.equals(node.getNodeName())) {
+                    testcases.put(getTestcaseKey((Element) node), (Element) node);
+                    insertBefore = node.getNextSibling();
+                }
+            }
+
+            for (Node node = rerunDocument.getDocumentElement().getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (ELEMENT_TESTCASE.equals(node.getNodeName())) {
+                    Element testcase = (Element) document.importNode(node, true);
+                    Element replaced = testcases.put(getTestcaseKey(testcase), testcase);
+                    if (replaced != null) {
+                        suite.replaceChild(testcase, replaced);
+                    }
+                    else {
+                        suite.insertBefore(testcase, insertBefore);
+                    }
+                }
+            }
+
+            int failures = 0;
+            int errors = 0;
+            double time = 0;
+            for (Element testcase : testcases.values()) {
+                if (testcase.getElementsByTagName(ELEMENT_ERROR).getLength() > 0) {
+                    errors++;
+                }
+                else if (testcase.getElementsByTagName(ELEMENT_FAILURE).getLength() > 0) {
+                    failures++;
+                }
+                try {
+                    time += Double.parseDouble(testcase.getAttribute(ATTR_TIME));
+                }
+                catch (NumberFormatException ignore) { }
+            }
+            suite.setAttribute(ATTR_TESTS, Integer.toString(testcases.size()));
+            suite.setAttribute(ATTR_FAILURES, Integer.toString(failures));
+            suite.setAttribute(ATTR_ERRORS, Integer.toString(errors));
+            suite.setAttribute(ATTR_TIME, Double.toString(time));
+
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.transform(new DOMSource(document), new StreamResult(target));
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException("Unable to merge " + rerun + " into " + previous + ": " + e.getMessage());
+        }
+    }
+
+    private static String getTestcaseKey(Element testcase) {
+        return testcase.getAttribute(ATTR_NAME) + " [" + testcase.getAttribute(ATTR_OSGI_VENDOR_NAME) + "]";
+    }
+
+    /**
+     * Streams a single result file, only the testcases that failed or erred are kept.
+     */
+    private class ResultHandler extends DefaultHandler {
+        private final File m_file;
+        private String m_className;
+        private String m_methodName;
+        private String m_vendor;
+
+        ResultHandler(File file) {
+            m_file = file;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (ELEMENT_TESTSUITE.equals(qName)) {
+                m_files.put(attributes.getValue(ATTR_NAME), m_file);
+            }
+            else if (ELEMENT_TESTCASE.equals(qName)) {
+                m_className = attributes.getValue(ATTR_CLASSNAME);
+                m_methodName = attributes.getValue(ATTR_NAME);
+                m_vendor = attributes.getValue(ATTR_OSGI_VENDOR_NAME);
+            }
+            else if ((ELEMENT_FAILURE.equals(qName) || ELEMENT_ERROR.equals(qName)) && (m_className != null)) {
+                m_failed.add(RerunFilter.getKey(m_className, m_methodName, m_vendor));
+                m_failedClasses.add(m_className);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (ELEMENT_TESTCASE.equals(qName)) {
+                m_className = null;
+            }
+        }
+    }
+}
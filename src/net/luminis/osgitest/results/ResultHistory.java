@@ -0,0 +1,549 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.results;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of test results across runs, used to query trends like
+ * "the slowest 20 tests on felix/2.0.1 over the last 30 runs" without parsing the XML output of every run.
+ *
+ * The store is a binary file. Every test run appends one block of entries per testsuite. A block starts with a
+ * header holding its length and a checksum, followed by a table of the strings used in the block (class names,
+ * method names, vendors, phase names) and the entries referring to that table by index.
+ *
+ * A run that crashes while appending can leave a partial block at the end of the file. Reading stops at the first
+ * block that is short or doesn't match its checksum, and the next append truncates the file to the blocks before
+ * it, so the results of earlier runs stay readable.
+ *
+ * Usage from the command line:
+ * <pre>
+ * java net.luminis.osgitest.results.ResultHistory &lt;file&gt; runs
+ * java net.luminis.osgitest.results.ResultHistory &lt;file&gt; slowest &lt;vendor&gt; [count] [runs]
+ * java net.luminis.osgitest.results.ResultHistory &lt;file&gt; trend &lt;class#method&gt; &lt;vendor&gt; [runs]
+ * </pre>
+ *
+ * @see PaxExamResultFormatter
+ */
+public class ResultHistory {
+
+    /**
+     * Path to the history file the result formatter appends to. No history is kept if this isn't set.
+     */
+    public static final String PROP_HISTORY_FILE = "net.luminis.osgitest.history.file";
+    /**
+     * Identification of the test run, shared by all testsuites in the run.
+     */
+    public static final String PROP_RUN_ID = "net.luminis.osgitest.history.runid";
+
+    public static final byte OUTCOME_SUCCESS = 0;
+    public static final byte OUTCOME_FAILURE = 1;
+    public static final byte OUTCOME_ERROR = 2;
+
+    private static final int BLOCK_MAGIC = 0x4f534854; // OSHT
+    /**
+     * Size of the block header: the magic, the length and the checksum of the block.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    private final File m_file;
+
+    /**
+     * Creates a history backed by a file. The file is created when the first entries are appended.
+     *
+     * @param file
+     */
+    public ResultHistory(File file) {
+        m_file = file;
+    }
+
+    /**
+     * Appends entries to the history.
+     *
+     * @param entries The entries, normally the results of one testsuite.
+     * @throws IOException
+     */
+    public synchronized void append(Collection<Entry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        for (Entry entry : entries) {
+            index(strings, entry.getClassName());
+            index(strings, entry.getMethodName());
+            index(strings, entry.getVendor());
+            for (String phase : entry.getPhases().keySet()) {
+                index(strings, phase);
+            }
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(strings.size());
+        for (String string : strings.keySet()) {
+            out.writeUTF(string);
+        }
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeLong(entry.getRunId());
+            out.writeInt(strings.get(entry.getClassName()).intValue());
+            out.writeInt(strings.get(entry.getMethodName()).intValue());
+            out.writeInt(strings.get(entry.getVendor()).intValue());
+            out.writeByte(entry.getOutcome());
+            out.writeLong(entry.getDuration());
+            out.writeShort(entry.getPhases().size());
+            for (Map.Entry<String, Long> phase : entry.getPhases().entrySet()) {
+                out.writeInt(strings.get(phase.getKey()).intValue());
+                out.writeLong(phase.getValue().longValue());
+            }
+        }
+        out.flush();
+
+        CRC32 checksum = new CRC32();
+        checksum.update(payload.toByteArray());
+        ByteArrayOutputStream block = new ByteArrayOutputStream(HEADER_SIZE + payload.size());
+        DataOutputStream header = new DataOutputStream(block);
+        header.writeInt(BLOCK_MAGIC);
+        header.writeInt(payload.size());
+        header.writeLong(checksum.getValue());
+        payload.writeTo(header);
+        header.flush();
+
+        if (m_file.getParentFile() != null) {
+            m_file.getParentFile().mkdirs();
+        }
+        truncatePartialBlock();
+        FileOutputStream fileOut = new FileOutputStream(m_file, true);
+        try {
+            block.writeTo(fileOut);
+        }
+        finally {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * Removes a partial block a crashed run left at the end of the file, so the next block is appended
+     * after the last complete one.
+     */
+    private void truncatePartialBlock() throws IOException {
+        if (!m_file.isFile()) {
+            return;
+        }
+        long length = scan(null);
+        if (length < m_file.length()) {
+            RandomAccessFile file = new RandomAccessFile(m_file, "rw");
+            try {
+                file.setLength(length);
+            }
+            finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Reads all entries in the history, in the order they were appended. A partial block at the end of the file
+     * is ignored.
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (m_file.isFile()) {
+            scan(entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the complete blocks in the file.
+     *
+     * @param entries The list the entries are added to, null if only the length is needed.
+     * @return The length of the complete blocks at the start of the file.
+     */
+    private long scan(List<Entry> entries) throws IOException {
+        long length = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file), 64 * 1024));
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            while (readFully(in, header)) {
+                DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+                if (headerIn.readInt() != BLOCK_MAGIC) {
+                    break;
+                }
+                int size = headerIn.readInt();
+                long expected = headerIn.readLong();
+                if ((size < 0) || (size > m_file.length() - length - HEADER_SIZE)) {
+                    break;
+                }
+                byte[] payload = new byte[size];
+                if (!readFully(in, payload)) {
+                    break;
+                }
+                CRC32 checksum = new CRC32();
+                checksum.update(payload);
+                if (checksum.getValue() != expected) {
+                    break;
+                }
+                if (entries != null) {
+                    readBlock(new DataInputStream(new ByteArrayInputStream(payload)), entries);
+                }
+                length += HEADER_SIZE + size;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return length;
+    }
+
+    private static void readBlock(DataInputStream in, List<Entry> entries) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long runId = in.readLong();
+            Entry entry = new Entry(runId, strings[in.readInt()], strings[in.readInt()], strings[in.readInt()],
+                in.readByte(), in.readLong());
+            int phases = in.readShort();
+            for (int j = 0; j < phases; j++) {
+                entry.putPhase(strings[in.readInt()], in.readLong());
+            }
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Fills a buffer from a stream.
+     *
+     * @return false if the stream ended before the buffer was full.
+     */
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int count = in.read(buffer, read, buffer.length - read);
+            if (count < 0) {
+                return false;
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the ids of the runs in the history, oldest first.
+     *
+     * @return
+     * @throws IOException
+     */
+    public List<Long> getRuns() throws IOException {
+        return getRuns(read(), null);
+    }
+
+    /**
+     * Returns the slowest tests on a vendor, by mean duration over the last runs on that vendor.
+     *
+     * @param vendor The vendor and version, as reported by the formatter. (eg: felix/2.0.1)
+     * @param count The maximum number of tests to return.
+     * @param lastRuns The number of runs to take into account.
+     * @return The statistics of the slowest tests, slowest first.
+     * @throws IOException
+     */
+    public List<TestStatistics> getSlowest(String vendor, int count, int lastRuns) throws IOException {
+        List<Entry> entries = read();
+        Set<Long> runs = lastRuns(getRuns(entries, vendor), lastRuns);
+
+        Map<String, TestStatistics> statistics = new HashMap<String, TestStatistics>();
+        for (Entry entry : entries) {
+            if (vendor.equals(entry.getVendor()) && runs.contains(Long.valueOf(entry.getRunId()))) {
+                TestStatistics testStatistics = statistics.get(entry.getTestName());
+                if (testStatistics == null) {
+                    testStatistics = new TestStatistics(entry.getTestName(), vendor);
+                    statistics.put(entry.getTestName(), testStatistics);
+                }
+                testStatistics.add(entry);
+            }
+        }
+
+        List<TestStatistics> slowest = new ArrayList<TestStatistics>(statistics.values());
+        Collections.sort(slowest, new Comparator<TestStatistics>() {
+            public int compare(TestStatistics s1, TestStatistics s2) {
+                return Double.compare(s2.getMeanDuration(), s1.getMeanDuration());
+            }
+        });
+        return slowest.subList(0, Math.min(count, slowest.size()));
+    }
+
+    /**
+     * Returns the results of a single test on a vendor over the last runs.
+     *
+     * @param testName The test, as class#method.
+     * @param vendor The vendor and version, as reported by the formatter. (eg: felix/2.0.1)
+     * @param lastRuns The number of runs to take into account.
+     * @return The entries of the test, oldest first.
+     * @throws IOException
+     */
+    public List<Entry> getTrend(String testName, String vendor, int lastRuns) throws IOException {
+        List<Entry> entries = read();
+        Set<Long> runs = lastRuns(getRuns(entries, vendor), lastRuns);
+
+        List<Entry> trend = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (testName.equals(entry.getTestName()) && vendor.equals(entry.getVendor())
+                && runs.contains(Long.valueOf(entry.getRunId()))) {
+                trend.add(entry);
+            }
+        }
+        return trend;
+    }
+
+    private static List<Long> getRuns(List<Entry> entries, String vendor) {
+        Set<Long> runs = new LinkedHashSet<Long>();
+        for (Entry entry : entries) {
+            if ((vendor == null) || vendor.equals(entry.getVendor())) {
+                runs.add(Long.valueOf(entry.getRunId()));
+            }
+        }
+        return new ArrayList<Long>(runs);
+    }
+
+    private static Set<Long> lastRuns(List<Long> runs, int count) {
+        return new LinkedHashSet<Long>(runs.subList(Math.max(0, runs.size() - count), runs.size()));
+    }
+
+    private static void index(Map<String, Integer> strings, String string) {
+        if (!strings.containsKey(string)) {
+            strings.put(string, Integer.valueOf(strings.size()));
+        }
+    }
+
+    /**
+     * The result of a single test method on a single vendor in a single run.
+     */
+    public static class Entry {
+        private final long m_runId;
+        private final String m_className;
+        private final String m_methodName;
+        private final String m_vendor;
+        private final byte m_outcome;
+        private final long m_duration;
+        private final Map<String, Long> m_phases = new LinkedHashMap<String, Long>();
+
+        /**
+         * @param runId The id of the run.
+         * @param className The name of the test class.
+         * @param methodName The name of the test method.
+         * @param vendor The vendor and version. (eg: felix/2.0.1)
+         * @param outcome One of the OUTCOME_ constants of {@link ResultHistory}.
+         * @param duration Duration of the test in nanoseconds.
+         */
+        public Entry(long runId, String className, String methodName, String vendor, byte outcome, long duration) {
+            m_runId = runId;
+            m_className = className;
+            m_methodName = methodName;
+            m_vendor = vendor;
+            m_outcome = outcome;
+            m_duration = duration;
+        }
+
+        /**
+         * Adds the duration of a phase of the test.
+         *
+         * @param phase The name of the phase.
+         * @param duration The duration in nanoseconds.
+         * @return This object, allowing chaining.
+         */
+        public Entry putPhase(String phase, long duration) {
+            m_phases.put(phase, Long.valueOf(duration));
+            return this;
+        }
+
+        public long getRunId() {
+            return m_runId;
+        }
+
+        public String getClassName() {
+            return m_className;
+        }
+
+        public String getMethodName() {
+            return m_methodName;
+        }
+
+        /**
+         * @return The test, as class#method.
+         */
+        public String getTestName() {
+            return m_className + "#" + m_methodName;
+        }
+
+        public String getVendor() {
+            return m_vendor;
+        }
+
+        public byte getOutcome() {
+            return m_outcome;
+        }
+
+        public long getDuration() {
+            return m_duration;
+        }
+
+        public Map<String, Long> getPhases() {
+            return Collections.unmodifiableMap(m_phases);
+        }
+    }
+
+    /**
+     * Aggregated results of a single test method on a single vendor.
+     */
+    public static class TestStatistics {
+        private final String m_testName;
+        private final String m_vendor;
+        private int m_runs;
+        private int m_failures;
+        private long m_totalDuration;
+        private long m_maxDuration;
+
+        TestStatistics(String testName, String vendor) {
+            m_testName = testName;
+            m_vendor = vendor;
+        }
+
+        void add(Entry entry) {
+            m_runs++;
+            if (entry.getOutcome() != OUTCOME_SUCCESS) {
+                m_failures++;
+            }
+            m_totalDuration += entry.getDuration();
+            m_maxDuration = Math.max(m_maxDuration, entry.getDuration());
+        }
+
+        public String getTestName() {
+            return m_testName;
+        }
+
+        public String getVendor() {
+            return m_vendor;
+        }
+
+        public int getRuns() {
+            return m_runs;
+        }
+
+        /**
+         * @return The number of runs in which the test failed or had an error.
+         */
+        public int getFailures() {
+            return m_failures;
+        }
+
+        /**
+         * @return The mean duration in nanoseconds.
+         */
+        public double getMeanDuration() {
+            return m_runs == 0 ? 0 : (double) m_totalDuration / m_runs;
+        }
+
+        /**
+         * @return The maximum duration in nanoseconds.
+         */
+        public long getMaxDuration() {
+            return m_maxDuration;
+        }
+    }
+
+    /**
+     * Command line interface for querying a history file.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+
+        ResultHistory history = new ResultHistory(new File(args[0]));
+        String command = args[1];
+
+        if ("runs".equals(command)) {
+            for (Long run : history.getRuns()) {
+                System.out.println(run);
+            }
+        }
+        else if ("slowest".equals(command) && (args.length >= 3)) {
+            int count = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+            int runs = args.length > 4 ? Integer.parseInt(args[4]) : Integer.MAX_VALUE;
+            System.out.println(String.format("%12s %12s %6s %6s  %s", "mean (s)", "max (s)", "runs", "fails", "test"));
+            for (TestStatistics statistics : history.getSlowest(args[2], count, runs)) {
+                System.out.println(String.format("%12.3f %12.3f %6d %6d  %s",
+                    Double.valueOf(statistics.getMeanDuration() / 1e9),
+                    Double.valueOf(statistics.getMaxDuration() / 1e9),
+                    Integer.valueOf(statistics.getRuns()),
+                    Integer.valueOf(statistics.getFailures()),
+                    statistics.getTestName()));
+            }
+        }
+        else if ("trend".equals(command) && (args.length >= 4)) {
+            int runs = args.length > 4 ? Integer.parseInt(args[4]) : Integer.MAX_VALUE;
+            String[] outcomes = new String[] {"success", "failure", "error"};
+            for (Entry entry : history.getTrend(args[2], args[3], runs)) {
+                System.out.println(String.format("%d %-8s %10.3f %s", Long.valueOf(entry.getRunId()),
+                    outcomes[entry.getOutcome()], Double.valueOf(entry.getDuration() / 1e9), entry.getPhases()));
+            }
+        }
+        else {
+            usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ResultHistory <file> runs");
+        System.err.println("       ResultHistory <file> slowest <vendor> [count] [runs]");
+        System.err.println("       ResultHistory <file> trend <class#method> <vendor> [runs]");
+    }
+}
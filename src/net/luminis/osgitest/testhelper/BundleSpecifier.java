@@ -49,6 +49,11 @@ import org.osgi.framework.Constants;
  * can be chained.
  */
 public class BundleSpecifier {
+    /**
+     * Prefix of the synthetic packages packed by {@link #addSyntheticPackages(int, int)}.
+     */
+    public static final String SYNTHETIC_PACKAGE_PREFIX = "synthetic";
+
     private String m_name = "";
     private String m_fragmentHostname;
 
@@ -195,6 +200,120 @@ public class BundleSpecifier {
         return pack(name, toByteArrayOutputStream(is));
     }
 
+    /**
+     * Packs synthetic packages named synthetic.p0, synthetic.p1, and so on, see
+     * {@link #addSyntheticPackages(String, int, int)}. The packages are neither imported nor exported.
+     * @param count The number of packages.
+     * @param classesPerPackage The number of classes in each package.
+     * @return This object, allowing chaining.
+     */
+    public BundleSpecifier addSyntheticPackages(int count, int classesPerPackage) {
+        return addSyntheticPackages(SYNTHETIC_PACKAGE_PREFIX, count, classesPerPackage);
+    }
+
+    /**
+     * Packs synthetic packages, for bundles that need more classes than exist on the classpath.
+     * The class files are generated directly (see {@link #getSyntheticClassName(String, int, int)} for the
+     * names), the even classes in a package are empty interfaces, the odd ones are classes with a default
+     * constructor implementing the interface before them. The packages are neither imported nor exported.
+     * @param prefix The prefix of the package names (eg: synthetic gives synthetic.p0, synthetic.p1, ...)
+     * @param count The number of packages.
+     * @param classesPerPackage The number of classes in each package.
+     * @return This object, allowing chaining.
+     */
+    public BundleSpecifier addSyntheticPackages(String prefix, int count, int classesPerPackage) {
+        for (int i = 0; i < count; i++) {
+            addSyntheticPackage(getSyntheticPackageName(prefix, i), classesPerPackage);
+        }
+        return this;
+    }
+
+    /**
+     * Packs a single synthetic package with the given name, see {@link #addSyntheticPackages(String, int, int)}.
+     * The package is neither imported nor exported.
+     * @param packageName The name of the package (eg: synthetic.p0)
+     * @param classCount The number of classes in the package.
+     * @return This object, allowing chaining.
+     */
+    public BundleSpecifier addSyntheticPackage(String packageName, int classCount) {
+        for (int j = 0; j < classCount; j++) {
+            String name = getSyntheticClassName(packageName, j).replace('.', '/');
+            byte[] bytes;
+            if ((j % 2) == 0) {
+                bytes = SyntheticClasses.generateInterface(name);
+            }
+            else {
+                bytes = SyntheticClasses.generateClass(name, getSyntheticClassName(packageName, j - 1).replace('.', '/'));
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+            out.write(bytes, 0, bytes.length);
+            pack(name + ".class", out);
+        }
+        return this;
+    }
+
+    /**
+     * Packs synthetic packages and exports them, see {@link #addSyntheticPackages(String, int, int)}.
+     * @param prefix The prefix of the package names.
+     * @param count The number of packages.
+     * @param classesPerPackage The number of classes in each package.
+     * @param version The version to export the packages with, or null to export them without a version.
+     * @return This object, allowing chaining.
+     */
+    public BundleSpecifier exportSyntheticPackages(String prefix, int count, int classesPerPackage, String version) {
+        addSyntheticPackages(prefix, count, classesPerPackage);
+        for (int i = 0; i < count; i++) {
+            addExport(new ExportPackage(getSyntheticPackageName(prefix, i)).setVersion(version));
+        }
+        return this;
+    }
+
+    /**
+     * Imports synthetic packages that are exported by another bundle using
+     * {@link #exportSyntheticPackages(String, int, int, String)}.
+     * @param prefix The prefix of the package names.
+     * @param count The number of packages.
+     * @param versionRange The version range to import the packages with, or null to import them without a version.
+     * @return This object, allowing chaining.
+     */
+    public BundleSpecifier importSyntheticPackages(String prefix, int count, String versionRange) {
+        for (int i = 0; i < count; i++) {
+            addImport(new ImportPackage(getSyntheticPackageName(prefix, i)).setVersion(versionRange));
+        }
+        return this;
+    }
+
+    /**
+     * Returns the name of a synthetic package.
+     * @param prefix The prefix of the package names.
+     * @param packageIndex The index of the package.
+     * @return The package name (eg: synthetic.p3)
+     */
+    public static String getSyntheticPackageName(String prefix, int packageIndex) {
+        return prefix + ".p" + packageIndex;
+    }
+
+    /**
+     * Returns the name of a synthetic class, which can be used to load the class from the bundle.
+     * @param prefix The prefix of the package names.
+     * @param packageIndex The index of the package.
+     * @param classIndex The index of the class in the package.
+     * @return The class name (eg: synthetic.p3.I0 for an interface, synthetic.p3.C1 for a class)
+     */
+    public static String getSyntheticClassName(String prefix, int packageIndex, int classIndex) {
+        return getSyntheticClassName(getSyntheticPackageName(prefix, packageIndex), classIndex);
+    }
+
+    /**
+     * Returns the name of a class in a synthetic package, see {@link #getSyntheticClassName(String, int, int)}.
+     * @param packageName The name of the package.
+     * @param classIndex The index of the class in the package.
+     * @return The class name (eg: synthetic.p3.I0 for an interface, synthetic.p3.C1 for a class)
+     */
+    public static String getSyntheticClassName(String packageName, int classIndex) {
+        return packageName + ((classIndex % 2) == 0 ? ".I" : ".C") + classIndex;
+    }
+
     /**
      * Packs an object to be included in the jar. This method
      * is too generic for outside use; use the specific versions
@@ -411,7 +530,7 @@ public class BundleSpecifier {
      * (using a package, and specifying attributes including a version).
      */
     public abstract static class ImpExPackage {
-        private Package m_pack;
+        private String m_packName;
         private final Map<String, String> m_attributes = new HashMap<String, String>();
 
         /**
@@ -422,13 +541,32 @@ public class BundleSpecifier {
             setPackage(p);
         }
 
+        /**
+         * Creates a package dependency on a package that doesn't have to be available
+         * to the test itself (eg: a synthetic package).
+         * @param packageName The name of the package to depend on.
+         */
+        protected ImpExPackage(String packageName) {
+            setPackageName(packageName);
+        }
+
         /**
          * Sets the package for this dependency.
          * @param p The package to depend on.
          * @return This object, allowing chaining.
          */
         protected ImpExPackage setPackage(Package p) {
-            m_pack = p;
+            m_packName = (p == null) ? null : p.getName();
+            return this;
+        }
+
+        /**
+         * Sets the package for this dependency by name.
+         * @param packageName The name of the package to depend on.
+         * @return This object, allowing chaining.
+         */
+        protected ImpExPackage setPackageName(String packageName) {
+            m_packName = packageName;
             return this;
         }
 
@@ -461,7 +599,7 @@ public class BundleSpecifier {
          * @return The basic package statement.
          */
         protected String getStatement() {
-            StringBuilder statement = new StringBuilder(m_pack.getName());
+            StringBuilder statement = new StringBuilder(m_packName);
             if (m_attributes.size() > 0) {
                 statement.append("; " + generateMultiStatement(m_attributes));
             }
@@ -522,6 +660,14 @@ public class BundleSpecifier {
             super(p);
         }
 
+        /**
+         * Creates a package dependency by name.
+         * @param packageName The name of the package to depend on.
+         */
+        ImportPackage(String packageName) {
+            super(packageName);
+        }
+
         public ImportPackage setResolutionOptional(boolean optional) {
             m_resolutionOptional = optional;
             return this;
@@ -555,6 +701,16 @@ public class BundleSpecifier {
             return (ImportPackage) super.setPackage(p);
         }
 
+        /**
+         * Sets the package for this dependency by name.
+         * @param packageName The name of the package to depend on.
+         * @return This object, allowing chaining.
+         */
+        @Override
+        public ImportPackage setPackageName(String packageName) {
+            return (ImportPackage) super.setPackageName(packageName);
+        }
+
         /**
          * Sets the package version for this dependency.
          * @param version The package version to depend on.
@@ -593,6 +749,14 @@ public class BundleSpecifier {
             super(p);
         }
 
+        /**
+         * Creates a package dependency by name.
+         * @param packageName The name of the package to depend on.
+         */
+        ExportPackage(String packageName) {
+            super(packageName);
+        }
+
         /**
          * Adds a uses-dependency to this export.
          * @param p The package for 'uses:='
@@ -605,6 +769,18 @@ public class BundleSpecifier {
             return this;
         }
 
+        /**
+         * Adds a uses-dependency to this export by package name.
+         * @param packageName The name of the package for 'uses:='
+         * @return
+         */
+        public ExportPackage addUses(String packageName) {
+            if (packageName != null) {
+                m_uses.add(packageName);
+            }
+            return this;
+        }
+
         /**
          * Adds an attribute to this dependency's attribute list, stating whether or not it is mandatory.
          * @param attribute The attribute name.
@@ -654,6 +830,16 @@ public class BundleSpecifier {
             return (ExportPackage) super.setPackage(p);
         }
 
+        /**
+         * Sets the package for this dependency by name.
+         * @param packageName The name of the package to depend on.
+         * @return This object, allowing chaining.
+         */
+        @Override
+        public ExportPackage setPackageName(String packageName) {
+            return (ExportPackage) super.setPackageName(packageName);
+        }
+
         /**
          * Sets the package version for this dependency.
          * @param version The package version to depend on.
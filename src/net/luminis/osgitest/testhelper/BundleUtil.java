@@ -19,10 +19,20 @@
 package net.luminis.osgitest.testhelper;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -70,6 +80,41 @@ public class BundleUtil {
      */
     public static final String DEFAULT_PACKAGES = "org.osgi.framework";
 
+    /**
+     * When this system property is true, every lifecycle operation performed by a BundleUtil is timed, and the
+     * latencies are reported per operation in the test results (see {@link #getHistograms()}). The property
+     * starts with {@link TestBase#PROP_BENCHMARK_PREFIX}, so it's passed on to the testcontainer.
+     */
+    public static final String PROP_LIFECYCLE_HISTOGRAMS = TestBase.PROP_BENCHMARK_PREFIX + "lifecycle.histograms";
+
+    /*
+     * Names of the timed lifecycle operations.
+     */
+    public static final String OPERATION_INSTALL = "install";
+    public static final String OPERATION_RESOLVE = "resolve";
+    public static final String OPERATION_START = "start";
+    public static final String OPERATION_STOP = "stop";
+    public static final String OPERATION_UPDATE = "update";
+    public static final String OPERATION_UNINSTALL = "uninstall";
+    public static final String OPERATION_REFRESH = "refresh";
+
+    /**
+     * Refreshes requested by refreshFrameworkAndWait that haven't finished yet, with a description.
+     * Used to diagnose tests that hang.
+     */
+    private static final Map<RefreshListener, String> s_pendingRefreshes =
+        Collections.synchronizedMap(new LinkedHashMap<RefreshListener, String>());
+
+    /**
+     * Latencies per lifecycle operation, or null if they aren't timed.
+     */
+    private final Map<String, LatencyHistogram> m_histograms;
+
+    /**
+     * Number of fixtures installed, makes the location of every installed fixture unique.
+     */
+    private final AtomicInteger m_fixtureInstalls = new AtomicInteger();
+
     /**
      * Creates an instance of the bundleUtil.
      * @param bc The BundleContext to use for installing bundles.
@@ -80,6 +125,7 @@ public class BundleUtil {
         m_context = bc;
         m_admin = pa;
         genericActivator = ga;
+        m_histograms = Boolean.getBoolean(PROP_LIFECYCLE_HISTOGRAMS) ? new LinkedHashMap<String, LatencyHistogram>() : null;
     }
 
     /*
@@ -102,7 +148,11 @@ public class BundleUtil {
      */
     @Deprecated
     public Bundle installImpExBundle(String name, Class interfaceClass, Class implClass, String[] exportedVersion, String importedVersion) throws BundleException {
-        return m_context.installBundle(name, generateImpExBundle(name, interfaceClass, implClass, exportedVersion, importedVersion));
+        ByteArrayInputStream in = generateImpExBundle(name, interfaceClass, implClass, exportedVersion, importedVersion);
+        long start = startTiming();
+        Bundle bundle = m_context.installBundle(name, in);
+        record(OPERATION_INSTALL, start);
+        return bundle;
     }
 
     /**
@@ -161,7 +211,37 @@ public class BundleUtil {
      * cannot be packed properly.
      */
     public Bundle installBundle(BundleSpecifier bs) throws BundleException, IOException {
-        return m_context.installBundle(bs.getName(), generateBundle(bs));
+        ByteArrayInputStream in = generateBundle(bs);
+        long start = startTiming();
+        Bundle bundle = m_context.installBundle(bs.getName(), in);
+        record(OPERATION_INSTALL, start);
+        return bundle;
+    }
+
+    /**
+     * Installs a prebuilt fixture bundle from the fixture library, instead of generating it.
+     *
+     * Every install gets its own location (the fixture file with a sequence number), so installing a fixture
+     * twice installs a second bundle instead of returning the one installed earlier. Whether the framework accepts
+     * a second bundle with the same symbolic name and version is up to the framework.
+     *
+     * @see FixtureLibrary
+     * @param name The name of the fixture (eg: foo exporter 1.0, p importer [1,2))
+     * @return The installed bundle.
+     * @throws IOException Is thrown when the fixture can't be read.
+     */
+    public Bundle installFixture(String name) throws BundleException, IOException {
+        File fixture = FixtureLibrary.getFixture(name);
+        InputStream in = new FileInputStream(fixture);
+        try {
+            long start = startTiming();
+            Bundle bundle = m_context.installBundle(fixture.toURI() + "#" + m_fixtureInstalls.incrementAndGet(), in);
+            record(OPERATION_INSTALL, start);
+            return bundle;
+        }
+        finally {
+            in.close();
+        }
     }
 
     /**
@@ -196,6 +276,20 @@ public class BundleUtil {
         return new BundleSpecifier.ExportPackage(p);
     }
 
+    /**
+     * Creates a new {@link BundleSpecifier.ImportPackage} for the package with the given name.
+     */
+    public BundleSpecifier.ImportPackage createImportPackage(String packageName) {
+        return new BundleSpecifier.ImportPackage(packageName);
+    }
+
+    /**
+     * Creates a new {@link BundleSpecifier.ExportPackage} for the package with the given name.
+     */
+    public BundleSpecifier.ExportPackage createExportPackage(String packageName) {
+        return new BundleSpecifier.ExportPackage(packageName);
+    }
+
     /*
      * Tools for checking wiring
      ***************************/
@@ -333,6 +427,66 @@ public class BundleUtil {
         checkWiring(p, user, provider, true);
     }
 
+    /**
+     * Finds the exporters the given bundles are wired to through the given package, with a single query for the
+     * exports of the package instead of one per bundle.
+     *
+     * @param pack The package to which the bundles should be wired.
+     * @param bundles The bundles that import the package.
+     * @return A map of each of the bundles to the bundle exporting the package it's wired to, or null if it isn't wired.
+     */
+    public Map<Bundle, Bundle> getWiredPackageExporters(Package pack, Bundle[] bundles) {
+        return getWiredPackageExporters(pack.getName(), bundles);
+    }
+
+    /**
+     * @see #getWiredPackageExporters(Package, Bundle[])
+     */
+    public Map<Bundle, Bundle> getWiredPackageExporters(String packageName, Bundle[] bundles) {
+        Map<Long, Bundle> exporters = new HashMap<Long, Bundle>();
+        ExportedPackage[] packages = m_admin.getExportedPackages(packageName);
+        if (packages != null) {
+            for (ExportedPackage p : packages) {
+                Bundle[] imported = p.getImportingBundles();
+                if (imported != null) {
+                    for (Bundle b : imported) {
+                        exporters.put(Long.valueOf(b.getBundleId()), p.getExportingBundle());
+                    }
+                }
+            }
+        }
+
+        Map<Bundle, Bundle> result = new LinkedHashMap<Bundle, Bundle>();
+        for (Bundle bundle : bundles) {
+            result.put(bundle, exporters.get(Long.valueOf(bundle.getBundleId())));
+        }
+        return result;
+    }
+
+    /**
+     * Checks that all given bundles are wired to the provider through the given package. Will assert when one of them
+     * isn't. Looks up the wiring of all bundles at once, see {@link #getWiredPackageExporters(Package, Bundle[])}.
+     *
+     * @param p The package.
+     * @param users The importers of the package.
+     * @param provider The exporter of the package.
+     */
+    public void checkWiring(Package p, Bundle[] users, Bundle provider) {
+        checkWiring(p.getName(), users, provider);
+    }
+
+    /**
+     * @see #checkWiring(Package, Bundle[], Bundle)
+     */
+    public void checkWiring(String packageName, Bundle[] users, Bundle provider) {
+        for (Map.Entry<Bundle, Bundle> wire : getWiredPackageExporters(packageName, users).entrySet()) {
+            Bundle user = wire.getKey();
+            Bundle realProvider = wire.getValue();
+            assert realProvider != null : "Bundle " + user.getSymbolicName() + " is not wired to any bundle using " + packageName + ".";
+            assert realProvider.getBundleId() == provider.getBundleId() : "The "+packageName+" that "+user.getSymbolicName()+ " (id:" +user.getBundleId() + ") uses should be wired to "+provider.getSymbolicName()+" (id:" +provider.getBundleId() + ") (it is wired to " + realProvider.getSymbolicName()+ "( id:" +realProvider.getBundleId() + "))";
+        }
+    }
+
     /**
      * Checks whether a given class (or interface) is reachable from a given bundle. It will use the bundle's own version of the
      * class, if necessary.
@@ -416,10 +570,33 @@ public class BundleUtil {
      * @param b The bundle.
      */
     public boolean canUseService(Class in, Bundle b) {
+        return canUseService(in.getName(), b, getBundleContext(b));
+    }
+
+    /**
+     * Checks for each of the given bundles whether it can use the service implementations it gets served for a
+     * given interface, like {@link #canUseService(Class, Bundle)} does for a single bundle.
+     *
+     * @param in The interface to check.
+     * @param bundles The bundles.
+     * @return A map of each of the bundles to whether it can use the services.
+     */
+    public Map<Bundle, Boolean> canUseServices(Class<?> in, Bundle[] bundles) {
+        Map<Bundle, Boolean> result = new LinkedHashMap<Bundle, Boolean>();
+        for (Bundle b : bundles) {
+            result.put(b, Boolean.valueOf(canUseService(in.getName(), b, getBundleContext(b))));
+        }
+        return result;
+    }
+
+    /**
+     * @see #canUseService(Class, Bundle)
+     */
+    private boolean canUseService(String in, Bundle b, BundleContext context) {
         // get services, filter on interface
         ServiceReference[] services = null;
         try {
-            services = getBundleContext(b).getServiceReferences(in.getName(), null);
+            services = context.getServiceReferences(in, null);
         }
         catch (InvalidSyntaxException e) {
             // will not happen with a null filter.
@@ -428,18 +605,22 @@ public class BundleUtil {
             return false;
         }
 
+        Class<?> inClass;
+        try {
+            inClass = b.loadClass(in);
+        }
+        catch (ClassNotFoundException e) {
+            // If the interface class cannot be found, we can be sure that it is not assignable.
+            return false;
+        }
+
         boolean isAssignable = true;
         for (ServiceReference ref : services) {
-            try {
-                if (!b.loadClass(in.getName()).isAssignableFrom(getBundleContext(b).getService(ref).getClass())) {
-                    isAssignable = false;
-                }
-            }
-            catch (ClassNotFoundException e) {
-                // If the interface class cannot be found, we can be sure that it is not assignable.
+            Object service = context.getService(ref);
+            if ((service == null) || !inClass.isAssignableFrom(service.getClass())) {
                 isAssignable = false;
             }
-            getBundleContext(b).ungetService(ref);
+            context.ungetService(ref);
         }
 
         return isAssignable;
@@ -452,7 +633,7 @@ public class BundleUtil {
      * @param b A bundle.
      * @return The bundle context for b, or null if none can be found.
      */
-    private BundleContext getBundleContext(Bundle b) {
+    public BundleContext getBundleContext(Bundle b) {
         try {
             Method method = b.getClass().getDeclaredMethod("getBundleContext", (Class[])null);
             method.setAccessible(true);
@@ -544,6 +725,101 @@ public class BundleUtil {
         registerServiceListener(g, b, (String) null);
     }
 
+    /*
+     * Lifecycle operations
+     ***********************/
+
+    /**
+     * Starts a bundle, timing it when {@link #PROP_LIFECYCLE_HISTOGRAMS} is set.
+     */
+    public void startBundle(Bundle b) throws BundleException {
+        long start = startTiming();
+        b.start();
+        record(OPERATION_START, start);
+    }
+
+    /**
+     * Stops a bundle, timing it when {@link #PROP_LIFECYCLE_HISTOGRAMS} is set.
+     */
+    public void stopBundle(Bundle b) throws BundleException {
+        long start = startTiming();
+        b.stop();
+        record(OPERATION_STOP, start);
+    }
+
+    /**
+     * Updates a bundle, timing it when {@link #PROP_LIFECYCLE_HISTOGRAMS} is set.
+     *
+     * @param b The bundle.
+     * @param in The new contents of the bundle, or null to update from the location of the bundle.
+     */
+    public void updateBundle(Bundle b, InputStream in) throws BundleException {
+        long start = startTiming();
+        if (in == null) {
+            b.update();
+        }
+        else {
+            b.update(in);
+        }
+        record(OPERATION_UPDATE, start);
+    }
+
+    /**
+     * Uninstalls a bundle, timing it when {@link #PROP_LIFECYCLE_HISTOGRAMS} is set.
+     */
+    public void uninstallBundle(Bundle b) throws BundleException {
+        long start = startTiming();
+        b.uninstall();
+        record(OPERATION_UNINSTALL, start);
+    }
+
+    /**
+     * Resolves bundles, timing it when {@link #PROP_LIFECYCLE_HISTOGRAMS} is set.
+     *
+     * @param bundles The bundles to resolve, or null to resolve all unresolved bundles.
+     * @return true if all bundles could be resolved.
+     */
+    public boolean resolveBundles(Bundle[] bundles) {
+        long start = startTiming();
+        boolean resolved = m_admin.resolveBundles(bundles);
+        record(OPERATION_RESOLVE, start);
+        return resolved;
+    }
+
+    /**
+     * Returns the latencies of the lifecycle operations performed so far, per operation in the order they were
+     * first performed. Empty if {@link #PROP_LIFECYCLE_HISTOGRAMS} isn't set.
+     *
+     * @return
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        if (m_histograms == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (m_histograms) {
+            return new LinkedHashMap<String, LatencyHistogram>(m_histograms);
+        }
+    }
+
+    private long startTiming() {
+        return (m_histograms == null) ? 0 : System.nanoTime();
+    }
+
+    private void record(String operation, long start) {
+        if (m_histograms != null) {
+            long nanos = System.nanoTime() - start;
+            LatencyHistogram histogram;
+            synchronized (m_histograms) {
+                histogram = m_histograms.get(operation);
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                    m_histograms.put(operation, histogram);
+                }
+            }
+            histogram.record(nanos);
+        }
+    }
+
     /*
      * Misc. helper functionality
      *****************************/
@@ -555,7 +831,7 @@ public class BundleUtil {
         for (Bundle b : m_context.getBundles()) {
             if (b.getSymbolicName().startsWith(BundleUtil.BUNDLE_PREFIX)) {
                 try {
-                    b.uninstall();
+                    uninstallBundle(b);
                 }
                 catch (BundleException e) {
                     e.printStackTrace(System.err);
@@ -573,17 +849,34 @@ public class BundleUtil {
     public void refreshFrameworkAndWait(Bundle[] bundles) {
         RefreshListener r = new RefreshListener();
         m_context.addFrameworkListener(r);
+        s_pendingRefreshes.put(r, "refresh of " + (bundles == null ? "all bundles" : Arrays.asList(bundles).toString())
+            + " requested at " + new Date() + " by " + Thread.currentThread().getName());
         try {
+            long start = startTiming();
             synchronized (r) {
                 m_admin.refreshPackages(bundles);
                 r.doWait();
             }
+            record(OPERATION_REFRESH, start);
         }
         finally {
+            s_pendingRefreshes.remove(r);
             m_context.removeFrameworkListener(r);
         }
     }
 
+    /**
+     * Returns a description of every refresh that was requested by {@link #refreshFrameworkAndWait(Bundle[])}
+     * and hasn't finished yet.
+     *
+     * @return
+     */
+    public static List<String> getPendingRefreshes() {
+        synchronized (s_pendingRefreshes) {
+            return new ArrayList<String>(s_pendingRefreshes.values());
+        }
+    }
+
     /**
      * Utility class for refreshFrameworkAndWait.
      */
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Diagnostics of a running test, taken inside the test container on request of the host.
+ *
+ * When a test exceeds its deadline, the watchdog on the host (net.luminis.osgitest.core.TestWatchdog) can't reach
+ * the hanging container through Pax Exam anymore. Instead it creates a request file in the exchange directory
+ * (see {@link TestMeasurements#getExchangeDir()}), which this class polls for. The answer is a dump of all threads, the bundle states
+ * and the refreshes that are still pending. Next to that, the process id of the container is written when the
+ * diagnostics start, so the host can kill the container.
+ */
+public class ContainerDiagnostics implements Runnable {
+
+    /**
+     * Written by the container: the process id of the container VM.
+     */
+    public static final String PID_EXTENSION = ".pid";
+    /**
+     * Written by the host: asks the container for a dump.
+     */
+    public static final String DUMP_REQUEST_EXTENSION = ".dump-request";
+    /**
+     * Written by the container: the dump.
+     */
+    public static final String DUMP_EXTENSION = ".dump";
+
+    private static final long POLL_INTERVAL = 200;
+
+    private static final String[] BUNDLE_STATES = new String[] {"UNINSTALLED", "INSTALLED", "RESOLVED", "STARTING", "STOPPING", "ACTIVE"};
+
+    private final BundleContext m_context;
+    private final File m_exchangeDir;
+    private final String m_className;
+    private final String m_methodName;
+    private final Thread m_thread;
+    private volatile boolean m_stopped;
+
+    private ContainerDiagnostics(BundleContext context, String className, String methodName) {
+        m_context = context;
+        m_exchangeDir = TestMeasurements.getExchangeDir();
+        m_className = className;
+        m_methodName = methodName;
+        m_thread = new Thread(this, "osgitest diagnostics " + methodName);
+        m_thread.setDaemon(true);
+    }
+
+    /**
+     * Starts answering the dump requests of the host for a test method. Does nothing if the test isn't started
+     * by the host (the exchange directory isn't passed).
+     *
+     * @param context The bundle context of the test.
+     * @param className The name of the test class.
+     * @param methodName The name of the test method.
+     * @return The diagnostics, or null if they aren't started.
+     */
+    public static ContainerDiagnostics start(BundleContext context, String className, String methodName) {
+        if ((System.getProperty(TestMeasurements.PROP_EXCHANGE_DIR) == null) || (className == null) || (methodName == null)) {
+            return null;
+        }
+        ContainerDiagnostics diagnostics = new ContainerDiagnostics(context, className, methodName);
+        diagnostics.write(PID_EXTENSION, getProcessId());
+        diagnostics.m_thread.start();
+        return diagnostics;
+    }
+
+    /**
+     * Stops answering dump requests.
+     */
+    public void stop() {
+        m_stopped = true;
+        m_thread.interrupt();
+        getFile(PID_EXTENSION).delete();
+    }
+
+    public void run() {
+        File request = getFile(DUMP_REQUEST_EXTENSION);
+        while (!m_stopped) {
+            if (request.exists()) {
+                write(DUMP_EXTENSION, dump());
+                request.delete();
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            }
+            catch (InterruptedException e) {
+                // stopped
+            }
+        }
+    }
+
+    /**
+     * Returns a dump of all threads, the bundle states and the pending refreshes.
+     *
+     * @return
+     */
+    public String dump() {
+        StringBuilder dump = new StringBuilder();
+        dump.append("Container dump of ").append(m_className).append('#').append(m_methodName)
+            .append(" taken at ").append(new Date()).append("\n\n");
+
+        dump.append("Threads:\n");
+        for (Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+            Thread t = thread.getKey();
+            dump.append('"').append(t.getName()).append("\" ").append(t.isDaemon() ? "daemon " : "")
+                .append(t.getState()).append('\n');
+            for (StackTraceElement element : thread.getValue()) {
+                dump.append("\tat ").append(element).append('\n');
+            }
+            dump.append('\n');
+        }
+
+        dump.append("Bundles:\n");
+        try {
+            for (Bundle b : m_context.getBundles()) {
+                int state = Integer.numberOfTrailingZeros(b.getState());
+                dump.append(b.getBundleId()).append('\t')
+                    .append(state < BUNDLE_STATES.length ? BUNDLE_STATES[state] : Integer.toString(b.getState())).append('\t')
+                    .append(b.getSymbolicName()).append(' ').append(b.getHeaders().get("Bundle-Version")).append('\n');
+            }
+        }
+        catch (IllegalStateException e) {
+            dump.append("Bundle context no longer valid: ").append(e.getMessage()).append('\n');
+        }
+
+        dump.append("\nPending refreshes:\n");
+        for (String refresh : BundleUtil.getPendingRefreshes()) {
+            dump.append(refresh).append('\n');
+        }
+        return dump.toString();
+    }
+
+    private File getFile(String extension) {
+        return TestMeasurements.getExchangeFile(m_exchangeDir, m_className, m_methodName, extension);
+    }
+
+    private void write(String extension, String contents) {
+        File file = getFile(extension);
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            file.getParentFile().mkdirs();
+            out = new FileOutputStream(temp);
+            out.write(contents.getBytes("UTF-8"));
+            out.close();
+            out = null;
+            /*
+             * The host polls for the file, it should never see it half written.
+             */
+            temp.renameTo(file);
+        }
+        catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException ignore) { }
+            }
+        }
+    }
+
+    /**
+     * Returns the process id of this VM, as found in the name of the runtime (pid@hostname).
+     */
+    private static String getProcessId() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        return at > 0 ? name.substring(0, at) : name;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import net.luminis.osgitest.testhelper.packages.foo.Foo;
+import net.luminis.osgitest.testhelper.packages.foo.FooImpl1;
+import net.luminis.osgitest.testhelper.packages.foo.FooImpl2;
+import net.luminis.osgitest.testhelper.packages.p.PInterface1;
+import net.luminis.osgitest.testhelper.packages.p.PInterface2;
+import net.luminis.osgitest.testhelper.packages.p.PInterface3;
+import net.luminis.osgitest.testhelper.packages.q.QInterface1;
+import net.luminis.osgitest.testhelper.packages.q.QInterface2;
+import net.luminis.osgitest.testhelper.packages.r.RInterface1;
+import net.luminis.osgitest.testhelper.packages.r.RInterface2;
+import net.luminis.osgitest.testhelper.packages.s.SInterface;
+import net.luminis.osgitest.testhelper.packages.t.TInterface1;
+import net.luminis.osgitest.testhelper.packages.t.TInterface2;
+
+/**
+ * A catalogue of prebuilt fixture bundles, exporting or importing the packages in
+ * {@link net.luminis.osgitest.testhelper.packages} in the shapes most tests use.
+ *
+ * The bundles are generated at build time by running this class (see the fixtures target in build.xml), which
+ * writes a jar per fixture and an index ({@link #INDEX_FILE}) mapping the fixture names to the jars. The package
+ * target adds them to the framework and testhelper jars under {@link #RESOURCE_DIR}, the OSGiTestTask extracts them
+ * from there for a run. Tests install them by name with {@link BundleUtil#installFixture(String)}, instead of
+ * generating the same bundles on every test.
+ *
+ * The fixture names are "&lt;package&gt; exporter &lt;version&gt;" (eg: foo exporter 1.0), "&lt;package&gt; exporter"
+ * (without a version), "&lt;package&gt; importer &lt;range&gt;" (eg: p importer [1,2)) and "&lt;package&gt; importer"
+ * (without a version range).
+ */
+public class FixtureLibrary {
+
+    /**
+     * Directory containing the fixture library. The library is only available in the test container if it's set.
+     */
+    public static final String PROP_FIXTURE_DIR = "net.luminis.osgitest.fixtures.dir";
+
+    /**
+     * Name of the index in the fixture directory.
+     */
+    public static final String INDEX_FILE = "fixtures.properties";
+
+    /**
+     * Directory of the fixture library in the packaged jars.
+     */
+    public static final String RESOURCE_DIR = "META-INF/osgitest/fixtures/";
+
+    private static final String[] EXPORTED_VERSIONS = new String[] {"1.0", "1.5", "2.0"};
+    private static final String[] IMPORTED_RANGES = new String[] {"[1,2)", "[1.5,2)", "[2,3)", "1.0"};
+
+    private static final Map<String, Class<?>[]> PACKAGES = new LinkedHashMap<String, Class<?>[]>();
+    static {
+        PACKAGES.put("foo", new Class<?>[] {Foo.class, FooImpl1.class, FooImpl2.class});
+        PACKAGES.put("p", new Class<?>[] {PInterface1.class, PInterface2.class, PInterface3.class});
+        PACKAGES.put("q", new Class<?>[] {QInterface1.class, QInterface2.class});
+        PACKAGES.put("r", new Class<?>[] {RInterface1.class, RInterface2.class});
+        PACKAGES.put("s", new Class<?>[] {SInterface.class});
+        PACKAGES.put("t", new Class<?>[] {TInterface1.class, TInterface2.class});
+    }
+
+    private static final Map<File, Properties> s_indexes = new LinkedHashMap<File, Properties>();
+
+    /**
+     * Helper class. Not necessary to create an instance.
+     */
+    private FixtureLibrary() { }
+
+    /**
+     * Generates the fixture library.
+     *
+     * @param args The directory to write the library to.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: FixtureLibrary <output dir>");
+            System.exit(1);
+        }
+        generate(new File(args[0]));
+    }
+
+    /**
+     * Writes the jar of every fixture and the index to a directory.
+     *
+     * @param dir The directory.
+     * @return The number of fixtures written.
+     * @throws IOException
+     */
+    public static int generate(File dir) throws IOException {
+        dir.mkdirs();
+        Properties index = new Properties();
+
+        for (Map.Entry<String, BundleSpecifier> fixture : createFixtures().entrySet()) {
+            String fileName = getBaseName(fixture.getKey()) + ".jar";
+            copy(fixture.getValue().toInputStream(), new File(dir, fileName));
+            index.setProperty(fixture.getKey(), fileName);
+        }
+
+        OutputStream out = new FileOutputStream(new File(dir, INDEX_FILE));
+        try {
+            index.store(out, "Prebuilt fixture bundles, name=jar");
+        }
+        finally {
+            out.close();
+        }
+        return index.size();
+    }
+
+    /**
+     * Extracts the packaged fixture library (see {@link #RESOURCE_DIR}) to a directory.
+     *
+     * @param loader The classloader of the packaged jar.
+     * @param dir The directory.
+     * @return false if the classloader has no packaged fixture library.
+     * @throws IOException
+     */
+    public static boolean extract(ClassLoader loader, File dir) throws IOException {
+        InputStream in = loader.getResourceAsStream(RESOURCE_DIR + INDEX_FILE);
+        if (in == null) {
+            return false;
+        }
+        Properties index = new Properties();
+        try {
+            index.load(in);
+        }
+        finally {
+            in.close();
+        }
+
+        dir.mkdirs();
+        for (Object fileName : index.values()) {
+            InputStream jar = loader.getResourceAsStream(RESOURCE_DIR + fileName);
+            if (jar == null) {
+                throw new IOException("The packaged fixture library doesn't contain " + fileName);
+            }
+            copy(jar, new File(dir, (String) fileName));
+        }
+        copy(loader.getResourceAsStream(RESOURCE_DIR + INDEX_FILE), new File(dir, INDEX_FILE));
+        return true;
+    }
+
+    /**
+     * Returns the jar of a fixture in the library named by {@link #PROP_FIXTURE_DIR}.
+     *
+     * @param name The name of the fixture (eg: foo exporter 1.0)
+     * @return The jar file.
+     * @throws IllegalStateException if there is no fixture library, or it doesn't contain the fixture.
+     */
+    public static File getFixture(String name) {
+        File dir = getDir();
+        String fileName = getIndex(dir).getProperty(name);
+        if (fileName == null) {
+            throw new IllegalStateException("The fixture library in " + dir + " doesn't contain fixture '" + name + "'");
+        }
+        return new File(dir, fileName);
+    }
+
+    /**
+     * Returns the names of the fixtures in the library named by {@link #PROP_FIXTURE_DIR}.
+     *
+     * @return
+     */
+    public static List<String> getFixtureNames() {
+        List<String> names = new ArrayList<String>();
+        for (Object name : getIndex(getDir()).keySet()) {
+            names.add((String) name);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Creates the bundle specifiers of all fixtures.
+     *
+     * @return A map of fixture names to bundle specifiers, in a stable order.
+     */
+    static Map<String, BundleSpecifier> createFixtures() {
+        Map<String, BundleSpecifier> fixtures = new LinkedHashMap<String, BundleSpecifier>();
+        for (Map.Entry<String, Class<?>[]> pack : PACKAGES.entrySet()) {
+            Package p = pack.getValue()[0].getPackage();
+
+            String name = pack.getKey() + " exporter";
+            BundleSpecifier exporter = createBundleSpecifier(name).addExport(new BundleSpecifier.ExportPackage(p));
+            fixtures.put(name, packAll(exporter, pack.getValue()));
+            for (String version : EXPORTED_VERSIONS) {
+                name = pack.getKey() + " exporter " + version;
+                exporter = createBundleSpecifier(name).addExport(new BundleSpecifier.ExportPackage(p).setVersion(version));
+                fixtures.put(name, packAll(exporter, pack.getValue()));
+            }
+
+            name = pack.getKey() + " importer";
+            fixtures.put(name, createBundleSpecifier(name).addImport(new BundleSpecifier.ImportPackage(p)));
+            for (String range : IMPORTED_RANGES) {
+                name = pack.getKey() + " importer " + range;
+                fixtures.put(name, createBundleSpecifier(name).addImport(new BundleSpecifier.ImportPackage(p).setVersion(range)));
+            }
+        }
+        return fixtures;
+    }
+
+    private static BundleSpecifier createBundleSpecifier(String name) {
+        return new BundleSpecifier("fixture." + getBaseName(name), BundleUtil.BUNDLE_PREFIX,
+            TestBase.genericActivator, BundleUtil.DEFAULT_PACKAGES);
+    }
+
+    private static BundleSpecifier packAll(BundleSpecifier bs, Class<?>[] classes) {
+        for (Class<?> c : classes) {
+            bs.pack(c);
+        }
+        return bs;
+    }
+
+    /**
+     * Turns a fixture name into a name that can be used for files and symbolic names
+     * (eg: p importer [1,2) becomes p-importer-_1_2_)
+     */
+    private static String getBaseName(String name) {
+        return name.replace(' ', '-').replaceAll("[^a-zA-Z0-9.-]", "_");
+    }
+
+    private static void copy(InputStream in, File file) throws IOException {
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buf = new byte[4096];
+                int read;
+                while ((read = in.read(buf)) > 0) {
+                    out.write(buf, 0, read);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static File getDir() {
+        String dir = System.getProperty(PROP_FIXTURE_DIR);
+        if (dir == null) {
+            throw new IllegalStateException("No fixture library available, " + PROP_FIXTURE_DIR + " isn't set");
+        }
+        return new File(dir);
+    }
+
+    private static Properties getIndex(File dir) {
+        synchronized (s_indexes) {
+            Properties index = s_indexes.get(dir);
+            if (index == null) {
+                index = new Properties();
+                try {
+                    InputStream in = new FileInputStream(new File(dir, INDEX_FILE));
+                    try {
+                        index.load(in);
+                    }
+                    finally {
+                        in.close();
+                    }
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException("Unable to read the fixture library index in " + dir, e);
+                }
+                s_indexes.put(dir, index);
+            }
+            return index;
+        }
+    }
+}
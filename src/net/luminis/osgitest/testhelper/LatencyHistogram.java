@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper;
+
+/**
+ * A histogram of latencies with fixed buckets, cheap enough to record every operation of a test run.
+ *
+ * Bucket i counts the latencies from 2^i up to (not including) 2^(i+1) nanoseconds; latencies below 2 ns go in
+ * bucket 0. Recording an operation costs a couple of additions, and the histogram always takes the same memory
+ * no matter how many operations are recorded. Percentiles are estimated by the upper bound of their bucket, so
+ * they are at most a factor of two off.
+ *
+ * Histograms are handed over from the test container to the host as a string, see {@link #encode()} and
+ * {@link #decode(String)}.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of buckets, enough for any positive long.
+     */
+    public static final int BUCKETS = 63;
+
+    private static final String FIELD_SEPARATOR = " ";
+    private static final String BUCKET_SEPARATOR = ",";
+    private static final String COUNT_SEPARATOR = "=";
+
+    private final long[] m_buckets = new long[BUCKETS];
+    private long m_count;
+    private long m_total;
+    private long m_max;
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        m_buckets[getBucket(nanos)]++;
+        m_count++;
+        m_total += nanos;
+        m_max = Math.max(m_max, nanos);
+    }
+
+    /**
+     * Adds all latencies recorded by another histogram to this one.
+     *
+     * @param histogram
+     */
+    public void merge(LatencyHistogram histogram) {
+        long[] buckets;
+        long count;
+        long total;
+        long max;
+        synchronized (histogram) {
+            buckets = histogram.m_buckets.clone();
+            count = histogram.m_count;
+            total = histogram.m_total;
+            max = histogram.m_max;
+        }
+        merge(count, total, max, buckets);
+    }
+
+    /**
+     * Adds latencies to this histogram, eg. a histogram read from the result XML.
+     *
+     * @param count The number of latencies.
+     * @param total The sum of the latencies in nanoseconds.
+     * @param max The maximum latency in nanoseconds.
+     * @param buckets The number of latencies per bucket, at most {@link #BUCKETS} long.
+     */
+    public synchronized void merge(long count, long total, long max, long[] buckets) {
+        for (int i = 0; i < Math.min(BUCKETS, buckets.length); i++) {
+            m_buckets[i] += buckets[i];
+        }
+        m_count += count;
+        m_total += total;
+        m_max = Math.max(m_max, max);
+    }
+
+    public synchronized long getCount() {
+        return m_count;
+    }
+
+    /**
+     * Returns the sum of all recorded latencies in nanoseconds.
+     *
+     * @return
+     */
+    public synchronized long getTotal() {
+        return m_total;
+    }
+
+    public synchronized long getMax() {
+        return m_max;
+    }
+
+    /**
+     * Returns the mean latency in nanoseconds, or 0 if nothing was recorded.
+     *
+     * @return
+     */
+    public synchronized double getMean() {
+        return (m_count == 0) ? 0 : (double) m_total / m_count;
+    }
+
+    /**
+     * Returns the number of latencies recorded in a bucket.
+     *
+     * @param bucket The index of the bucket, from 0 to {@link #BUCKETS} (exclusive).
+     * @return
+     */
+    public synchronized long getBucketCount(int bucket) {
+        return m_buckets[bucket];
+    }
+
+    /**
+     * Estimates a percentile by the upper bound of the bucket it falls in, capped by the maximum latency.
+     *
+     * @param percentile The percentile (eg: 99)
+     * @return The estimated latency in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (m_count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(m_count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += m_buckets[i];
+            if (seen >= rank) {
+                return Math.min(getUpperBound(i), m_max);
+            }
+        }
+        return m_max;
+    }
+
+    /**
+     * Returns the index of the bucket that counts a latency.
+     *
+     * @param nanos
+     * @return
+     */
+    public static int getBucket(long nanos) {
+        return (nanos < 2) ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * Returns the latency (exclusive) up to which a bucket counts.
+     *
+     * @param bucket
+     * @return The upper bound in nanoseconds.
+     */
+    public static long getUpperBound(int bucket) {
+        return (bucket >= BUCKETS - 1) ? Long.MAX_VALUE : 1L << (bucket + 1);
+    }
+
+    /**
+     * Returns the histogram as a string: the count, the total and the maximum, followed by the buckets
+     * that aren't empty (eg: 3 1900 1200 8=2,10=1).
+     *
+     * @return
+     */
+    public synchronized String encode() {
+        StringBuilder encoded = new StringBuilder();
+        encoded.append(m_count).append(FIELD_SEPARATOR).append(m_total).append(FIELD_SEPARATOR).append(m_max).append(FIELD_SEPARATOR);
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (m_buckets[i] > 0) {
+                encoded.append(first ? "" : BUCKET_SEPARATOR).append(i).append(COUNT_SEPARATOR).append(m_buckets[i]);
+                first = false;
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Reads a histogram written by {@link #encode()}.
+     *
+     * @param encoded
+     * @return
+     * @throws IllegalArgumentException If the string isn't an encoded histogram.
+     */
+    public static LatencyHistogram decode(String encoded) {
+        try {
+            String[] fields = encoded.split(FIELD_SEPARATOR, -1);
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.m_count = Long.parseLong(fields[0]);
+            histogram.m_total = Long.parseLong(fields[1]);
+            histogram.m_max = Long.parseLong(fields[2]);
+            if (fields[3].length() > 0) {
+                for (String bucket : fields[3].split(BUCKET_SEPARATOR)) {
+                    int separator = bucket.indexOf(COUNT_SEPARATOR);
+                    histogram.m_buckets[Integer.parseInt(bucket.substring(0, separator))] = Long.parseLong(bucket.substring(separator + 1));
+                }
+            }
+            return histogram;
+        }
+        catch (RuntimeException e) {
+            throw new IllegalArgumentException("Not a histogram: " + encoded);
+        }
+    }
+}
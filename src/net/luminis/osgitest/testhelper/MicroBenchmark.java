@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation to run a JUnit test method of a {@link TestBase} as a micro-benchmark. Before the call of the test
+ * method that decides its outcome, the test method is called repeatedly in the same testcontainer: first the warmup
+ * iterations, so the JIT compiler can do its work, then the measured iterations. Every iteration runs the
+ * {@link org.junit.Before} and {@link org.junit.After} methods like a normal call, and the bundles it installed are
+ * uninstalled after it. Only the test phase of an iteration is measured (see {@link TestMeasurements#PHASE_TEST}).
+ * A failing iteration fails the test. See net.luminis.osgitest.core.MicroBenchmarkRunner.
+ *
+ * The time per operation is reported as results of the test, in a series named after the method with the operations
+ * per invocation as point: the mean, the error (the half width of the 99% confidence interval of the mean), the
+ * minimum, some percentiles (eg: p90), the maximum, the throughput and the number of measured iterations.
+ *
+ * @see TestMeasurements#putResult(String, String, String, double, String)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface MicroBenchmark {
+
+    /**
+     * The number of invocations before the measurement starts.
+     * @return
+     */
+    int warmupIterations() default 5;
+
+    /**
+     * The number of measured invocations.
+     * @return
+     */
+    int iterations() default 10;
+
+    /**
+     * The time in milliseconds the warmup and the measurement may take together. No iteration is started that
+     * wouldn't fit in the time that is left, judging by the slowest iteration so far. An iteration that is still
+     * running when the time is spent fails the test.
+     * @return
+     */
+    long timeBudget() default 60000;
+
+    /**
+     * The number of operations a single invocation of the method performs (eg: the number of bundles it installs),
+     * the results are per operation.
+     * @return
+     */
+    int operationsPerInvocation() default 1;
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Generates minimal, valid class files directly as bytes, for bundles with more classes than exist on the classpath.
+ *
+ * Two shapes are generated: an empty public interface, and a public class with a default constructor that implements
+ * such an interface. The class files have version 49 (Java 5), so they don't need stack map frames and load in every
+ * VM the frameworks run on.
+ *
+ * @see BundleSpecifier#addSyntheticPackages(int, int)
+ */
+class SyntheticClasses {
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int MAJOR_VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+
+    private static final String OBJECT = "java/lang/Object";
+
+    /**
+     * Helper class. Not necessary to create an instance.
+     */
+    private SyntheticClasses() { }
+
+    /**
+     * Generates an empty public interface.
+     *
+     * @param name The binary name of the interface, with slashes (eg: synthetic/p0/I0)
+     * @return The class file.
+     */
+    static byte[] generateInterface(String name) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, 5);
+            writeClass(out, name, 1);               // 1, 2
+            writeClass(out, OBJECT, 3);             // 3, 4
+            out.writeShort(ACC_PUBLIC | ACC_INTERFACE | ACC_ABSTRACT);
+            out.writeShort(2); // this class
+            out.writeShort(4); // super class
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(0); // methods
+            out.writeShort(0); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            // Can't happen when writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Generates a public class with a default constructor that implements an interface.
+     *
+     * @param name The binary name of the class, with slashes (eg: synthetic/p0/C1)
+     * @param interfaceName The binary name of the interface, with slashes, or null to implement no interface.
+     * @return The class file.
+     */
+    static byte[] generateClass(String name, String interfaceName) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, 12);
+            writeClass(out, name, 1);               // 1, 2
+            writeClass(out, OBJECT, 3);             // 3, 4
+            writeClass(out, interfaceName == null ? OBJECT : interfaceName, 5); // 5, 6
+            writeUtf8(out, "<init>");               // 7
+            writeUtf8(out, "()V");                  // 8
+            out.writeByte(CONSTANT_NAME_AND_TYPE);  // 9
+            out.writeShort(7);
+            out.writeShort(8);
+            out.writeByte(CONSTANT_METHODREF);      // 10
+            out.writeShort(4);
+            out.writeShort(9);
+            writeUtf8(out, "Code");                 // 11
+
+            out.writeShort(ACC_PUBLIC | ACC_SUPER);
+            out.writeShort(2); // this class
+            out.writeShort(4); // super class
+            if (interfaceName == null) {
+                out.writeShort(0);
+            }
+            else {
+                out.writeShort(1);
+                out.writeShort(6);
+            }
+            out.writeShort(0); // fields
+
+            out.writeShort(1); // methods
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(7); // <init>
+            out.writeShort(8); // ()V
+            out.writeShort(1); // attributes
+            out.writeShort(11); // Code
+            out.writeInt(17); // attribute length
+            out.writeShort(1); // max stack
+            out.writeShort(1); // max locals
+            out.writeInt(5); // code length
+            out.writeByte(0x2A); // aload_0
+            out.writeByte(0xB7); // invokespecial
+            out.writeShort(10); // java/lang/Object.<init>()V
+            out.writeByte(0xB1); // return
+            out.writeShort(0); // exception table
+            out.writeShort(0); // code attributes
+
+            out.writeShort(0); // class attributes
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            // Can't happen when writing to a byte array.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, int constantPoolCount) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(0);
+        out.writeShort(MAJOR_VERSION);
+        out.writeShort(constantPoolCount);
+    }
+
+    /**
+     * Writes a Utf8 entry with the name at the given constant pool index, followed by a Class entry referring to it.
+     */
+    private static void writeClass(DataOutputStream out, String name, int index) throws IOException {
+        writeUtf8(out, name);
+        out.writeByte(CONSTANT_CLASS);
+        out.writeShort(index);
+    }
+
+    private static void writeUtf8(DataOutputStream out, String value) throws IOException {
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF(value);
+    }
+}
@@ -24,11 +24,16 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Properties;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.luminis.osgitest.core.OSGiTestRunner;
 import net.luminis.osgitest.core.PaxRunnerProperties;
 
 import org.junit.After;
@@ -39,7 +44,7 @@ import org.ops4j.pax.exam.Inject;
 import org.ops4j.pax.exam.Option;
 import org.ops4j.pax.exam.container.def.PaxRunnerOptions;
 import org.ops4j.pax.exam.junit.Configuration;
-import org.ops4j.pax.exam.junit.JUnit4TestRunner;
+import org.ops4j.pax.exam.junit.extender.Constants;
 import org.ops4j.pax.exam.options.CustomFrameworkOption;
 import org.ops4j.pax.exam.options.FrameworkOption;
 import org.osgi.framework.Bundle;
@@ -51,7 +56,7 @@ import org.osgi.util.tracker.ServiceTracker;
 /**
  * Base class for writing framework tests with JUnit and Pax Exam.
  */
-@RunWith (JUnit4TestRunner.class)
+@RunWith (OSGiTestRunner.class)
 public class TestBase {
 
     /*
@@ -61,6 +66,10 @@ public class TestBase {
      * VMoption, used to pass remote debug information to the pax exam testcontainer.
      */
     public static final String PROP_VM_OPTION = "net.luminis.osgitest.vmoption";
+    /**
+     * Whitespace separated list of VMoptions passed to the pax exam testcontainer, in addition to {@link #PROP_VM_OPTION}.
+     */
+    public static final String PROP_VM_OPTIONS = "net.luminis.osgitest.vmoptions";
     /**
      * List of vendors with (optional) version that should be tested.
      */
@@ -77,6 +86,30 @@ public class TestBase {
      *
      */
     public static final String PROP_TEST_DEPENDENCY_FILE = "net.luminis.osgitest.test.dependencyfile";
+    /**
+     * When "true", the jars in the {@link #PROP_TEST_DEPENDENCY_FILE} are installed as bundles in the testcontainer
+     * instead of being embedded in the testbundle. Jars without a Bundle-SymbolicName are wrapped.
+     */
+    public static final String PROP_SHARED_TEST_DEPENDENCIES = "net.luminis.osgitest.test.shareddependencies";
+    /**
+     * The test container the tests run in: {@link #CONTAINER_REMOTE} (default) or {@link #CONTAINER_EMBEDDED}.
+     */
+    public static final String PROP_CONTAINER = "net.luminis.osgitest.container";
+    /**
+     * Prefix of the system properties that configure the benchmarks (eg: net.luminis.osgitest.benchmark.seed).
+     * All of them are passed on to the testcontainer.
+     */
+    public static final String PROP_BENCHMARK_PREFIX = "net.luminis.osgitest.benchmark.";
+
+    /**
+     * Runs the framework in a separate VM started by Pax Runner, and talks to it over RMI.
+     */
+    public static final String CONTAINER_REMOTE = "remote";
+    /**
+     * Runs the framework in the VM of the test runner, started through the OSGi launching API.
+     * Only frameworks implementing OSGi R4.2 can be embedded.
+     */
+    public static final String CONTAINER_EMBEDDED = "embedded";
 
 
     /**
@@ -95,6 +128,26 @@ public class TestBase {
      */
     protected volatile BundleUtil m_bu;
 
+    /**
+     * Measurements of the running test, handed over to the host when the test is cleaned up.
+     */
+    protected volatile TestMeasurements m_measurements;
+
+    /**
+     * Answers the dump requests of the host when the test exceeds its deadline.
+     */
+    private volatile ContainerDiagnostics m_diagnostics;
+
+    /**
+     * Value of {@link System#nanoTime()} when {@link #setUp()} was done.
+     */
+    private volatile long m_setUpDone;
+
+    /**
+     * Set when the test left the framework busy, see {@link #skipBundleCleanup()}.
+     */
+    private volatile boolean m_skipBundleCleanup;
+
     /*
      * Classes we don't want to type, but don't want to import either.
      * These classes can be used to dynamically create bundles that import or
@@ -147,19 +200,69 @@ public class TestBase {
 
     @Before
     public void setUp() throws InterruptedException {
+        long setUpStart = System.nanoTime();
+        m_measurements = createMeasurements();
+        Bundle probe = m_context.getBundle();
+        m_diagnostics = ContainerDiagnostics.start(m_context,
+            (String) probe.getHeaders().get(Constants.PROBE_TEST_CLASS),
+            (String) probe.getHeaders().get(Constants.PROBE_TEST_METHOD));
+
         ServiceTracker tracker = new ServiceTracker(m_context, PackageAdmin.class.getName(), null);
         tracker.open();
         m_admin = (PackageAdmin) tracker.waitForService(5000);
         tracker.close();
         m_bu = new BundleUtil(m_context, m_admin, genericActivator);
+
+        m_setUpDone = System.nanoTime();
+        m_measurements.put(TestMeasurements.PHASE_SETUP, m_setUpDone - setUpStart);
     }
 
     @After
     public void cleanupBundles() {
+        long cleanupStart = System.nanoTime();
+        if (m_measurements != null) {
+            m_measurements.put(TestMeasurements.PHASE_TEST, cleanupStart - m_setUpDone);
+        }
+
+        try {
+            if (!m_skipBundleCleanup) {
+                uninstallTestBundles();
+            }
+        }
+        finally {
+            if (m_measurements != null) {
+                m_measurements.put(TestMeasurements.PHASE_CLEANUP, System.nanoTime() - cleanupStart);
+                if (m_bu != null) {
+                    for (Map.Entry<String, LatencyHistogram> histogram : m_bu.getHistograms().entrySet()) {
+                        m_measurements.putHistogram(histogram.getKey(), histogram.getValue());
+                    }
+                }
+                m_measurements.store();
+            }
+            if (m_diagnostics != null) {
+                m_diagnostics.stop();
+            }
+        }
+    }
+
+    /**
+     * Leaves the bundles of the test installed after it. Called by a test that left the framework busy (eg. a
+     * resolve that didn't finish within its deadline), since uninstalling and refreshing would wait for the
+     * framework and hang the cleanup. The test container isn't reused after the test, so the bundles don't affect
+     * other tests.
+     */
+    protected void skipBundleCleanup() {
+        m_skipBundleCleanup = true;
+    }
+
+    /**
+     * Uninstalls the bundles created by the test, and refreshes the framework.
+     */
+    private void uninstallTestBundles() {
         for (Bundle b : m_context.getBundles()) {
             if (b.getSymbolicName().startsWith(BundleUtil.BUNDLE_PREFIX)) {
                 try {
-                    b.uninstall();
+                    m_bu.uninstallBundle(b);
                 }
                 catch (BundleException e) {
                     e.printStackTrace(System.err);
@@ -169,6 +272,38 @@ public class TestBase {
         m_bu.refreshFrameworkAndWait(null);
     }
 
+    /**
+     * Creates the measurements for the running test. The test class and method are read from the headers
+     * Pax Exam puts in the manifest of the probe, the container timestamps are taken from the VM and the
+     * installed bundles.
+     *
+     * @return
+     */
+    private TestMeasurements createMeasurements() {
+        Bundle probe = m_context.getBundle();
+        TestMeasurements measurements = new TestMeasurements(
+            (String) probe.getHeaders().get(Constants.PROBE_TEST_CLASS),
+            (String) probe.getHeaders().get(Constants.PROBE_TEST_METHOD));
+
+        measurements.put(TestMeasurements.CONTAINER_VM_STARTED, ManagementFactory.getRuntimeMXBean().getStartTime());
+
+        /*
+         * The framework installs the first bundle right after it booted, so its install time marks the end
+         * of the framework boot.
+         */
+        long frameworkStarted = Long.MAX_VALUE;
+        for (Bundle b : m_context.getBundles()) {
+            if ((b.getBundleId() != 0) && (b.getLastModified() > 0)) {
+                frameworkStarted = Math.min(frameworkStarted, b.getLastModified());
+            }
+        }
+        if (frameworkStarted != Long.MAX_VALUE) {
+            measurements.put(TestMeasurements.CONTAINER_FRAMEWORK_STARTED, frameworkStarted);
+        }
+
+        return measurements;
+    }
+
     /**
      * Configuration setup for every test.
      * @return
@@ -184,7 +319,11 @@ public class TestBase {
              */
             PaxRunnerOptions.rawPaxRunnerOption("--config", PaxRunnerProperties.getPropertiesFile()),
             getCustomizedBundle(),
+            CoreOptions.systemProperty(TestMeasurements.PROP_MEASUREMENTS_DIR).value(TestMeasurements.getMeasurementsDir()),
+            getFixtureDir(),
+            getBenchmarkOptions(),
             getVmOption(),
+            getVmOptions(),
             PaxRunnerOptions.vmOption("-ea")); //-ea is needed to catch the assertion errors in the JUnit-tests
     }
 
@@ -342,11 +481,73 @@ public class TestBase {
     }
 
     /**
-     * Returns a TestBundleCustomizer.
-     * The customizer is used to add dependencies to the testbundle and its Bundle-Classpath
+     * Passes the directory of the prebuilt fixture library to the testcontainer, if it's set.
+     *
+     * @see FixtureLibrary
+     * @return
+     */
+    private static Option getFixtureDir() {
+        String fixtureDir = System.getProperty(FixtureLibrary.PROP_FIXTURE_DIR);
+
+        if (fixtureDir != null) {
+            return CoreOptions.systemProperty(FixtureLibrary.PROP_FIXTURE_DIR).value(fixtureDir);
+        }
+
+        return null;
+    }
+
+    /**
+     * Passes the system properties starting with {@link TestBase#PROP_BENCHMARK_PREFIX} on to the testcontainer,
+     * where the benchmarks read them.
+     *
+     * @see net.luminis.osgitest.testhelper.benchmark.BenchmarkBase
+     * @return
+     */
+    private static Option getBenchmarkOptions() {
+        ArrayList<Option> benchmarkOptions = new ArrayList<Option>();
+        Properties properties = System.getProperties();
+        synchronized (properties) {
+            for (Object key : properties.keySet()) {
+                if ((key instanceof String) && ((String) key).startsWith(PROP_BENCHMARK_PREFIX)) {
+                    String name = (String) key;
+                    benchmarkOptions.add(CoreOptions.systemProperty(name).value(properties.getProperty(name)));
+                }
+            }
+        }
+        return CoreOptions.composite(benchmarkOptions.toArray(new Option[benchmarkOptions.size()]));
+    }
+
+    /**
+     * Get the vm options defined in the system property named as {@link TestBase#PROP_VM_OPTIONS}.
+     * Pax Exam joins all vm options with spaces into a single Pax Runner argument, so a vm option can't
+     * contain whitespace anyway.
+     *
+     * The class data sharing archive of the framework isn't set here, it differs per framework and
+     * is added when the testcontainer is started.
+     *
+     * @see net.luminis.osgitest.core.ClassDataSharing
+     * @return
+     */
+    private static Option getVmOptions() {
+        String vmOptionsString = System.getProperty(PROP_VM_OPTIONS);
+
+        if ((vmOptionsString != null) && (vmOptionsString.trim().length() > 0)) {
+            return PaxRunnerOptions.vmOptions(vmOptionsString.trim().split("\\s+"));
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the option that makes the test dependencies available to the testbundle.
      * The dependency information is red from a dependency file set by the Java system
      * property {@link TestBase#PROP_TEST_DEPENDENCY_FILE}
      *
+     * By default this is a TestBundleCustomizer, that adds the dependencies to the testbundle and its Bundle-Classpath.
+     * If {@link TestBase#PROP_SHARED_TEST_DEPENDENCIES} is set, the dependencies are provisioned as bundles instead,
+     * and the testbundle imports from them (it has a DynamicImport-Package: *). This keeps the testbundle small, and
+     * the classes of the dependencies are loaded by their own bundles.
+     *
      * @return Option
      */
     private static Option getCustomizedBundle() {
@@ -355,13 +556,20 @@ public class TestBase {
         if (testDependencyFileName != null) {
 
             TestBundleCustomizer customizer = new TestBundleCustomizer();
+            ArrayList<Option> dependencyBundles = new ArrayList<Option>();
+            boolean shared = Boolean.getBoolean(PROP_SHARED_TEST_DEPENDENCIES);
 
             try {
                 File dependencyFile = new File(testDependencyFileName);
                 BufferedReader dependecyFileReader = new BufferedReader(new FileReader(dependencyFile));
                 String externalJar = null;
                 while ( (externalJar = dependecyFileReader.readLine()) != null) {
-                    customizer.addEmbeddedJar(externalJar);
+                    if (shared) {
+                        dependencyBundles.add(getDependencyBundle(new File(externalJar)));
+                    }
+                    else {
+                        customizer.addEmbeddedJar(externalJar);
+                    }
                 }
                 dependecyFileReader.close();
 
@@ -369,10 +577,38 @@ public class TestBase {
                 throw new RuntimeException("Unable to read testbundle dependency configuration file");
             }
 
+            if (shared) {
+                return CoreOptions.composite(dependencyBundles.toArray(new Option[dependencyBundles.size()]));
+            }
             return customizer;
         }
 
         return null;
     }
 
+    /**
+     * Returns the option to provision a test dependency as a bundle. Jars that aren't a bundle are wrapped,
+     * exporting all their packages and importing the packages they need optionally.
+     *
+     * @param jar
+     * @return
+     * @throws IOException
+     */
+    private static Option getDependencyBundle(File jar) throws IOException {
+        String url = jar.toURI().toString();
+
+        JarFile jarFile = new JarFile(jar);
+        try {
+            Manifest manifest = jarFile.getManifest();
+            if ((manifest != null) && (manifest.getMainAttributes().getValue(org.osgi.framework.Constants.BUNDLE_SYMBOLICNAME) != null)) {
+                return CoreOptions.bundle(url);
+            }
+        }
+        finally {
+            jarFile.close();
+        }
+
+        return CoreOptions.wrappedBundle(url).imports("*;resolution:=optional");
+    }
+
 }
@@ -0,0 +1,409 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Measurements taken inside the test container for a single test method.
+ *
+ * The test container runs in a separate VM, so the measurements are handed over to the host
+ * through a properties file in the exchange directory of the run and framework, which the host passes to the
+ * container as the system property named {@link TestMeasurements#PROP_EXCHANGE_DIR}. The exchange directories are
+ * kept in the directory named by {@link TestMeasurements#PROP_MEASUREMENTS_DIR}. The host takes (reads and removes)
+ * the file as soon as the test method has been executed.
+ */
+public class TestMeasurements {
+
+    /**
+     * Directory that holds the exchange directories of the test runs.
+     */
+    public static final String PROP_MEASUREMENTS_DIR = "net.luminis.osgitest.measurements.dir";
+    /**
+     * Directory where the container and the host exchange the files of a running test (see {@link ContainerDiagnostics}).
+     * The host passes a directory per run and framework, so concurrent runs and frameworks don't see each other's files.
+     */
+    public static final String PROP_EXCHANGE_DIR = "net.luminis.osgitest.exchange.dir";
+
+    /*
+     * Keys of the measurements that are always taken by {@link TestBase}.
+     */
+    /**
+     * Nanoseconds spent in the {@link org.junit.Before} methods.
+     */
+    public static final String PHASE_SETUP = "phase.setup";
+    /**
+     * Nanoseconds spent in the test method itself.
+     */
+    public static final String PHASE_TEST = "phase.test";
+    /**
+     * Nanoseconds spent in the {@link org.junit.After} methods.
+     */
+    public static final String PHASE_CLEANUP = "phase.cleanup";
+    /**
+     * Wall clock time (milliseconds since epoch) at which the container VM was started.
+     */
+    public static final String CONTAINER_VM_STARTED = "container.vm.started";
+    /**
+     * Wall clock time (milliseconds since epoch) at which the first bundle was installed in the framework.
+     */
+    public static final String CONTAINER_FRAMEWORK_STARTED = "container.framework.started";
+
+    /*
+     * Units of the results put by {@link #putResult(String, String, String, double, String)}.
+     */
+    /**
+     * Nanoseconds.
+     */
+    public static final String UNIT_NANOS = "ns";
+    /**
+     * Bytes.
+     */
+    public static final String UNIT_BYTES = "bytes";
+    /**
+     * A number of things (eg: events, failures).
+     */
+    public static final String UNIT_COUNT = "count";
+    /**
+     * Operations per second.
+     */
+    public static final String UNIT_OPS_PER_SECOND = "ops/s";
+
+    private static final String FILE_EXTENSION = ".properties";
+
+    /**
+     * Results are stored under this prefix followed by a sequence number, which keeps them in the order they were put.
+     */
+    private static final String RESULT_PREFIX = "result.";
+    private static final String RESULT_SEPARATOR = "\t";
+    /**
+     * Histograms are stored under this prefix followed by their name.
+     */
+    private static final String HISTOGRAM_PREFIX = "histogram.";
+
+    private final String m_className;
+    private final String m_methodName;
+    private final Properties m_measurements = new Properties();
+    private int m_resultCount;
+
+    /**
+     * Creates a new set of measurements for a test method.
+     *
+     * @param className The name of the test class.
+     * @param methodName The name of the test method.
+     */
+    public TestMeasurements(String className, String methodName) {
+        m_className = className;
+        m_methodName = methodName;
+    }
+
+    /**
+     * Adds a measurement.
+     *
+     * @param key The name of the measurement.
+     * @param value The measured value.
+     * @return This object, allowing chaining.
+     */
+    public TestMeasurements put(String key, long value) {
+        return put(key, Long.toString(value));
+    }
+
+    /**
+     * Adds a measurement.
+     *
+     * @param key The name of the measurement.
+     * @param value The measured value.
+     * @return This object, allowing chaining.
+     */
+    public TestMeasurements put(String key, String value) {
+        if ((key != null) && (value != null)) {
+            m_measurements.setProperty(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a result of a benchmark. Results form series of points (eg: the install time of 10, 100 and 1000 bundles),
+     * and are reported per test by the result formatter.
+     *
+     * @param series The name of the series (eg: install)
+     * @param x The point in the series (eg: 1000 for the install time of 1000 bundles)
+     * @param metric The name of the measured value (eg: time)
+     * @param value The measured value.
+     * @param unit The unit of the value, one of the UNIT_ constants or any other unit.
+     * @return This object, allowing chaining.
+     */
+    public synchronized TestMeasurements putResult(String series, String x, String metric, double value, String unit) {
+        return put(RESULT_PREFIX + m_resultCount++,
+            series + RESULT_SEPARATOR + x + RESULT_SEPARATOR + metric + RESULT_SEPARATOR + value + RESULT_SEPARATOR + unit);
+    }
+
+    /**
+     * Adds a latency histogram (eg: of all bundle installs of the test), reported per test by the result formatter.
+     *
+     * @param name The name of the histogram.
+     * @param histogram
+     * @return This object, allowing chaining.
+     */
+    public TestMeasurements putHistogram(String name, LatencyHistogram histogram) {
+        return put(HISTOGRAM_PREFIX + name, histogram.encode());
+    }
+
+    /**
+     * Stores the measurements in the exchange directory named by the system property {@link TestMeasurements#PROP_EXCHANGE_DIR}.
+     * Nothing is stored if the property isn't set, eg. when the test isn't started by the host.
+     */
+    public void store() {
+        if ((System.getProperty(PROP_EXCHANGE_DIR) == null) || (m_className == null) || (m_methodName == null)) {
+            return;
+        }
+
+        OutputStream out = null;
+        try {
+            File file = getExchangeFile(getExchangeDir(), m_className, m_methodName, FILE_EXTENSION);
+            file.getParentFile().mkdirs();
+            out = new FileOutputStream(file);
+            m_measurements.store(out, null);
+        }
+        catch (IOException e) {
+            /*
+             * Measurements are informational only, they should never let a test fail.
+             */
+            e.printStackTrace(System.err);
+        }
+        finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Takes the measurements the container stored for a test method. The file containing the measurements
+     * is removed, so the measurements can only be taken once.
+     *
+     * @param exchangeDir The exchange directory passed to the container, see {@link #getExchangeDir(String, String)}.
+     * @param className The name of the test class.
+     * @param methodName The name of the test method.
+     * @return The measurements, or an empty {@link Properties} object if the container didn't store any.
+     */
+    public static Properties take(File exchangeDir, String className, String methodName) {
+        Properties measurements = new Properties();
+        File file = getExchangeFile(exchangeDir, className, methodName, FILE_EXTENSION);
+        if (!file.isFile()) {
+            return measurements;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            measurements.load(in);
+        }
+        catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        finally {
+            close(in);
+            file.delete();
+        }
+        return measurements;
+    }
+
+    /**
+     * Returns the results put in these measurements, in the order they were put.
+     *
+     * @return
+     */
+    public List<Result> getResults() {
+        return getResults(m_measurements);
+    }
+
+    /**
+     * Returns the results of a benchmark from the measurements, in the order they were put.
+     *
+     * @see #putResult(String, String, String, double, String)
+     * @param measurements The measurements taken by {@link #take(File, String, String)}.
+     * @return
+     */
+    public static List<Result> getResults(Properties measurements) {
+        SortedMap<Integer, Result> results = new TreeMap<Integer, Result>();
+        for (Map.Entry<Object, Object> e : measurements.entrySet()) {
+            String key = (String) e.getKey();
+            if (key.startsWith(RESULT_PREFIX)) {
+                String[] fields = ((String) e.getValue()).split(RESULT_SEPARATOR, -1);
+                try {
+                    results.put(Integer.valueOf(key.substring(RESULT_PREFIX.length())),
+                        new Result(fields[0], fields[1], fields[2], Double.parseDouble(fields[3]), fields[4]));
+                }
+                catch (RuntimeException ignore) {
+                    // Not a result put by putResult.
+                }
+            }
+        }
+        return new ArrayList<Result>(results.values());
+    }
+
+    /**
+     * Returns the latency histograms from the measurements.
+     *
+     * @see #putHistogram(String, LatencyHistogram)
+     * @param measurements The measurements taken by {@link #take(File, String, String)}.
+     * @return The histograms by name, sorted by name.
+     */
+    public static SortedMap<String, LatencyHistogram> getHistograms(Properties measurements) {
+        SortedMap<String, LatencyHistogram> histograms = new TreeMap<String, LatencyHistogram>();
+        for (Map.Entry<Object, Object> e : measurements.entrySet()) {
+            String key = (String) e.getKey();
+            if (key.startsWith(HISTOGRAM_PREFIX)) {
+                try {
+                    histograms.put(key.substring(HISTOGRAM_PREFIX.length()), LatencyHistogram.decode((String) e.getValue()));
+                }
+                catch (IllegalArgumentException ignore) {
+                    // Not a histogram put by putHistogram.
+                }
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * Get the directory where measurements are exchanged. This is the value of the system property named
+     * {@link TestMeasurements#PROP_MEASUREMENTS_DIR}, or a directory in the temp dir if it isn't set.
+     *
+     * @return
+     */
+    public static String getMeasurementsDir() {
+        String dir = System.getProperty(PROP_MEASUREMENTS_DIR);
+        if (dir == null) {
+            dir = new File(System.getProperty("java.io.tmpdir"), "osgitest-measurements").getAbsolutePath();
+        }
+        return dir;
+    }
+
+    /**
+     * Returns the directory the container exchanges files with the host in. This is the value of the system
+     * property named {@link TestMeasurements#PROP_EXCHANGE_DIR}, or a directory in the measurements directory
+     * if it isn't set.
+     *
+     * @return
+     */
+    public static File getExchangeDir() {
+        String dir = System.getProperty(PROP_EXCHANGE_DIR);
+        if (dir == null) {
+            return new File(getMeasurementsDir(), "exchange");
+        }
+        return new File(dir);
+    }
+
+    /**
+     * Returns the directory the files of a test run are exchanged in.
+     *
+     * @param runId The id of the test run.
+     * @return
+     */
+    public static File getExchangeDir(String runId) {
+        return new File(new File(getMeasurementsDir(), "exchange"), toFileName(runId));
+    }
+
+    /**
+     * Returns the directory the files of the tests on a framework in a test run are exchanged in.
+     *
+     * @param runId The id of the test run.
+     * @param framework The framework vendor and version (eg: felix/1.8.0)
+     * @return
+     */
+    public static File getExchangeDir(String runId, String framework) {
+        return new File(getExchangeDir(runId), toFileName(framework));
+    }
+
+    /**
+     * Returns a file that is exchanged between the container and the host for a test method.
+     *
+     * @param dir The exchange directory, see {@link #getExchangeDir()}.
+     * @param className The name of the test class.
+     * @param methodName The name of the test method.
+     * @param extension The extension that tells the kind of file (eg: .pid)
+     * @return
+     */
+    public static File getExchangeFile(File dir, String className, String methodName, String extension) {
+        return new File(dir, className + "#" + methodName + extension);
+    }
+
+    private static String toFileName(String name) {
+        return name.replaceAll("[^a-zA-Z0-9._-]", "_");
+    }
+
+    private static void close(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            }
+            catch (IOException ignore) { }
+        }
+    }
+
+    /**
+     * A result of a benchmark, see {@link TestMeasurements#putResult(String, String, String, double, String)}.
+     */
+    public static class Result {
+        private final String m_series;
+        private final String m_x;
+        private final String m_metric;
+        private final double m_value;
+        private final String m_unit;
+
+        Result(String series, String x, String metric, double value, String unit) {
+            m_series = series;
+            m_x = x;
+            m_metric = metric;
+            m_value = value;
+            m_unit = unit;
+        }
+
+        public String getSeries() {
+            return m_series;
+        }
+
+        public String getX() {
+            return m_x;
+        }
+
+        public String getMetric() {
+            return m_metric;
+        }
+
+        public double getValue() {
+            return m_value;
+        }
+
+        public String getUnit() {
+            return m_unit;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+import net.luminis.osgitest.testhelper.TestBase;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+
+/**
+ * Base class for benchmarks. A benchmark is an abstract test class, extend it in the test sources to run it like
+ * any other test, on every vendor selected for the test run:
+ *
+ * public class ResolverBenchmarkTest extends ResolverBenchmark { }
+ *
+ * Benchmarks are configured with system properties starting with {@link TestBase#PROP_BENCHMARK_PREFIX}, which
+ * are passed on to the testcontainer. Their results are reported per test in the result XML, see
+ * {@link TestMeasurements#putResult(String, String, String, double, String)}.
+ */
+public abstract class BenchmarkBase extends TestBase {
+
+    /**
+     * Seed of the random generators of the benchmarks. Using the same seed on every vendor
+     * benchmarks every vendor with the same bundles.
+     */
+    public static final String PROP_SEED = PROP_BENCHMARK_PREFIX + "seed";
+
+    /**
+     * Seed used when {@link #PROP_SEED} isn't set.
+     */
+    public static final long DEFAULT_SEED = 42;
+
+    /**
+     * Name of the metric of timed results.
+     */
+    public static final String METRIC_TIME = "time";
+
+    /**
+     * Name of the metric of the operations per second.
+     */
+    public static final String METRIC_THROUGHPUT = "throughput";
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    /**
+     * Returns the seed for the random generators of the benchmark.
+     *
+     * @return The value of {@link #PROP_SEED}, or {@link #DEFAULT_SEED} if it isn't set.
+     */
+    protected static long getSeed() {
+        return Long.getLong(PROP_SEED, DEFAULT_SEED).longValue();
+    }
+
+    /**
+     * Returns the sizes a benchmark is run with.
+     *
+     * @param property The system property with a comma separated list of sizes (eg: 10, 100, 1000)
+     * @param defaults The sizes used when the property isn't set.
+     * @return
+     */
+    protected static int[] getSizes(String property, int[] defaults) {
+        String value = System.getProperty(property);
+        if ((value == null) || (value.trim().length() == 0)) {
+            return defaults;
+        }
+
+        String[] values = value.trim().split("\\s*,\\s*");
+        int[] sizes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            sizes[i] = Integer.parseInt(values[i]);
+        }
+        return sizes;
+    }
+
+    /**
+     * Adds a timed result of the benchmark.
+     *
+     * @param series The name of the series (eg: install)
+     * @param x The point in the series, usually the size (eg: the number of bundles)
+     * @param nanos The time in nanoseconds.
+     */
+    protected void putTime(String series, int x, long nanos) {
+        putResult(series, x, METRIC_TIME, nanos, TestMeasurements.UNIT_NANOS);
+    }
+
+    /**
+     * Adds the mean time of an operation that was repeated, and the throughput of the operation.
+     *
+     * @param series The name of the series (eg: register)
+     * @param x The point in the series, usually the size (eg: the number of services)
+     * @param nanos The time of all operations together in nanoseconds.
+     * @param operations The number of operations.
+     */
+    protected void putTimePerOperation(String series, int x, long nanos, long operations) {
+        putResult(series, x, METRIC_TIME, (double) nanos / operations, TestMeasurements.UNIT_NANOS);
+        putResult(series, x, METRIC_THROUGHPUT, operations * NANOS_PER_SECOND / Math.max(1, nanos), TestMeasurements.UNIT_OPS_PER_SECOND);
+    }
+
+    /**
+     * Adds a result of the benchmark, it ends up in the results of the test.
+     *
+     * @param series The name of the series (eg: install)
+     * @param x The point in the series, usually the size (eg: the number of bundles)
+     * @param metric The name of the measured value (eg: time)
+     * @param value The measured value.
+     * @param unit The unit of the value, see the UNIT_ constants of {@link TestMeasurements}.
+     */
+    protected void putResult(String series, int x, String metric, double value, String unit) {
+        m_measurements.putResult(series, Integer.toString(x), metric, value, unit);
+    }
+
+    /**
+     * Runs a task in a separate thread and waits for it until a deadline. A pathological framework makes the
+     * benchmark fail cleanly instead of hanging. The thread of the task is interrupted when the deadline passes,
+     * but it might keep running (and holding locks of the framework), so the bundles of the test aren't uninstalled
+     * after a timeout (see {@link #skipBundleCleanup()}); the watchdog of the test run takes care of a container
+     * that doesn't recover.
+     *
+     * @param description Description of the task, used in the failure message (eg: resolving 20 bundles)
+     * @param millis The deadline in milliseconds.
+     * @param task
+     * @return The result of the task.
+     * @throws AssertionError Is thrown when the task didn't finish within the deadline.
+     * @throws Exception Is thrown when the task throws an exception.
+     */
+    protected <T> T runWithDeadline(String description, long millis, Callable<T> task) throws Exception {
+        FutureTask<T> future = new FutureTask<T>(task);
+        Thread thread = new Thread(future, "Benchmark task: " + description);
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            return future.get(millis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            thread.interrupt();
+            skipBundleCleanup();
+            throw new AssertionError(description + " didn't finish within " + millis + " ms.");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the memory used by the testcontainer after a garbage collection.
+     *
+     * @return The used heap in bytes.
+     */
+    protected static long getUsedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 2; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Generates the jars of the bundles up front, so installing them only measures the framework.
+     *
+     * @param specifiers
+     * @return The jars, in the order of the specifiers.
+     * @throws IOException Is thrown when some of the packed elements of a bundle cannot be packed properly.
+     */
+    protected List<ByteArrayInputStream> generateBundles(List<BundleSpecifier> specifiers) throws IOException {
+        List<ByteArrayInputStream> jars = new ArrayList<ByteArrayInputStream>(specifiers.size());
+        for (BundleSpecifier specifier : specifiers) {
+            jars.add(m_bu.generateBundle(specifier));
+        }
+        return jars;
+    }
+
+    /**
+     * Installs bundles generated by {@link #generateBundles(List)}.
+     *
+     * @param specifiers
+     * @param jars
+     * @return The installed bundles, in the order of the specifiers.
+     */
+    protected Bundle[] installBundles(List<BundleSpecifier> specifiers, List<ByteArrayInputStream> jars) throws BundleException {
+        return installBundles(m_context, specifiers, jars);
+    }
+
+    /**
+     * Installs bundles generated by {@link #generateBundles(List)} in another framework (eg: a {@link NestedFramework}).
+     *
+     * @param context The context to install the bundles with.
+     * @param specifiers
+     * @param jars
+     * @return The installed bundles, in the order of the specifiers.
+     */
+    protected static Bundle[] installBundles(BundleContext context, List<BundleSpecifier> specifiers, List<ByteArrayInputStream> jars)
+        throws BundleException {
+        Bundle[] bundles = new Bundle[specifiers.size()];
+        for (int i = 0; i < bundles.length; i++) {
+            bundles[i] = context.installBundle(specifiers.get(i).getName(), jars.get(i));
+        }
+        return bundles;
+    }
+
+    /**
+     * Uninstalls bundles and refreshes the framework, so the next run of the benchmark starts with a clean framework.
+     *
+     * @param bundles
+     */
+    protected void uninstallBundles(Bundle[] bundles) {
+        for (Bundle b : bundles) {
+            if ((b != null) && (b.getState() != Bundle.UNINSTALLED)) {
+                try {
+                    b.uninstall();
+                }
+                catch (BundleException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+        m_bu.refreshFrameworkAndWait(null);
+    }
+
+    /**
+     * Counts the bundles that aren't resolved.
+     *
+     * @param bundles
+     * @return
+     */
+    protected static int countUnresolved(Bundle[] bundles) {
+        int unresolved = 0;
+        for (Bundle b : bundles) {
+            if (b.getState() == Bundle.INSTALLED) {
+                unresolved++;
+            }
+        }
+        return unresolved;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+import net.luminis.osgitest.testhelper.BundleUtil;
+
+/**
+ * A random graph of bundles importing and exporting synthetic packages, generated from a seed.
+ *
+ * Every bundle exports one or more packages with the same version, and imports packages exported by other bundles,
+ * with a version range matching the export, without a version or optionally. Cycles are allowed, like in real
+ * applications. Every import can be satisfied, so all bundles of the graph should resolve.
+ *
+ * The graph only depends on the seed and its parameters ({@link Random} has a specified algorithm), so the same
+ * graph is generated on every vendor.
+ */
+public class BundleGraph {
+
+    /**
+     * Prefix of the names of the bundles and their packages.
+     */
+    public static final String NAME_PREFIX = "graph";
+
+    private static final String[] VERSIONS = {"1.0.0", "1.1.0", "1.5.0", "2.0.0", "3.2.1"};
+    private static final String[] RANGES = {"[1.0,2)", "[1.1,2)", "[1.5,2)", "[2.0,3)", "[3.2,4)"};
+    private static final int CLASSES_PER_PACKAGE = 2;
+
+    private final long m_seed;
+    private final int m_size;
+    private final int[] m_exportCounts;
+    private final int[] m_versions;
+    private final List<List<int[]>> m_imports;
+    private int m_importCount;
+
+    /**
+     * Generates a graph where bundles export up to 3 packages and import up to 5.
+     *
+     * @param seed The seed of the graph.
+     * @param size The number of bundles.
+     */
+    public BundleGraph(long seed, int size) {
+        this(seed, size, 3, 5);
+    }
+
+    /**
+     * Generates a graph.
+     *
+     * @param seed The seed of the graph.
+     * @param size The number of bundles.
+     * @param maxExports The maximum number of packages exported by a bundle, at least 1.
+     * @param maxImports The maximum number of packages imported by a bundle.
+     */
+    public BundleGraph(long seed, int size, int maxExports, int maxImports) {
+        m_seed = seed;
+        m_size = size;
+        m_exportCounts = new int[size];
+        m_versions = new int[size];
+        m_imports = new ArrayList<List<int[]>>(size);
+
+        Random random = new Random(seed);
+        for (int i = 0; i < size; i++) {
+            m_exportCounts[i] = 1 + random.nextInt(Math.max(1, maxExports));
+            m_versions[i] = random.nextInt(VERSIONS.length);
+        }
+        for (int i = 0; i < size; i++) {
+            List<int[]> imports = new ArrayList<int[]>();
+            int count = (size > 1) ? random.nextInt(maxImports + 1) : 0;
+            Set<String> imported = new LinkedHashSet<String>();
+            for (int k = 0; k < count; k++) {
+                int exporter = random.nextInt(size - 1);
+                if (exporter >= i) {
+                    exporter++;
+                }
+                int pack = random.nextInt(m_exportCounts[exporter]);
+                /*
+                 * 0: matching version range, 1: no version, 2: optional with matching version range
+                 */
+                int kind = random.nextInt(10);
+                kind = (kind < 7) ? 0 : (kind < 9) ? 1 : 2;
+                if (imported.add(getPackageName(exporter, pack))) {
+                    imports.add(new int[] {exporter, pack, kind});
+                    m_importCount++;
+                }
+            }
+            m_imports.add(imports);
+        }
+    }
+
+    /**
+     * Creates the specifiers of the bundles in the graph.
+     *
+     * @param bu The {@link BundleUtil} that creates the specifiers.
+     * @return The specifiers, the bundle with index i is at position i.
+     */
+    public List<BundleSpecifier> createBundles(BundleUtil bu) {
+        List<BundleSpecifier> bundles = new ArrayList<BundleSpecifier>(m_size);
+        for (int i = 0; i < m_size; i++) {
+            BundleSpecifier bs = bu.createBundleSpecifier(getBundleName(i));
+            bs.exportSyntheticPackages(getPackagePrefix(i), m_exportCounts[i], CLASSES_PER_PACKAGE, VERSIONS[m_versions[i]]);
+            for (int[] imp : m_imports.get(i)) {
+                BundleSpecifier.ImportPackage ip = bu.createImportPackage(getPackageName(imp[0], imp[1]));
+                if (imp[2] != 1) {
+                    ip.setVersion(RANGES[m_versions[imp[0]]]);
+                }
+                ip.setResolutionOptional(imp[2] == 2);
+                bs.addImport(ip);
+            }
+            bundles.add(bs);
+        }
+        return bundles;
+    }
+
+    public long getSeed() {
+        return m_seed;
+    }
+
+    /**
+     * Returns the number of bundles in the graph.
+     *
+     * @return
+     */
+    public int getSize() {
+        return m_size;
+    }
+
+    /**
+     * Returns the number of package imports of all bundles together, the number of edges of the graph.
+     *
+     * @return
+     */
+    public int getImportCount() {
+        return m_importCount;
+    }
+
+    /**
+     * Returns the name of a bundle in the graph, without the prefix of {@link BundleUtil#BUNDLE_PREFIX}.
+     *
+     * @param index The index of the bundle.
+     * @return
+     */
+    public static String getBundleName(int index) {
+        return NAME_PREFIX + ".b" + index;
+    }
+
+    /**
+     * Returns the name of a package exported by a bundle in the graph.
+     *
+     * @param index The index of the bundle.
+     * @param pack The index of the package in the bundle.
+     * @return
+     */
+    public static String getPackageName(int index, int pack) {
+        return BundleSpecifier.getSyntheticPackageName(getPackagePrefix(index), pack);
+    }
+
+    private static String getPackagePrefix(int index) {
+        return NAME_PREFIX + ".b" + index;
+    }
+}
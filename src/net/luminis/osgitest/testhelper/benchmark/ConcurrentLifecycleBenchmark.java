@@ -0,0 +1,375 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.service.packageadmin.ExportedPackage;
+
+/**
+ * Runs lifecycle operations on generated bundles from many threads at once, while other threads query the bundles,
+ * the package wiring and the services. This is what a hot deployment does, and what none of the other tests
+ * (nor {@link net.luminis.osgitest.testhelper.BundleUtil}) do: they assume a single thread.
+ *
+ * Every lifecycle thread owns a number of slots, which it fills by installing a bundle and empties by uninstalling
+ * it. It starts, stops, updates and resolves the bundles of all slots, so threads contend for the same bundles.
+ * The bundles all import a package of an API bundle, and export a package of their own.
+ *
+ * The results are series per number of lifecycle threads (there are as many query threads):
+ * <ul>
+ * <li>lifecycle: the mean time and the throughput of the operations, the maximum time of an operation, and the
+ * symptoms of contention: the BundleExceptions (eg: a state change that timed out), the IllegalStateExceptions
+ * (an operation on a bundle that was just uninstalled by another thread) and other errors.</li>
+ * <li>queries: the mean time and throughput of a round of queries, and the errors thrown by the queries.</li>
+ * <li>consistency: the number of violations found while running, and after all threads are done and the
+ * framework is refreshed: bundles that got lost or leaked, have an invalid state, are stuck starting or stopping,
+ * don't resolve, or aren't wired to the API bundle.</li>
+ * </ul>
+ */
+public abstract class ConcurrentLifecycleBenchmark extends BenchmarkBase {
+
+    /**
+     * Comma separated list of the numbers of lifecycle threads to benchmark with.
+     */
+    public static final String PROP_SIZES = PROP_BENCHMARK_PREFIX + "concurrency.sizes";
+    /**
+     * The number of slots per lifecycle thread.
+     */
+    public static final String PROP_SLOTS = PROP_BENCHMARK_PREFIX + "concurrency.slots";
+    /**
+     * The time in milliseconds the threads run for every size.
+     */
+    public static final String PROP_DURATION = PROP_BENCHMARK_PREFIX + "concurrency.duration";
+    /**
+     * The time in milliseconds the threads get to finish after the duration. Threads that didn't finish by then
+     * are considered hanging (eg: deadlocked in the framework).
+     */
+    public static final String PROP_DEADLINE = PROP_BENCHMARK_PREFIX + "concurrency.deadline";
+
+    private static final int[] DEFAULT_SIZES = {1, 2, 4, 8, 16};
+    private static final int DEFAULT_SLOTS = 10;
+    private static final long DEFAULT_DURATION = 5000;
+    private static final long DEFAULT_DEADLINE = 60000;
+
+    private static final String PREFIX = "concurrency";
+    private static final String API = PREFIX + ".api";
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int OPERATION_INSTALL_UNINSTALL = 0;
+    private static final int OPERATION_START = 1;
+    private static final int OPERATION_STOP = 2;
+    private static final int OPERATION_UPDATE = 3;
+    private static final int OPERATION_RESOLVE = 4;
+    private static final int OPERATIONS = 5;
+
+    private final AtomicLong m_operations = new AtomicLong();
+    private final AtomicLong m_operationNanos = new AtomicLong();
+    private final AtomicLong m_maxOperationNanos = new AtomicLong();
+    private final AtomicLong m_bundleExceptions = new AtomicLong();
+    private final AtomicLong m_illegalStates = new AtomicLong();
+    private final AtomicLong m_errors = new AtomicLong();
+    private final AtomicLong m_queries = new AtomicLong();
+    private final AtomicLong m_queryNanos = new AtomicLong();
+    private final AtomicLong m_queryErrors = new AtomicLong();
+    private final AtomicLong m_violations = new AtomicLong();
+    /**
+     * Description of the first consistency violation, reported when the test fails.
+     */
+    private final AtomicReference<String> m_firstViolation = new AtomicReference<String>();
+
+    private volatile boolean m_running;
+
+    @Test
+    public void concurrentLifecycle() throws Exception {
+        List<BundleSpecifier> specifiers = new ArrayList<BundleSpecifier>();
+        specifiers.add(m_bu.createBundleSpecifier(API).addSyntheticPackage(API, 2).addExport(m_bu.createExportPackage(API)));
+        Bundle[] api = installBundles(specifiers, generateBundles(specifiers));
+        m_admin.resolveBundles(api);
+        for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            benchmark(size, api[0]);
+        }
+        // After a failure the framework might hang on a refresh, so the bundles are only uninstalled when all went
+        // well. Otherwise the cleanup of TestBase takes care of them, or skips them if a deadline passed.
+        uninstallBundles(api);
+    }
+
+    private void benchmark(int size, final Bundle api) throws Exception {
+        int slotCount = size * Integer.getInteger(PROP_SLOTS, DEFAULT_SLOTS).intValue();
+        final String[] locations = new String[slotCount];
+        final byte[][] jars = new byte[slotCount][];
+        List<BundleSpecifier> specifiers = new ArrayList<BundleSpecifier>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            String name = PREFIX + ".slot" + i;
+            specifiers.add(m_bu.createBundleSpecifier(name).addSyntheticPackage(name, 2)
+                .addExport(m_bu.createExportPackage(name)).addImport(m_bu.createImportPackage(API)));
+            locations[i] = specifiers.get(i).getName();
+        }
+        List<ByteArrayInputStream> streams = generateBundles(specifiers);
+        for (int i = 0; i < slotCount; i++) {
+            jars[i] = new byte[streams.get(i).available()];
+            streams.get(i).read(jars[i]);
+        }
+
+        final AtomicReferenceArray<Bundle> slots = new AtomicReferenceArray<Bundle>(slotCount);
+        for (AtomicLong counter : new AtomicLong[] {m_operations, m_operationNanos, m_maxOperationNanos, m_bundleExceptions,
+            m_illegalStates, m_errors, m_queries, m_queryNanos, m_queryErrors, m_violations}) {
+            counter.set(0);
+        }
+        m_firstViolation.set(null);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < size; i++) {
+            final int first = i * (slotCount / size);
+            final int last = first + (slotCount / size);
+            final Random random = new Random(getSeed() + i);
+            threads.add(new Thread("Lifecycle " + i) {
+                @Override
+                public void run() {
+                    while (m_running) {
+                        operate(random, slots, first, last, locations, jars);
+                    }
+                }
+            });
+            threads.add(new Thread("Queries " + i) {
+                @Override
+                public void run() {
+                    while (m_running) {
+                        query();
+                    }
+                }
+            });
+        }
+
+        long duration = Long.getLong(PROP_DURATION, DEFAULT_DURATION).longValue();
+        long deadline = Long.getLong(PROP_DEADLINE, DEFAULT_DEADLINE).longValue();
+        int hanging = 0;
+        m_running = true;
+        long start = System.nanoTime();
+        try {
+            for (Thread thread : threads) {
+                thread.setDaemon(true);
+                thread.start();
+            }
+            Thread.sleep(duration);
+        }
+        finally {
+            m_running = false;
+        }
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime())));
+            if (thread.isAlive()) {
+                hanging++;
+                thread.interrupt();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long operations = Math.max(1, m_operations.get());
+        putResult("lifecycle", size, METRIC_TIME, (double) m_operationNanos.get() / operations, TestMeasurements.UNIT_NANOS);
+        putResult("lifecycle", size, METRIC_THROUGHPUT, operations * NANOS_PER_SECOND / elapsed, TestMeasurements.UNIT_OPS_PER_SECOND);
+        putResult("lifecycle", size, "time-max", m_maxOperationNanos.get(), TestMeasurements.UNIT_NANOS);
+        putResult("lifecycle", size, "bundle-exceptions", m_bundleExceptions.get(), TestMeasurements.UNIT_COUNT);
+        putResult("lifecycle", size, "illegal-states", m_illegalStates.get(), TestMeasurements.UNIT_COUNT);
+        putResult("lifecycle", size, "errors", m_errors.get(), TestMeasurements.UNIT_COUNT);
+        putResult("lifecycle", size, "hanging-threads", hanging, TestMeasurements.UNIT_COUNT);
+        long queries = Math.max(1, m_queries.get());
+        putResult("queries", size, METRIC_TIME, (double) m_queryNanos.get() / queries, TestMeasurements.UNIT_NANOS);
+        putResult("queries", size, METRIC_THROUGHPUT, queries * NANOS_PER_SECOND / elapsed, TestMeasurements.UNIT_OPS_PER_SECOND);
+        putResult("queries", size, "errors", m_queryErrors.get(), TestMeasurements.UNIT_COUNT);
+
+        if (hanging > 0) {
+            skipBundleCleanup();
+        }
+        assert hanging == 0 : hanging + " of " + threads.size() + " threads didn't finish within " + deadline + " ms.";
+
+        final Bundle[] bundles = new Bundle[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            bundles[i] = slots.get(i);
+        }
+        runWithDeadline("checking the consistency after " + size + " threads", deadline, new Callable<Object>() {
+            public Object call() throws Exception {
+                checkConsistency(bundles, locations, api);
+                return null;
+            }
+        });
+        putResult("consistency", size, "violations", m_violations.get(), TestMeasurements.UNIT_COUNT);
+        assert m_violations.get() == 0 : m_violations.get() + " consistency violations with " + size + " threads, the first: "
+            + m_firstViolation.get();
+        uninstallBundles(bundles);
+    }
+
+    /**
+     * Runs a random lifecycle operation. Only the slots from first (inclusive) to last (exclusive) are installed
+     * and uninstalled, all other operations pick any slot.
+     */
+    private void operate(Random random, AtomicReferenceArray<Bundle> slots, int first, int last, String[] locations, byte[][] jars) {
+        int operation = random.nextInt(OPERATIONS);
+        int slot = (operation == OPERATION_INSTALL_UNINSTALL) ? first + random.nextInt(last - first) : random.nextInt(slots.length());
+        Bundle bundle = slots.get(slot);
+        if ((bundle == null) && (operation != OPERATION_INSTALL_UNINSTALL)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            switch (operation) {
+                case OPERATION_INSTALL_UNINSTALL:
+                    if (bundle == null) {
+                        slots.set(slot, m_context.installBundle(locations[slot], new ByteArrayInputStream(jars[slot])));
+                    }
+                    else {
+                        slots.set(slot, null);
+                        bundle.uninstall();
+                    }
+                    break;
+                case OPERATION_START:
+                    bundle.start();
+                    break;
+                case OPERATION_STOP:
+                    bundle.stop();
+                    break;
+                case OPERATION_UPDATE:
+                    bundle.update(new ByteArrayInputStream(jars[slot]));
+                    break;
+                default:
+                    m_admin.resolveBundles(new Bundle[] {bundle});
+            }
+        }
+        catch (BundleException e) {
+            m_bundleExceptions.incrementAndGet();
+        }
+        catch (IllegalStateException e) {
+            m_illegalStates.incrementAndGet();
+        }
+        catch (RuntimeException e) {
+            if (m_errors.getAndIncrement() == 0) {
+                e.printStackTrace(System.err);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        m_operations.incrementAndGet();
+        m_operationNanos.addAndGet(nanos);
+        long max = m_maxOperationNanos.get();
+        while ((nanos > max) && !m_maxOperationNanos.compareAndSet(max, nanos)) {
+            max = m_maxOperationNanos.get();
+        }
+    }
+
+    /**
+     * Runs a round of queries: the bundles and their states, the exported packages and their importers, and all
+     * services. A bundle with a state that isn't one of the states of {@link Bundle} is a consistency violation.
+     */
+    private void query() {
+        long start = System.nanoTime();
+        try {
+            for (Bundle bundle : m_context.getBundles()) {
+                if (!isValidState(bundle.getState())) {
+                    violation("Bundle " + bundle.getSymbolicName() + " has an invalid state " + bundle.getState() + ".");
+                }
+            }
+            ExportedPackage[] exports = m_admin.getExportedPackages((Bundle) null);
+            if (exports != null) {
+                for (ExportedPackage export : exports) {
+                    export.getImportingBundles();
+                }
+            }
+            m_context.getServiceReferences(null, null);
+        }
+        catch (Exception e) {
+            if (m_queryErrors.getAndIncrement() == 0) {
+                e.printStackTrace(System.err);
+            }
+        }
+        m_queries.incrementAndGet();
+        m_queryNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Checks the bundles after all threads are done.
+     *
+     * @param bundles The bundles in the slots, null for an empty slot.
+     * @param locations The locations of the bundles of the slots.
+     * @param api The bundle exporting the package all bundles import.
+     */
+    private void checkConsistency(Bundle[] bundles, String[] locations, Bundle api) {
+        Set<String> installed = new HashSet<String>();
+        for (Bundle b : m_context.getBundles()) {
+            installed.add(b.getLocation());
+        }
+        List<Bundle> present = new ArrayList<Bundle>();
+        for (int i = 0; i < bundles.length; i++) {
+            if (bundles[i] == null) {
+                if (installed.contains(locations[i])) {
+                    violation("The bundle of empty slot " + i + " is still installed.");
+                }
+            }
+            else if (!installed.contains(locations[i]) || (bundles[i].getState() == Bundle.UNINSTALLED)) {
+                violation("The bundle of slot " + i + " got lost.");
+            }
+            else if (!isValidState(bundles[i].getState()) || (bundles[i].getState() == Bundle.STARTING)
+                || (bundles[i].getState() == Bundle.STOPPING)) {
+                violation("The bundle of slot " + i + " is stuck in state " + bundles[i].getState() + ".");
+            }
+            else {
+                present.add(bundles[i]);
+            }
+        }
+
+        m_bu.refreshFrameworkAndWait(null);
+        Bundle[] users = present.toArray(new Bundle[present.size()]);
+        m_admin.resolveBundles(users);
+        for (Bundle b : users) {
+            if (b.getState() == Bundle.INSTALLED) {
+                violation("Bundle " + b.getSymbolicName() + " doesn't resolve after a refresh.");
+            }
+        }
+        for (Map.Entry<Bundle, Bundle> wire : m_bu.getWiredPackageExporters(API, users).entrySet()) {
+            if (wire.getValue() != api) {
+                violation("Bundle " + wire.getKey().getSymbolicName() + " isn't wired to the API bundle after a refresh.");
+            }
+        }
+    }
+
+    private void violation(String message) {
+        m_firstViolation.compareAndSet(null, message);
+        m_violations.incrementAndGet();
+    }
+
+    private static boolean isValidState(int state) {
+        return (state == Bundle.UNINSTALLED) || (state == Bundle.INSTALLED) || (state == Bundle.RESOLVED)
+            || (state == Bundle.STARTING) || (state == Bundle.STOPPING) || (state == Bundle.ACTIVE);
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Measures how the framework dispatches events to many listeners. The listeners are registered by generated
+ * bundles, evenly divided over five kinds: bundle listeners, synchronous bundle listeners, service listeners,
+ * filtered service listeners (that only see half of the services) and framework listeners. Then bursts of events
+ * are fired: installing, starting, stopping and uninstalling a number of bundles, registering, modifying and
+ * unregistering a number of services, and refreshing the framework a number of times.
+ *
+ * For every number of listeners there's a series per burst (bundle-burst, service-burst, framework-burst) with the
+ * mean time and the throughput of delivering a single event to a single listener, and the number of deliveries that
+ * didn't arrive within the deadline (missed). The series per kind of listener have the number of events, the mean
+ * and the maximum latency (from firing an event until the listener got it), the mean latency of the slowest
+ * listener, and the number of order violations: events about a bundle or service that arrived before an event
+ * that was fired earlier, or events that reached a synchronous bundle listener after the operation returned.
+ */
+public abstract class EventDispatchBenchmark extends BenchmarkBase {
+
+    /**
+     * Comma separated list of the numbers of listeners to benchmark with.
+     */
+    public static final String PROP_SIZES = PROP_BENCHMARK_PREFIX + "events.sizes";
+    /**
+     * The number of bundles that register the listeners.
+     */
+    public static final String PROP_BUNDLES = PROP_BENCHMARK_PREFIX + "events.bundles";
+    /**
+     * The number of bundles and services that fire events in a burst.
+     */
+    public static final String PROP_BURST = PROP_BENCHMARK_PREFIX + "events.burst";
+    /**
+     * The time in milliseconds all events of a burst must be delivered in.
+     */
+    public static final String PROP_DEADLINE = PROP_BENCHMARK_PREFIX + "events.deadline";
+
+    private static final int[] DEFAULT_SIZES = {100, 1000, 5000};
+    private static final int DEFAULT_BUNDLES = 10;
+    private static final int DEFAULT_BURST = 100;
+    private static final long DEFAULT_DEADLINE = 60000;
+    private static final int REFRESHES = 10;
+
+    private static final String PREFIX = "events";
+    private static final String PROP_INDEX = PREFIX + ".index";
+    private static final String PROP_GROUP = PREFIX + ".group";
+    private static final String PROP_MODIFIED = PREFIX + ".modified";
+    private static final String GROUP_EVEN = "even";
+
+    private static final String KIND_BUNDLE = "bundle-listener";
+    private static final String KIND_SYNCHRONOUS_BUNDLE = "synchronous-bundle-listener";
+    private static final String KIND_SERVICE = "service-listener";
+    private static final String KIND_FILTERED_SERVICE = "filtered-service-listener";
+    private static final String KIND_FRAMEWORK = "framework-listener";
+    private static final String[] KINDS = {KIND_BUNDLE, KIND_SYNCHRONOUS_BUNDLE, KIND_SERVICE, KIND_FILTERED_SERVICE, KIND_FRAMEWORK};
+
+    /**
+     * The bundle events in the order they're fired by the bursts. STARTING and STOPPING only reach synchronous
+     * listeners, and aren't fired by frameworks older than R4.1, so they aren't counted as deliveries.
+     */
+    private static final int[] BUNDLE_EVENTS = {BundleEvent.INSTALLED, BundleEvent.RESOLVED, BundleEvent.STARTING,
+        BundleEvent.STARTED, BundleEvent.STOPPING, BundleEvent.STOPPED, BundleEvent.UNINSTALLED};
+    private static final int COUNTED_BUNDLE_EVENTS = 5;
+    private static final int[] SERVICE_EVENTS = {ServiceEvent.REGISTERED, ServiceEvent.MODIFIED, ServiceEvent.UNREGISTERING};
+
+    /**
+     * The times (System.nanoTime()) at which the events of the current burst were fired.
+     */
+    private final Map<String, Long> m_fired = new ConcurrentHashMap<String, Long>();
+    private final Map<String, List<Recorder>> m_recorders = new HashMap<String, List<Recorder>>();
+    private volatile CountDownLatch m_pending = new CountDownLatch(0);
+    /**
+     * Location of the bundle whose lifecycle operation is executing, or null.
+     */
+    private volatile String m_operation;
+
+    @Test
+    public void eventDispatch() throws Exception {
+        int bundleCount = Integer.getInteger(PROP_BUNDLES, DEFAULT_BUNDLES).intValue();
+        List<BundleSpecifier> specifiers = new ArrayList<BundleSpecifier>();
+        for (int i = 0; i < bundleCount; i++) {
+            specifiers.add(m_bu.createBundleSpecifier(PREFIX + ".listener" + i));
+        }
+        Bundle[] bundles = installBundles(specifiers, generateBundles(specifiers));
+        try {
+            BundleContext[] contexts = new BundleContext[bundleCount];
+            for (int i = 0; i < bundleCount; i++) {
+                bundles[i].start();
+                contexts[i] = m_bu.getBundleContext(bundles[i]);
+            }
+            for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+                addListeners(size, contexts);
+                try {
+                    benchmark(size, contexts);
+                }
+                finally {
+                    removeListeners();
+                }
+            }
+        }
+        finally {
+            uninstallBundles(bundles);
+        }
+    }
+
+    private void benchmark(int size, final BundleContext[] contexts) throws Exception {
+        final int burst = Integer.getInteger(PROP_BURST, DEFAULT_BURST).intValue();
+        final List<String> locations = new ArrayList<String>(burst);
+        List<BundleSpecifier> specifiers = new ArrayList<BundleSpecifier>(burst);
+        for (int i = 0; i < burst; i++) {
+            BundleSpecifier specifier = m_bu.createBundleSpecifier(PREFIX + ".burst" + i);
+            specifiers.add(specifier);
+            locations.add(specifier.getName());
+        }
+        final List<ByteArrayInputStream> jars = generateBundles(specifiers);
+
+        burst("bundle-burst", size, new String[] {KIND_BUNDLE, KIND_SYNCHRONOUS_BUNDLE},
+            new int[] {burst * COUNTED_BUNDLE_EVENTS, burst * COUNTED_BUNDLE_EVENTS}, new Callable<Object>() {
+                public Object call() throws Exception {
+                    fireBundleEvents(locations, jars);
+                    return null;
+                }
+            });
+
+        int even = (burst + 1) / 2;
+        burst("service-burst", size, new String[] {KIND_SERVICE, KIND_FILTERED_SERVICE},
+            new int[] {burst * SERVICE_EVENTS.length, even * SERVICE_EVENTS.length}, new Callable<Object>() {
+                public Object call() throws Exception {
+                    fireServiceEvents(burst, contexts);
+                    return null;
+                }
+            });
+
+        burst("framework-burst", size, new String[] {KIND_FRAMEWORK}, new int[] {REFRESHES}, new Callable<Object>() {
+            public Object call() throws Exception {
+                for (int i = 0; i < REFRESHES; i++) {
+                    m_fired.put(getRefreshKey(i), Long.valueOf(System.nanoTime()));
+                    m_bu.refreshFrameworkAndWait(null);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Fires a burst of events, waits until the listeners got them, and reports the results.
+     *
+     * @param series
+     * @param size The number of listeners.
+     * @param kinds The kinds of listeners that should get the events.
+     * @param expected The number of events every listener of the corresponding kind should get.
+     * @param fire Fires the events.
+     */
+    private void burst(String series, int size, String[] kinds, int[] expected, Callable<Object> fire) throws Exception {
+        long deliveries = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            for (Recorder recorder : m_recorders.get(kinds[i])) {
+                recorder.reset();
+                deliveries += expected[i];
+            }
+        }
+        m_fired.clear();
+        m_pending = new CountDownLatch((int) deliveries);
+
+        long deadline = Long.getLong(PROP_DEADLINE, DEFAULT_DEADLINE).longValue();
+        long start = System.nanoTime();
+        fire.call();
+        boolean delivered = m_pending.await(deadline, TimeUnit.MILLISECONDS);
+        putTimePerOperation(series, size, System.nanoTime() - start, Math.max(1, deliveries));
+        putResult(series, size, "missed", m_pending.getCount(), TestMeasurements.UNIT_COUNT);
+
+        long violations = 0;
+        for (String kind : kinds) {
+            violations += putListenerResults(kind, size);
+        }
+        assert delivered : m_pending.getCount() + " of " + deliveries + " events of the " + series + " didn't reach "
+            + size + " listeners within " + deadline + " ms.";
+        assert violations == 0 : violations + " events of the " + series + " were delivered out of order.";
+    }
+
+    private void fireBundleEvents(List<String> locations, List<ByteArrayInputStream> jars) throws Exception {
+        Bundle[] bundles = new Bundle[locations.size()];
+        try {
+            for (int i = 0; i < bundles.length; i++) {
+                fire(locations.get(i), BundleEvent.INSTALLED);
+                bundles[i] = m_context.installBundle(locations.get(i), jars.get(i));
+                m_operation = null;
+            }
+            for (int i = 0; i < bundles.length; i++) {
+                fire(locations.get(i), BundleEvent.RESOLVED, BundleEvent.STARTING, BundleEvent.STARTED);
+                bundles[i].start();
+                m_operation = null;
+            }
+            for (int i = 0; i < bundles.length; i++) {
+                fire(locations.get(i), BundleEvent.STOPPING, BundleEvent.STOPPED);
+                bundles[i].stop();
+                m_operation = null;
+            }
+            for (int i = 0; i < bundles.length; i++) {
+                fire(locations.get(i), BundleEvent.UNINSTALLED);
+                bundles[i].uninstall();
+                m_operation = null;
+            }
+        }
+        finally {
+            m_operation = null;
+            for (Bundle b : bundles) {
+                if ((b != null) && (b.getState() != Bundle.UNINSTALLED)) {
+                    b.uninstall();
+                }
+            }
+        }
+    }
+
+    private void fireServiceEvents(int burst, BundleContext[] contexts) {
+        Runnable service = new Runnable() {
+            public void run() { }
+        };
+        ServiceRegistration[] registrations = new ServiceRegistration[burst];
+        List<Dictionary<String, Object>> properties = new ArrayList<Dictionary<String, Object>>(burst);
+        for (int i = 0; i < burst; i++) {
+            Dictionary<String, Object> p = new Hashtable<String, Object>();
+            p.put(PROP_INDEX, Integer.valueOf(i));
+            p.put(PROP_GROUP, ((i % 2) == 0) ? GROUP_EVEN : "odd");
+            properties.add(p);
+        }
+        try {
+            for (int i = 0; i < burst; i++) {
+                m_fired.put(getServiceKey(i, ServiceEvent.REGISTERED), Long.valueOf(System.nanoTime()));
+                registrations[i] = contexts[i % contexts.length].registerService(Runnable.class.getName(), service, properties.get(i));
+            }
+            for (int i = 0; i < burst; i++) {
+                properties.get(i).put(PROP_MODIFIED, Boolean.TRUE);
+                m_fired.put(getServiceKey(i, ServiceEvent.MODIFIED), Long.valueOf(System.nanoTime()));
+                registrations[i].setProperties(properties.get(i));
+            }
+            for (int i = 0; i < burst; i++) {
+                m_fired.put(getServiceKey(i, ServiceEvent.UNREGISTERING), Long.valueOf(System.nanoTime()));
+                registrations[i].unregister();
+                registrations[i] = null;
+            }
+        }
+        finally {
+            for (ServiceRegistration registration : registrations) {
+                if (registration != null) {
+                    registration.unregister();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the events of a lifecycle operation as fired, right before the operation is executed.
+     */
+    private void fire(String location, int... types) {
+        Long now = Long.valueOf(System.nanoTime());
+        for (int type : types) {
+            m_fired.put(getBundleKey(location, type), now);
+        }
+        m_operation = location;
+    }
+
+    /**
+     * Reports the results of a kind of listener.
+     *
+     * @return The number of order violations.
+     */
+    private long putListenerResults(String kind, int size) {
+        long events = 0;
+        long latency = 0;
+        long maxLatency = 0;
+        double slowestListener = 0;
+        long violations = 0;
+        for (Recorder recorder : m_recorders.get(kind)) {
+            synchronized (recorder) {
+                events += recorder.m_events;
+                latency += recorder.m_latency;
+                maxLatency = Math.max(maxLatency, recorder.m_maxLatency);
+                slowestListener = Math.max(slowestListener, (double) recorder.m_latency / Math.max(1, recorder.m_events));
+                violations += recorder.m_violations;
+            }
+        }
+        putResult(kind, size, "events", events, TestMeasurements.UNIT_COUNT);
+        putResult(kind, size, "latency", (double) latency / Math.max(1, events), TestMeasurements.UNIT_NANOS);
+        putResult(kind, size, "latency-max", maxLatency, TestMeasurements.UNIT_NANOS);
+        putResult(kind, size, "latency-slowest-listener", slowestListener, TestMeasurements.UNIT_NANOS);
+        putResult(kind, size, "order-violations", violations, TestMeasurements.UNIT_COUNT);
+        return violations;
+    }
+
+    private void addListeners(int size, BundleContext[] contexts) throws Exception {
+        for (String kind : KINDS) {
+            m_recorders.put(kind, new ArrayList<Recorder>());
+        }
+        for (int i = 0; i < size; i++) {
+            BundleContext context = contexts[i % contexts.length];
+            String kind = KINDS[i % KINDS.length];
+            Recorder recorder;
+            if (KIND_BUNDLE.equals(kind)) {
+                recorder = new BundleRecorder(context);
+                context.addBundleListener((BundleListener) recorder);
+            }
+            else if (KIND_SYNCHRONOUS_BUNDLE.equals(kind)) {
+                recorder = new SynchronousBundleRecorder(context);
+                context.addBundleListener((BundleListener) recorder);
+            }
+            else if (KIND_SERVICE.equals(kind)) {
+                recorder = new ServiceRecorder(context);
+                context.addServiceListener((ServiceListener) recorder);
+            }
+            else if (KIND_FILTERED_SERVICE.equals(kind)) {
+                recorder = new ServiceRecorder(context);
+                context.addServiceListener((ServiceListener) recorder, "(" + PROP_GROUP + "=" + GROUP_EVEN + ")");
+            }
+            else {
+                recorder = new FrameworkRecorder(context);
+                context.addFrameworkListener((FrameworkListener) recorder);
+            }
+            m_recorders.get(kind).add(recorder);
+        }
+    }
+
+    private void removeListeners() {
+        for (List<Recorder> recorders : m_recorders.values()) {
+            for (Recorder recorder : recorders) {
+                recorder.remove();
+            }
+        }
+        m_recorders.clear();
+    }
+
+    private static int indexOf(int[] types, int type) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String getBundleKey(String location, int type) {
+        return "bundle:" + location + ":" + type;
+    }
+
+    private static String getServiceKey(Object index, int type) {
+        return "service:" + index + ":" + type;
+    }
+
+    private static String getRefreshKey(long index) {
+        return "refresh:" + index;
+    }
+
+    /**
+     * Records the events a listener got: the number of events, their latencies and the order violations.
+     */
+    private abstract class Recorder {
+        private final BundleContext m_context;
+        private final Map<Object, Integer> m_lastOrders = new HashMap<Object, Integer>();
+        private long m_events;
+        private long m_latency;
+        private long m_maxLatency;
+        private long m_violations;
+
+        Recorder(BundleContext context) {
+            m_context = context;
+        }
+
+        /**
+         * Records an event.
+         *
+         * @param key The key under which the time the event was fired is stored, events that weren't fired by
+         *     the current burst are ignored.
+         * @param source The bundle or service the event is about.
+         * @param order The position of the event in the order it's fired for the source.
+         * @param counted Whether the event counts as a delivery the burst waits for.
+         */
+        synchronized void record(String key, Object source, int order, boolean counted) {
+            Long fired = m_fired.get(key);
+            if (fired == null) {
+                return;
+            }
+            long latency = System.nanoTime() - fired.longValue();
+            m_events++;
+            m_latency += latency;
+            m_maxLatency = Math.max(m_maxLatency, latency);
+            Integer last = m_lastOrders.put(source, Integer.valueOf(order));
+            if ((last != null) && (last.intValue() > order)) {
+                m_violations++;
+            }
+            if (counted) {
+                m_pending.countDown();
+            }
+        }
+
+        synchronized void violation() {
+            m_violations++;
+        }
+
+        synchronized void reset() {
+            m_lastOrders.clear();
+            m_events = 0;
+            m_latency = 0;
+            m_maxLatency = 0;
+            m_violations = 0;
+        }
+
+        BundleContext getContext() {
+            return m_context;
+        }
+
+        abstract void remove();
+    }
+
+    private class BundleRecorder extends Recorder implements BundleListener {
+        BundleRecorder(BundleContext context) {
+            super(context);
+        }
+
+        public void bundleChanged(BundleEvent event) {
+            int order = indexOf(BUNDLE_EVENTS, event.getType());
+            if (order >= 0) {
+                String location = event.getBundle().getLocation();
+                boolean counted = (event.getType() != BundleEvent.STARTING) && (event.getType() != BundleEvent.STOPPING);
+                record(getBundleKey(location, event.getType()), location, order, counted);
+            }
+        }
+
+        @Override
+        void remove() {
+            getContext().removeBundleListener(this);
+        }
+    }
+
+    private class SynchronousBundleRecorder extends BundleRecorder implements SynchronousBundleListener {
+        SynchronousBundleRecorder(BundleContext context) {
+            super(context);
+        }
+
+        @Override
+        public void bundleChanged(BundleEvent event) {
+            String location = event.getBundle().getLocation();
+            if ((indexOf(BUNDLE_EVENTS, event.getType()) >= 0) && m_fired.containsKey(getBundleKey(location, event.getType()))
+                && !location.equals(m_operation)) {
+                // the event should have been delivered before the operation returned
+                violation();
+            }
+            super.bundleChanged(event);
+        }
+    }
+
+    private class ServiceRecorder extends Recorder implements ServiceListener {
+        ServiceRecorder(BundleContext context) {
+            super(context);
+        }
+
+        public void serviceChanged(ServiceEvent event) {
+            int order = indexOf(SERVICE_EVENTS, event.getType());
+            Object index = event.getServiceReference().getProperty(PROP_INDEX);
+            if ((order >= 0) && (index != null)) {
+                record(getServiceKey(index, event.getType()), index, order, true);
+            }
+        }
+
+        @Override
+        void remove() {
+            getContext().removeServiceListener(this);
+        }
+    }
+
+    private class FrameworkRecorder extends Recorder implements FrameworkListener {
+        private long m_refreshes;
+
+        FrameworkRecorder(BundleContext context) {
+            super(context);
+        }
+
+        public void frameworkEvent(FrameworkEvent event) {
+            if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+                // refresh events don't tell which refresh they're about, but they're delivered in order
+                long refresh;
+                synchronized (this) {
+                    refresh = m_refreshes++;
+                }
+                record(getRefreshKey(refresh), "framework", 0, true);
+            }
+        }
+
+        @Override
+        synchronized void reset() {
+            super.reset();
+            m_refreshes = 0;
+        }
+
+        @Override
+        void remove() {
+            getContext().removeFrameworkListener(this);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+import org.junit.Test;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+
+/**
+ * Measures how fast the framework parses LDAP filters with {@link org.osgi.framework.BundleContext#createFilter(String)}
+ * and matches them against service properties. The properties are generated: an index, a group, a name, a version
+ * and (for every other set) a ranking.
+ *
+ * {@link #filterKinds()} reports a series per kind of filter (eg: substring, version) with the parse time, the match
+ * time and throughput, and the number of matches for every number of property sets. The matches are checked, so
+ * a framework that doesn't compare versions fails. {@link #filterComplexity()} reports the parse and match series
+ * for random nested filters with an increasing number of comparisons.
+ */
+public abstract class FilterBenchmark extends BenchmarkBase {
+
+    /**
+     * Comma separated list of the numbers of property sets to match the filters of {@link #filterKinds()} with.
+     */
+    public static final String PROP_SIZES = PROP_BENCHMARK_PREFIX + "filters.sizes";
+    /**
+     * Comma separated list of the numbers of comparisons in the filters of {@link #filterComplexity()}.
+     */
+    public static final String PROP_COMPLEXITIES = PROP_BENCHMARK_PREFIX + "filters.complexities";
+
+    private static final int[] DEFAULT_SIZES = {1000, 10000, 100000};
+    private static final int[] DEFAULT_COMPLEXITIES = {1, 2, 4, 8, 16, 32, 64};
+    private static final int COMPLEXITY_PROPERTIES = 10000;
+    private static final int PARSES = 10000;
+    private static final int MATCHES = 100000;
+    private static final int GROUPS = 10;
+
+    private static final String PROP_INDEX = "index";
+    private static final String PROP_GROUP = "group";
+    private static final String PROP_NAME = "name";
+    private static final String PROP_VERSION = "version";
+    private static final String PROP_RANKING = "ranking";
+
+    @Test
+    public void filterKinds() throws Exception {
+        for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            List<Dictionary<String, Object>> properties = createProperties(size);
+            int half = size / 2;
+
+            benchmark("equality", size, "(group=g3)", properties, count(size, 3, 3, 0, false));
+            benchmark("and", size, "(&(group=g3)(index>=" + half + "))", properties, count(size, 3, 3, half, false));
+            benchmark("or", size, "(|(group=g1)(group=g2)(group=g3))", properties, count(size, 1, 3, 0, false));
+            benchmark("not", size, "(!(group=g3))", properties, size - count(size, 3, 3, 0, false));
+            benchmark("substring", size, "(name=service-*7)", properties, countNameEndsWith7(size));
+            benchmark("version", size, "(version>=1.5.0)", properties, count(size, 5, GROUPS - 1, 0, false));
+            benchmark("presence", size, "(ranking=*)", properties, count(size, 0, GROUPS - 1, 0, true));
+        }
+    }
+
+    @Test
+    public void filterComplexity() throws Exception {
+        List<Dictionary<String, Object>> properties = createProperties(COMPLEXITY_PROPERTIES);
+        Random random = new Random(getSeed());
+        for (int complexity : getSizes(PROP_COMPLEXITIES, DEFAULT_COMPLEXITIES)) {
+            String filter = createFilter(random, complexity);
+            benchmark("complexity", complexity, filter, properties, -1);
+        }
+    }
+
+    /**
+     * Times parsing and matching a filter, and checks the number of matches.
+     *
+     * @param series
+     * @param x
+     * @param filterString
+     * @param properties
+     * @param expected The expected number of matches, or -1 if it's unknown.
+     */
+    private void benchmark(String series, int x, String filterString, List<Dictionary<String, Object>> properties, int expected)
+        throws InvalidSyntaxException {
+        Filter filter = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < PARSES; i++) {
+            filter = m_context.createFilter(filterString);
+        }
+        putResult(series, x, "parse", (double) (System.nanoTime() - start) / PARSES, TestMeasurements.UNIT_NANOS);
+
+        int rounds = Math.max(1, MATCHES / properties.size());
+        int matches = 0;
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            matches = 0;
+            for (Dictionary<String, Object> p : properties) {
+                if (filter.match(p)) {
+                    matches++;
+                }
+            }
+        }
+        putTimePerOperation(series, x, System.nanoTime() - start, (long) rounds * properties.size());
+        putResult(series, x, "matches", matches, TestMeasurements.UNIT_COUNT);
+
+        assert (expected < 0) || (matches == expected) :
+            filterString + " matched " + matches + " of " + properties.size() + " property sets instead of " + expected + ".";
+    }
+
+    private static List<Dictionary<String, Object>> createProperties(int size) {
+        List<Dictionary<String, Object>> properties = new ArrayList<Dictionary<String, Object>>(size);
+        for (int i = 0; i < size; i++) {
+            Dictionary<String, Object> p = new Hashtable<String, Object>();
+            p.put(PROP_INDEX, Integer.valueOf(i));
+            p.put(PROP_GROUP, "g" + (i % GROUPS));
+            p.put(PROP_NAME, "service-" + i);
+            p.put(PROP_VERSION, new Version(1, i % GROUPS, 0));
+            if ((i % 2) == 0) {
+                p.put(PROP_RANKING, Integer.valueOf(i % 100));
+            }
+            properties.add(p);
+        }
+        return properties;
+    }
+
+    /**
+     * Counts the property sets with a group (and version minor) between first and last, an index of at least
+     * minimumIndex, and optionally only the even ones (which have a ranking).
+     */
+    private static int count(int size, int first, int last, int minimumIndex, boolean even) {
+        int count = 0;
+        for (int i = minimumIndex; i < size; i++) {
+            if ((i % GROUPS >= first) && (i % GROUPS <= last) && (!even || ((i % 2) == 0))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int countNameEndsWith7(int size) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (i % 10 == 7) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Generates a filter of nested and, or and not operations with the given number of comparisons.
+     */
+    private static String createFilter(Random random, int comparisons) {
+        if (comparisons <= 1) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    return "(" + PROP_GROUP + "=g" + random.nextInt(GROUPS) + ")";
+                case 1:
+                    return "(" + PROP_INDEX + ">=" + random.nextInt(COMPLEXITY_PROPERTIES) + ")";
+                case 2:
+                    return "(" + PROP_INDEX + "<=" + random.nextInt(COMPLEXITY_PROPERTIES) + ")";
+                case 3:
+                    return "(" + PROP_NAME + "=service-*" + random.nextInt(10) + "*)";
+                case 4:
+                    return "(" + PROP_VERSION + ">=1." + random.nextInt(GROUPS) + ".0)";
+                default:
+                    return "(" + PROP_RANKING + "=*)";
+            }
+        }
+        int left = 1 + random.nextInt(comparisons - 1);
+        String filter = "(" + (random.nextBoolean() ? "&" : "|")
+            + createFilter(random, left) + createFilter(random, comparisons - left) + ")";
+        return (random.nextInt(4) == 0) ? "(!" + filter + ")" : filter;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+/**
+ * Measures how selecting between many exporters of the same package scales. K bundles export the same package
+ * with overlapping versions, and M bundles import it with different version ranges. The exporters are resolved
+ * first, so every importer has to be wired to the exporter with the highest version in its range, and of those to
+ * the one with the lowest bundle id.
+ *
+ * The results are series with the install and resolve times per K, the number of importers that were wired wrong
+ * (or resolved without a matching exporter), and the number of different exporters the importers were wired to.
+ */
+public abstract class MultiVersionBenchmark extends BenchmarkBase {
+
+    /**
+     * Comma separated list of the numbers of exporters (K) to benchmark with.
+     */
+    public static final String PROP_SIZES = PROP_BENCHMARK_PREFIX + "versions.sizes";
+    /**
+     * The number of importers (M).
+     */
+    public static final String PROP_IMPORTERS = PROP_BENCHMARK_PREFIX + "versions.importers";
+
+    private static final int[] DEFAULT_SIZES = {10, 100, 500, 1000};
+    private static final int DEFAULT_IMPORTERS = 100;
+    private static final String PREFIX = "versions";
+
+    @Test
+    public void candidateSelection() throws Exception {
+        int importerCount = Integer.getInteger(PROP_IMPORTERS, DEFAULT_IMPORTERS).intValue();
+        String packageName = BundleSpecifier.getSyntheticPackageName(PREFIX, 0);
+
+        for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            Random random = new Random(getSeed());
+            Version[] versions = new Version[size];
+            List<BundleSpecifier> exporterSpecifiers = new ArrayList<BundleSpecifier>();
+            for (int k = 0; k < size; k++) {
+                versions[k] = new Version(1 + random.nextInt(3), random.nextInt(10), 0);
+                exporterSpecifiers.add(m_bu.createBundleSpecifier(PREFIX + ".exporter" + k)
+                    .exportSyntheticPackages(PREFIX, 1, 2, versions[k].toString()));
+            }
+            Range[] ranges = new Range[importerCount];
+            List<BundleSpecifier> importerSpecifiers = new ArrayList<BundleSpecifier>();
+            for (int m = 0; m < importerCount; m++) {
+                ranges[m] = Range.random(random, versions[random.nextInt(size)]);
+                importerSpecifiers.add(m_bu.createBundleSpecifier(PREFIX + ".importer" + m)
+                    .addImport(m_bu.createImportPackage(packageName).setVersion(ranges[m].toString())));
+            }
+            List<ByteArrayInputStream> exporterJars = generateBundles(exporterSpecifiers);
+            List<ByteArrayInputStream> importerJars = generateBundles(importerSpecifiers);
+
+            Bundle[] exporters = null;
+            Bundle[] importers = null;
+            try {
+                long start = System.nanoTime();
+                exporters = installBundles(exporterSpecifiers, exporterJars);
+                putTime("install-exporters", size, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                m_admin.resolveBundles(exporters);
+                putTime("resolve-exporters", size, System.nanoTime() - start);
+
+                importers = installBundles(importerSpecifiers, importerJars);
+                start = System.nanoTime();
+                m_admin.resolveBundles(importers);
+                putTime("resolve-importers", size, System.nanoTime() - start);
+
+                checkCandidates(size, packageName, exporters, versions, importers, ranges);
+            }
+            finally {
+                if (importers != null) {
+                    uninstallBundles(importers);
+                }
+                if (exporters != null) {
+                    uninstallBundles(exporters);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the wiring of the importers with the exporters they should be wired to, puts the results and checks the
+     * wiring.
+     */
+    private void checkCandidates(int size, String packageName, Bundle[] exporters, Version[] versions, Bundle[] importers, Range[] ranges) {
+        Map<Bundle, Bundle> wiring = m_bu.getWiredPackageExporters(packageName, importers);
+        Map<Bundle, List<Bundle>> expected = new LinkedHashMap<Bundle, List<Bundle>>();
+        Set<Long> providers = new HashSet<Long>();
+        int wrong = 0;
+        for (int m = 0; m < importers.length; m++) {
+            Bundle provider = getExpectedProvider(exporters, versions, ranges[m]);
+            Bundle realProvider = wiring.get(importers[m]);
+            if (realProvider != null) {
+                providers.add(Long.valueOf(realProvider.getBundleId()));
+            }
+
+            if (provider == null) {
+                if (importers[m].getState() != Bundle.INSTALLED) {
+                    wrong++;
+                }
+                continue;
+            }
+            if ((realProvider == null) || (realProvider.getBundleId() != provider.getBundleId())) {
+                wrong++;
+            }
+            if (!expected.containsKey(provider)) {
+                expected.put(provider, new ArrayList<Bundle>());
+            }
+            expected.get(provider).add(importers[m]);
+        }
+        putResult("resolve-importers", size, "wrong-wiring", wrong, TestMeasurements.UNIT_COUNT);
+        putResult("resolve-importers", size, "providers", providers.size(), TestMeasurements.UNIT_COUNT);
+
+        for (Map.Entry<Bundle, List<Bundle>> e : expected.entrySet()) {
+            m_bu.checkWiring(packageName, e.getValue().toArray(new Bundle[e.getValue().size()]), e.getKey());
+        }
+        assert wrong == 0 : wrong + " of the " + importers.length + " importers of " + size + " exporters were wired wrong.";
+    }
+
+    /**
+     * Returns the exporter with the highest version in the range and the lowest bundle id, or null if no version is
+     * in the range.
+     */
+    private static Bundle getExpectedProvider(Bundle[] exporters, Version[] versions, Range range) {
+        int best = -1;
+        for (int k = 0; k < exporters.length; k++) {
+            if (range.includes(versions[k])) {
+                if ((best < 0) || (versions[k].compareTo(versions[best]) > 0)
+                    || ((versions[k].compareTo(versions[best]) == 0) && (exporters[k].getBundleId() < exporters[best].getBundleId()))) {
+                    best = k;
+                }
+            }
+        }
+        return (best < 0) ? null : exporters[best];
+    }
+
+    /**
+     * A version range of an import, generated around a version.
+     */
+    static class Range {
+        private final Version m_low;
+        private final Version m_high;
+        private final boolean m_highInclusive;
+
+        Range(Version low, Version high, boolean highInclusive) {
+            m_low = low;
+            m_high = high;
+            m_highInclusive = highInclusive;
+        }
+
+        /**
+         * Generates a range starting at the version: no range at all, up to the next major version or up to the
+         * next minor version. One in ten ranges is exactly a micro version that is never exported, the importers
+         * with such a range shouldn't resolve.
+         */
+        static Range random(Random random, Version version) {
+            int kind = random.nextInt(10);
+            if (kind < 2) {
+                return new Range(Version.emptyVersion, null, false);
+            }
+            if (kind < 7) {
+                return new Range(version, new Version(version.getMajor() + 1, 0, 0), false);
+            }
+            if (kind < 9) {
+                return new Range(version, new Version(version.getMajor(), version.getMinor() + 1, 0), false);
+            }
+            return new Range(new Version(version.getMajor(), version.getMinor(), 1), new Version(version.getMajor(), version.getMinor(), 1), true);
+        }
+
+        boolean includes(Version version) {
+            if (version.compareTo(m_low) < 0) {
+                return false;
+            }
+            if (m_high == null) {
+                return true;
+            }
+            int compared = version.compareTo(m_high);
+            return m_highInclusive ? (compared <= 0) : (compared < 0);
+        }
+
+        /**
+         * Returns the range as in an Import-Package header, or null for no range.
+         */
+        @Override
+        public String toString() {
+            if (m_high == null) {
+                return null;
+            }
+            return "[" + m_low + "," + m_high + (m_highInclusive ? "]" : ")");
+        }
+    }
+}
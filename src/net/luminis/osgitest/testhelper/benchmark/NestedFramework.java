@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+
+/**
+ * A second instance of the framework under test, launched inside the testcontainer through the OSGi launching API.
+ * Unlike the framework the test runs in, it can be stopped and started again from its storage area.
+ *
+ * The framework is created by the class loader of the framework under test, so its bundles, contexts and events
+ * implement the same org.osgi.framework interfaces the test sees. Only the launching API itself (which isn't
+ * available to the tests of older specification versions) is called through reflection.
+ *
+ * Only frameworks that implement the launching API of OSGi R4.2 (eg: Felix 2.x, Equinox 3.5) can be nested.
+ */
+public class NestedFramework {
+
+    private static final String FRAMEWORK_FACTORY = "org.osgi.framework.launch.FrameworkFactory";
+    private static final String FRAMEWORK = "org.osgi.framework.launch.Framework";
+
+    private static final String STORAGE = "org.osgi.framework.storage";
+    private static final String STORAGE_CLEAN = "org.osgi.framework.storage.clean";
+
+    private final ClassLoader m_loader;
+    private final Bundle m_framework;
+
+    private NestedFramework(ClassLoader loader, Bundle framework) {
+        m_loader = loader;
+        m_framework = framework;
+    }
+
+    /**
+     * Creates a framework of the same vendor and version as the framework the test runs in. The framework
+     * isn't started yet.
+     *
+     * @param context A bundle context of the framework under test.
+     * @param storage The storage area of the framework.
+     * @param clean True to start with an empty storage area, false to start from the bundles that are installed in it.
+     * @return
+     * @throws IllegalStateException Is thrown when the framework doesn't implement the launching API.
+     */
+    public static NestedFramework create(BundleContext context, File storage, boolean clean) {
+        ClassLoader loader = context.getBundle(0).getClass().getClassLoader();
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(STORAGE, storage.getAbsolutePath());
+        if (clean) {
+            config.put(STORAGE_CLEAN, "onFirstInit");
+        }
+
+        try {
+            Object factory = loader.loadClass(getFactoryClassName(loader)).getConstructor().newInstance();
+            Object framework = loader.loadClass(FRAMEWORK_FACTORY).getMethod("newFramework", Map.class).invoke(factory, config);
+            return new NestedFramework(loader, (Bundle) framework);
+        }
+        catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to create a nested framework.", e.getCause());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Unable to create a nested framework.", e);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Unable to create a nested framework.", e);
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Unable to create a nested framework.", e);
+        }
+        catch (InstantiationException e) {
+            throw new IllegalStateException("Unable to create a nested framework.", e);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to create a nested framework.", e);
+        }
+    }
+
+    /**
+     * Starts the framework. Returns when the framework is {@link Bundle#ACTIVE}, the bundles that are
+     * started persistently might still be starting.
+     *
+     * @throws BundleException
+     */
+    public void start() throws BundleException {
+        m_framework.start();
+    }
+
+    /**
+     * Stops the framework and waits until it has stopped.
+     *
+     * @param timeout The time to wait in milliseconds.
+     * @return True if the framework stopped within the timeout.
+     * @throws BundleException
+     */
+    public boolean stop(long timeout) throws BundleException {
+        m_framework.stop();
+        try {
+            m_loader.loadClass(FRAMEWORK).getMethod("waitForStop", long.class).invoke(m_framework, Long.valueOf(timeout));
+        }
+        catch (InvocationTargetException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            else {
+                throw new IllegalStateException("Unable to stop the nested framework.", e.getCause());
+            }
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to stop the nested framework.", e);
+        }
+        return (m_framework.getState() & (Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING)) == 0;
+    }
+
+    /**
+     * Returns the system bundle of the framework.
+     *
+     * @return
+     */
+    public Bundle getSystemBundle() {
+        return m_framework;
+    }
+
+    /**
+     * Returns the bundle context of the system bundle, to install bundles in the framework. Only available while the
+     * framework is started.
+     *
+     * @return
+     */
+    public BundleContext getBundleContext() {
+        try {
+            return (BundleContext) m_loader.loadClass(FRAMEWORK).getMethod("getBundleContext").invoke(m_framework);
+        }
+        catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to get the context of the nested framework.", e.getCause());
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Unable to get the context of the nested framework.", e);
+        }
+    }
+
+    /**
+     * Reads the name of the FrameworkFactory implementation from the service file of the launching API.
+     */
+    private static String getFactoryClassName(ClassLoader loader) throws IOException {
+        URL services = loader.getResource("META-INF/services/" + FRAMEWORK_FACTORY);
+        if (services != null) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(services.openStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if ((line.length() > 0) && !line.startsWith("#")) {
+                        return line;
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        throw new IllegalStateException("The framework doesn't implement the OSGi launching API, it can't be nested.");
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Measures how installing, resolving and refreshing scale with the number of bundles, using a {@link BundleGraph}
+ * of each size generated from the same seed on every vendor.
+ *
+ * The results are series named install, resolve and refresh, with the time per size. The number of imports in
+ * each graph is reported as the size of the imports series.
+ */
+public abstract class ResolverBenchmark extends BenchmarkBase {
+
+    /**
+     * Comma separated list of the numbers of bundles to benchmark with.
+     */
+    public static final String PROP_SIZES = PROP_BENCHMARK_PREFIX + "resolver.sizes";
+
+    private static final int[] DEFAULT_SIZES = {10, 50, 100, 500, 1000, 5000};
+
+    @Test
+    public void resolverScaling() throws Exception {
+        for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            BundleGraph graph = new BundleGraph(getSeed(), size);
+            List<BundleSpecifier> specifiers = graph.createBundles(m_bu);
+            List<ByteArrayInputStream> jars = generateBundles(specifiers);
+            putResult("imports", size, "count", graph.getImportCount(), TestMeasurements.UNIT_COUNT);
+
+            Bundle[] bundles = null;
+            try {
+                long start = System.nanoTime();
+                bundles = installBundles(specifiers, jars);
+                putTime("install", size, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                m_admin.resolveBundles(bundles);
+                putTime("resolve", size, System.nanoTime() - start);
+                int unresolved = countUnresolved(bundles);
+                putResult("resolve", size, "unresolved", unresolved, TestMeasurements.UNIT_COUNT);
+
+                start = System.nanoTime();
+                m_bu.refreshFrameworkAndWait(bundles);
+                putTime("refresh", size, System.nanoTime() - start);
+
+                assert unresolved == 0 : unresolved + " of the " + size + " bundles of graph " + graph.getSeed() + " didn't resolve.";
+            }
+            finally {
+                if (bundles != null) {
+                    uninstallBundles(bundles);
+                }
+            }
+        }
+    }
+}
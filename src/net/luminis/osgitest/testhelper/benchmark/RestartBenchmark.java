@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Measures how long the framework takes to start, and to restart from its persistent bundle cache with N bundles
+ * installed. The bundles are a {@link BundleGraph}, installed and started in a {@link NestedFramework}, which is
+ * stopped and started again from the same storage area.
+ *
+ * The results are series with per N the time to start an empty framework (start), to install and start the bundles
+ * (install), to stop the framework (stop), the size of the storage area on disk (cache), the time until the
+ * restarted framework is started (restart) and the time until all its bundles are active again (restart-active).
+ */
+public abstract class RestartBenchmark extends BenchmarkBase {
+
+    /**
+     * Comma separated list of the numbers of bundles to benchmark with.
+     */
+    public static final String PROP_SIZES = PROP_BENCHMARK_PREFIX + "restart.sizes";
+    /**
+     * Time in milliseconds to wait for the framework to stop, or for the bundles to be active.
+     */
+    public static final String PROP_DEADLINE = PROP_BENCHMARK_PREFIX + "restart.deadline";
+
+    private static final int[] DEFAULT_SIZES = {10, 100, 500, 1000, 2000};
+    private static final long DEFAULT_DEADLINE = 120000;
+    private static final long POLL_INTERVAL = 5;
+
+    @Test
+    public void restartWithPersistentCache() throws Exception {
+        long deadline = Long.getLong(PROP_DEADLINE, DEFAULT_DEADLINE).longValue();
+
+        for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            List<BundleSpecifier> specifiers = new BundleGraph(getSeed(), size).createBundles(m_bu);
+            List<ByteArrayInputStream> jars = generateBundles(specifiers);
+            File storage = createStorage();
+            NestedFramework framework = null;
+            try {
+                long start = System.nanoTime();
+                framework = NestedFramework.create(m_context, storage, true);
+                framework.start();
+                putTime("start", size, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                Bundle[] bundles = installBundles(framework.getBundleContext(), specifiers, jars);
+                for (Bundle b : bundles) {
+                    b.start();
+                }
+                putTime("install", size, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                boolean stopped = framework.stop(deadline);
+                putTime("stop", size, System.nanoTime() - start);
+                assert stopped : "The nested framework with " + size + " bundles didn't stop within " + deadline + " ms.";
+                putResult("cache", size, "size", getSize(storage), TestMeasurements.UNIT_BYTES);
+
+                start = System.nanoTime();
+                framework = NestedFramework.create(m_context, storage, false);
+                framework.start();
+                putTime("restart", size, System.nanoTime() - start);
+
+                int active = waitForActive(framework.getBundleContext(), size, start + deadline * 1000000L);
+                putTime("restart-active", size, System.nanoTime() - start);
+                putResult("restart-active", size, "active", active, TestMeasurements.UNIT_COUNT);
+                assert active == size : "Only " + active + " of the " + size + " bundles were active "
+                    + deadline + " ms after restarting the framework.";
+            }
+            finally {
+                if (framework != null) {
+                    framework.stop(deadline);
+                }
+                delete(storage);
+            }
+        }
+    }
+
+    /**
+     * Waits until the given number of generated bundles is active.
+     *
+     * @param context The context of the framework.
+     * @param size The number of bundles.
+     * @param deadline The value of {@link System#nanoTime()} to stop waiting at.
+     * @return The number of generated bundles that are active.
+     */
+    private static int waitForActive(BundleContext context, int size, long deadline) throws InterruptedException {
+        while (true) {
+            int active = 0;
+            for (Bundle b : context.getBundles()) {
+                if ((b.getState() == Bundle.ACTIVE) && (b.getBundleId() != 0)) {
+                    active++;
+                }
+            }
+            if ((active >= size) || (System.nanoTime() > deadline)) {
+                return active;
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+
+    private static File createStorage() throws IOException {
+        File storage = File.createTempFile("osgitest-restart", "");
+        storage.delete();
+        storage.mkdirs();
+        return storage;
+    }
+
+    private static long getSize(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += getSize(child);
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Measures the throughput and latency of the service registry. Services are registered by generated bundles under
+ * an interface and a class of a synthetic package, with an index, a group and a random ranking as properties.
+ *
+ * The results are series per number of services with the mean time and the throughput of registering
+ * (register), looking up all services without a filter (lookup), with a filter matching one service
+ * (lookup-filter-one) or a tenth of the services (lookup-filter-group), looking up the best ranked service
+ * (lookup-best), getting and ungetting a service (get-unget) and unregistering (unregister).
+ */
+public abstract class ServiceRegistryBenchmark extends BenchmarkBase {
+
+    /**
+     * Comma separated list of the numbers of services to benchmark with.
+     */
+    public static final String PROP_SIZES = PROP_BENCHMARK_PREFIX + "services.sizes";
+    /**
+     * The number of bundles that register the services.
+     */
+    public static final String PROP_BUNDLES = PROP_BENCHMARK_PREFIX + "services.bundles";
+
+    private static final int[] DEFAULT_SIZES = {1000, 10000, 100000};
+    private static final int DEFAULT_BUNDLES = 100;
+    private static final String PREFIX = "services";
+    private static final String API = PREFIX + ".api";
+    private static final String PROP_INDEX = "index";
+    private static final String PROP_GROUP = "group";
+    private static final int GROUPS = 10;
+    private static final int LOOKUPS = 100000;
+
+    @Test
+    public void serviceRegistry() throws Exception {
+        int bundleCount = Integer.getInteger(PROP_BUNDLES, DEFAULT_BUNDLES).intValue();
+        String interfaceName = BundleSpecifier.getSyntheticClassName(API, 0);
+        String className = BundleSpecifier.getSyntheticClassName(API, 1);
+
+        List<BundleSpecifier> specifiers = new ArrayList<BundleSpecifier>();
+        specifiers.add(m_bu.createBundleSpecifier(API).addSyntheticPackage(API, 2).addExport(m_bu.createExportPackage(API)));
+        for (int i = 0; i <= bundleCount; i++) {
+            String name = (i < bundleCount) ? PREFIX + ".provider" + i : PREFIX + ".consumer";
+            specifiers.add(m_bu.createBundleSpecifier(name).addImport(m_bu.createImportPackage(API)));
+        }
+        Bundle[] bundles = installBundles(specifiers, generateBundles(specifiers));
+        try {
+            BundleContext[] contexts = new BundleContext[bundleCount];
+            Object[] services = new Object[bundleCount];
+            for (Bundle b : bundles) {
+                b.start();
+            }
+            for (int i = 0; i < bundleCount; i++) {
+                contexts[i] = m_bu.getBundleContext(bundles[i + 1]);
+                Class<?> type = bundles[i + 1].loadClass(className);
+                services[i] = type.getConstructor().newInstance();
+            }
+            BundleContext consumer = m_bu.getBundleContext(bundles[bundles.length - 1]);
+
+            for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+                benchmark(size, new String[] {interfaceName, className}, contexts, services, consumer);
+            }
+        }
+        finally {
+            uninstallBundles(bundles);
+        }
+    }
+
+    private void benchmark(int size, String[] names, BundleContext[] contexts, Object[] services, BundleContext consumer) {
+        Random random = new Random(getSeed());
+        List<Dictionary<String, Object>> properties = new ArrayList<Dictionary<String, Object>>(size);
+        int bestRanking = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            Dictionary<String, Object> p = new Hashtable<String, Object>();
+            p.put(PROP_INDEX, Integer.valueOf(i));
+            p.put(PROP_GROUP, "g" + (i % GROUPS));
+            int ranking = random.nextInt(1000);
+            p.put(Constants.SERVICE_RANKING, Integer.valueOf(ranking));
+            bestRanking = Math.max(bestRanking, ranking);
+            properties.add(p);
+        }
+
+        ServiceRegistration[] registrations = new ServiceRegistration[size];
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                registrations[i] = contexts[i % contexts.length].registerService(names, services[i % contexts.length], properties.get(i));
+            }
+            putTimePerOperation("register", size, System.nanoTime() - start, size);
+
+            int iterations = Math.max(10, LOOKUPS / size);
+            lookup("lookup", size, consumer, names[0], null, iterations, size);
+            lookup("lookup-filter-one", size, consumer, names[0], "(" + PROP_INDEX + "=" + random.nextInt(size) + ")", iterations * 10, 1);
+            int group = random.nextInt(GROUPS);
+            lookup("lookup-filter-group", size, consumer, names[0], "(" + PROP_GROUP + "=g" + group + ")",
+                iterations, getGroupSize(size, group));
+
+            start = System.nanoTime();
+            ServiceReference best = null;
+            for (int i = 0; i < iterations; i++) {
+                best = consumer.getServiceReference(names[0]);
+            }
+            putTimePerOperation("lookup-best", size, System.nanoTime() - start, iterations);
+            assert ((Integer) best.getProperty(Constants.SERVICE_RANKING)).intValue() == bestRanking :
+                "The best service reference doesn't have the highest ranking of " + size + " services.";
+
+            ServiceReference[] references = new ServiceReference[Math.min(size, LOOKUPS)];
+            for (int i = 0; i < references.length; i++) {
+                references[i] = registrations[random.nextInt(size)].getReference();
+            }
+            start = System.nanoTime();
+            for (ServiceReference reference : references) {
+                consumer.getService(reference);
+                consumer.ungetService(reference);
+            }
+            putTimePerOperation("get-unget", size, System.nanoTime() - start, references.length);
+
+            start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                registrations[i].unregister();
+                registrations[i] = null;
+            }
+            putTimePerOperation("unregister", size, System.nanoTime() - start, size);
+        }
+        finally {
+            for (ServiceRegistration registration : registrations) {
+                if (registration != null) {
+                    registration.unregister();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of services in a group, the service with index i is in group i % GROUPS.
+     */
+    private static int getGroupSize(int size, int group) {
+        return (size / GROUPS) + ((group < size % GROUPS) ? 1 : 0);
+    }
+
+    /**
+     * Times looking up services and checks the number of services found.
+     */
+    private void lookup(String series, int size, BundleContext context, String name, String filter, int iterations, int expected) {
+        ServiceReference[] references = null;
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < iterations; i++) {
+                references = context.getServiceReferences(name, filter);
+            }
+        }
+        catch (InvalidSyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+        putTimePerOperation(series, size, System.nanoTime() - start, iterations);
+        int found = (references == null) ? 0 : references.length;
+        assert found == expected : series + " found " + found + " of " + size + " services instead of " + expected + ".";
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.luminis.osgitest.testhelper.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import net.luminis.osgitest.testhelper.BundleSpecifier;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Stresses the resolver with uses constraints: deep and wide uses:= chains, and package spaces where the first
+ * choices of the resolver conflict, which makes a naive resolver backtrack exponentially.
+ *
+ * Every case is resolved with a deadline (see {@link #PROP_DEADLINE}), a framework that doesn't resolve a case in
+ * time fails the test instead of hanging it. The results are a series per case with the resolve time, the memory
+ * that was retained after resolving and the number of unresolved bundles per size.
+ */
+public abstract class UsesConstraintBenchmark extends BenchmarkBase {
+
+    /**
+     * Comma separated list of the sizes (depth, width or number of conflicting packages) to benchmark with.
+     */
+    public static final String PROP_SIZES = PROP_BENCHMARK_PREFIX + "uses.sizes";
+    /**
+     * Deadline in milliseconds for resolving a single case.
+     */
+    public static final String PROP_DEADLINE = PROP_BENCHMARK_PREFIX + "uses.deadline";
+
+    private static final int[] DEFAULT_SIZES = {2, 4, 8, 12, 16, 20};
+    private static final long DEFAULT_DEADLINE = 60000;
+    private static final String PREFIX = "uses.";
+    private static final int CONSUMERS = 10;
+
+    /**
+     * A chain of packages of the given depth, every package uses:= the next one. Every package is exported by two
+     * bundles with different versions, and a consumer imports all packages, so the resolver has to make the wiring
+     * of the consumer consistent along the whole chain.
+     */
+    @Test
+    public void deepUsesChain() throws Exception {
+        for (int depth : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            String name = PREFIX + "chain";
+            List<BundleSpecifier> specifiers = new ArrayList<BundleSpecifier>();
+            BundleSpecifier consumer = m_bu.createBundleSpecifier(name + ".consumer");
+            for (int i = 0; i <= depth; i++) {
+                String used = (i < depth) ? getPackageName(name, i + 1) : null;
+                specifiers.add(createExporter(name + ".a" + i, getPackageName(name, i), "1.0.0", used, "[1,2)"));
+                specifiers.add(createExporter(name + ".b" + i, getPackageName(name, i), "1.1.0", used, "[1,2)"));
+                consumer.addImport(m_bu.createImportPackage(getPackageName(name, i)).setVersion("[1,2)"));
+            }
+            specifiers.add(consumer);
+
+            Bundle[] bundles = resolve("chain", depth, specifiers);
+            try {
+                assert countUnresolved(bundles) == 0 : "Not all bundles of the uses chain of depth " + depth + " resolved.";
+            }
+            finally {
+                uninstallBundles(bundles);
+            }
+        }
+    }
+
+    /**
+     * A hub package that uses:= the given number of library packages, imported by consumers that import all
+     * library packages as well.
+     */
+    @Test
+    public void wideUsesConstraint() throws Exception {
+        for (int width : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            String name = PREFIX + "fan";
+            String hubPackage = getPackageName(name, width);
+            List<BundleSpecifier> specifiers = new ArrayList<BundleSpecifier>();
+            BundleSpecifier hub = m_bu.createBundleSpecifier(name + ".hub").addSyntheticPackage(hubPackage, 2);
+            BundleSpecifier.ExportPackage hubExport = m_bu.createExportPackage(hubPackage).setVersion("1.0.0");
+            for (int i = 0; i < width; i++) {
+                specifiers.add(createExporter(name + ".a" + i, getPackageName(name, i), "1.0.0", null, null));
+                specifiers.add(createExporter(name + ".b" + i, getPackageName(name, i), "1.1.0", null, null));
+                hubExport.addUses(getPackageName(name, i));
+                hub.addImport(m_bu.createImportPackage(getPackageName(name, i)).setVersion("[1.0,1.1)"));
+            }
+            specifiers.add(hub.addExport(hubExport));
+            for (int c = 0; c < CONSUMERS; c++) {
+                BundleSpecifier consumer = m_bu.createBundleSpecifier(name + ".consumer" + c);
+                consumer.addImport(m_bu.createImportPackage(hubPackage).setVersion("[1,2)"));
+                for (int i = 0; i < width; i++) {
+                    consumer.addImport(m_bu.createImportPackage(getPackageName(name, i)).setVersion("[1,2)"));
+                }
+                specifiers.add(consumer);
+            }
+
+            Bundle[] bundles = resolve("fan", width, specifiers);
+            try {
+                assert countUnresolved(bundles) == 0 : "Not all bundles of the uses fan of width " + width + " resolved.";
+            }
+            finally {
+                uninstallBundles(bundles);
+            }
+        }
+    }
+
+    /**
+     * The given number of packages are each exported in version 1 and 2, and use the package before them. A
+     * consumer imports the last package in any version and the first one in version 1. Picking the highest
+     * versions leads to a conflict, the resolver has to find the chain that ends in version 1.
+     */
+    @Test
+    public void conflictingPackageSpaces() throws Exception {
+        for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            Bundle[] bundles = resolve("conflict", size, createConflictingSpaces(PREFIX + "conflict", size, "[1,3)"));
+            try {
+                assert countUnresolved(bundles) == 0 : "The consumer of " + size + " conflicting package spaces didn't resolve.";
+            }
+            finally {
+                uninstallBundles(bundles);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #conflictingPackageSpaces()}, but the exporters of the second package only accept version 2 of the
+     * first. Every chain ends in version 2, the consumer can't resolve; a naive resolver tries every chain to find out.
+     */
+    @Test
+    public void unsatisfiablePackageSpaces() throws Exception {
+        for (int size : getSizes(PROP_SIZES, DEFAULT_SIZES)) {
+            Bundle[] bundles = resolve("unsatisfiable", size, createConflictingSpaces(PREFIX + "unsatisfiable", size, "[2,3)"));
+            try {
+                Bundle consumer = bundles[bundles.length - 1];
+                assert consumer.getState() == Bundle.INSTALLED : "The consumer of " + size + " unsatisfiable package spaces resolved.";
+                assert countUnresolved(bundles) == 1 : "Not all exporters of " + size + " unsatisfiable package spaces resolved.";
+            }
+            finally {
+                uninstallBundles(bundles);
+            }
+        }
+    }
+
+    /**
+     * Creates the bundles of {@link #conflictingPackageSpaces()}, the consumer is the last one.
+     *
+     * @param name
+     * @param size The number of packages.
+     * @param firstRange The version range with which the exporters of the second package import the first.
+     * @return
+     */
+    private List<BundleSpecifier> createConflictingSpaces(String name, int size, String firstRange) {
+        List<BundleSpecifier> specifiers = new ArrayList<BundleSpecifier>();
+        for (int i = 0; i < size; i++) {
+            String used = (i > 0) ? getPackageName(name, i - 1) : null;
+            String range = (i == 1) ? firstRange : "[1,3)";
+            specifiers.add(createExporter(name + ".a" + i, getPackageName(name, i), "1.0.0", used, range));
+            specifiers.add(createExporter(name + ".b" + i, getPackageName(name, i), "2.0.0", used, range));
+        }
+        BundleSpecifier consumer = m_bu.createBundleSpecifier(name + ".consumer");
+        consumer.addImport(m_bu.createImportPackage(getPackageName(name, size - 1)).setVersion("[1,3)"));
+        if (size > 1) {
+            consumer.addImport(m_bu.createImportPackage(getPackageName(name, 0)).setVersion("[1,2)"));
+        }
+        specifiers.add(consumer);
+        return specifiers;
+    }
+
+    /**
+     * Creates a bundle exporting a synthetic package.
+     *
+     * @param name The name of the bundle.
+     * @param pack The exported package.
+     * @param version The version of the exported package.
+     * @param used A package the exported package uses:= and that is imported, or null.
+     * @param usedRange The version range of the import of the used package.
+     * @return
+     */
+    private BundleSpecifier createExporter(String name, String pack, String version, String used, String usedRange) {
+        BundleSpecifier bs = m_bu.createBundleSpecifier(name).addSyntheticPackage(pack, 2);
+        BundleSpecifier.ExportPackage export = m_bu.createExportPackage(pack).setVersion(version);
+        if (used != null) {
+            export.addUses(used);
+            bs.addImport(m_bu.createImportPackage(used).setVersion(usedRange));
+        }
+        return bs.addExport(export);
+    }
+
+    /**
+     * Installs and resolves the bundles of a case within the deadline, and puts the results.
+     *
+     * @param series The name of the case.
+     * @param size The size of the case.
+     * @param specifiers
+     * @return The installed bundles, in the order of the specifiers.
+     */
+    private Bundle[] resolve(String series, int size, List<BundleSpecifier> specifiers) throws Exception {
+        List<ByteArrayInputStream> jars = generateBundles(specifiers);
+        long memoryBefore = getUsedMemory();
+        final Bundle[] bundles = installBundles(specifiers, jars);
+        long deadline = Long.getLong(PROP_DEADLINE, DEFAULT_DEADLINE).longValue();
+
+        long start = System.nanoTime();
+        try {
+            runWithDeadline("Resolving " + series + " of size " + size, deadline, new Callable<Boolean>() {
+                public Boolean call() {
+                    return Boolean.valueOf(m_admin.resolveBundles(bundles));
+                }
+            });
+        }
+        catch (AssertionError e) {
+            /*
+             * The bundles aren't uninstalled, the framework is still resolving them. Neither are they after the
+             * test, runWithDeadline skipped the cleanup.
+             */
+            putResult(series, size, "timeout", TimeUnit.MILLISECONDS.toNanos(deadline), TestMeasurements.UNIT_NANOS);
+            throw e;
+        }
+        putTime(series, size, System.nanoTime() - start);
+        putResult(series, size, "memory", Math.max(0, getUsedMemory() - memoryBefore), TestMeasurements.UNIT_BYTES);
+        putResult(series, size, "unresolved", countUnresolved(bundles), TestMeasurements.UNIT_COUNT);
+        return bundles;
+    }
+
+    private static String getPackageName(String name, int index) {
+        return BundleSpecifier.getSyntheticPackageName(name, index);
+    }
+}
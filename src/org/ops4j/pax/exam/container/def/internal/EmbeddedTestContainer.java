@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.ops4j.pax.exam.container.def.internal;
+
+import static org.ops4j.pax.exam.Constants.START_LEVEL_TEST_BUNDLE;
+import static org.ops4j.pax.exam.Constants.WAIT_FOREVER;
+import static org.ops4j.pax.exam.CoreOptions.bootDelegationPackage;
+import static org.ops4j.pax.exam.OptionUtils.combine;
+import static org.ops4j.pax.exam.OptionUtils.expand;
+import static org.ops4j.pax.exam.OptionUtils.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import net.luminis.osgitest.core.EmbeddedFramework;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ops4j.io.FileUtils;
+import org.ops4j.pax.exam.CompositeCustomizer;
+import org.ops4j.pax.exam.CoreOptions;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.options.TestContainerStartTimeoutOption;
+import org.ops4j.pax.exam.spi.container.TestContainer;
+import org.ops4j.pax.exam.spi.container.TestContainerException;
+import org.ops4j.pax.exam.spi.container.TimeoutException;
+import org.ops4j.pax.runner.EmbeddedRun;
+import org.ops4j.pax.runner.handler.internal.URLUtils;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test container that runs the framework in the VM of the test runner, see {@link EmbeddedFramework}.
+ *
+ * The framework and its bundles are resolved by Pax Runner from the same options as for the
+ * {@link PaxRunnerTestContainer}, but the Remote Bundle Context bundle isn't provisioned: the test container
+ * talks to the framework directly.
+ *
+ * This class lives in the Pax Exam package, since it needs the package private {@link ArgumentsBuilder}.
+ */
+public class EmbeddedTestContainer implements TestContainer {
+
+    private static final Log LOG = LogFactory.getLog(EmbeddedTestContainer.class);
+
+    private static final int SYSTEM_BUNDLE = 0;
+
+    private final ArgumentsBuilder m_arguments;
+    private final CompositeCustomizer m_customizers;
+    private final long m_startTimeout;
+
+    private TestContainerSemaphore m_semaphore;
+    private EmbeddedFramework m_framework;
+
+    EmbeddedTestContainer(Option... options) {
+        Option[] expanded = expand(combine(options, bootDelegationPackage("sun.*")));
+        m_arguments = new ArgumentsBuilder(expanded);
+        m_customizers = new CompositeCustomizer(m_arguments.getCustomizers());
+        m_startTimeout = getTestContainerStartTimeout(expanded);
+    }
+
+    public <T> T getService(Class<T> serviceType) {
+        return getService(serviceType, m_startTimeout);
+    }
+
+    public <T> T getService(Class<T> serviceType, long timeoutInMillis) {
+        LOG.debug("Lookup a [" + serviceType.getName() + "]");
+        T service = getFramework().getService(serviceType, timeoutInMillis);
+        if (service == null) {
+            throw new TestContainerException("No " + serviceType.getName() + " registered in " + timeoutInMillis + " millis");
+        }
+        return service;
+    }
+
+    public long installBundle(String bundleUrl) {
+        LOG.debug("Preparing and Installing bundle [" + bundleUrl + "] ..");
+        try {
+            InputStream in = m_customizers.customizeTestProbe(new URL(bundleUrl).openStream());
+            return getFramework().installBundle(bundleUrl, in);
+        }
+        catch (IOException e) {
+            throw new TestContainerException("Unable to install " + bundleUrl, e);
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new TestContainerException("Unable to customize " + bundleUrl, e);
+        }
+    }
+
+    public long installBundle(String bundleLocation, byte[] bundle) {
+        LOG.debug("Installing bundle [" + bundleLocation + "] ..");
+        return getFramework().installBundle(bundleLocation, new ByteArrayInputStream(bundle));
+    }
+
+    public void startBundle(long bundleId) {
+        getFramework().startBundle(bundleId);
+    }
+
+    public void setBundleStartLevel(long bundleId, int startLevel) {
+        getFramework().setBundleStartLevel(bundleId, startLevel);
+    }
+
+    public void start() {
+        LOG.info("Starting up the embedded test container");
+        m_semaphore = new TestContainerSemaphore(m_arguments.getWorkingFolder());
+        if (!m_semaphore.acquire() && !FileUtils.delete(m_arguments.getWorkingFolder())) {
+            throw new RuntimeException("There might be another instance of Pax Exam running. Have a look at "
+                + m_semaphore.getLockFile().getAbsolutePath());
+        }
+
+        long startedAt = System.currentTimeMillis();
+        URLUtils.resetURLStreamHandlerFactory();
+        EmbeddedRun.Capture platform = EmbeddedRun.prepare(m_arguments.getArguments());
+        m_framework = EmbeddedFramework.launch(platform, START_LEVEL_TEST_BUNDLE);
+        LOG.info("Embedded test container started in " + (System.currentTimeMillis() - startedAt) + " millis");
+
+        waitForState(SYSTEM_BUNDLE, Bundle.ACTIVE, m_startTimeout);
+        m_customizers.customizeEnvironment(m_arguments.getWorkingFolder());
+    }
+
+    public void stop() {
+        LOG.info("Shutting down the embedded test container");
+        try {
+            if (m_framework != null) {
+                m_framework.stop(m_startTimeout == WAIT_FOREVER ? 0 : m_startTimeout);
+            }
+        }
+        finally {
+            m_framework = null;
+            if (m_semaphore != null) {
+                m_semaphore.release();
+            }
+        }
+    }
+
+    public void waitForState(long bundleId, int state, long timeoutInMillis) {
+        long deadline = System.currentTimeMillis() + timeoutInMillis;
+        while (getFramework().getBundleState(bundleId) < state) {
+            if ((timeoutInMillis != WAIT_FOREVER) && (System.currentTimeMillis() >= deadline)) {
+                throw new TimeoutException("Bundle " + bundleId + " didn't reach state " + state + " in "
+                    + timeoutInMillis + " millis");
+            }
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TimeoutException("Interrupted while waiting for bundle " + bundleId);
+            }
+        }
+    }
+
+    private EmbeddedFramework getFramework() {
+        if (m_framework == null) {
+            throw new TestContainerException("The embedded test container isn't started");
+        }
+        return m_framework;
+    }
+
+    private static long getTestContainerStartTimeout(Option... options) {
+        TestContainerStartTimeoutOption[] timeoutOptions = filter(TestContainerStartTimeoutOption.class, options);
+        if (timeoutOptions.length > 0) {
+            return timeoutOptions[0].getTimeout();
+        }
+        return CoreOptions.waitForFrameworkStartup().getTimeout();
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2008 Alin Dreghiciu.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ *
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ops4j.pax.exam.junit.internal;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.luminis.osgitest.core.ClassDataSharing;
+import net.luminis.osgitest.core.FrameworkBootFailures;
+import net.luminis.osgitest.core.MicroBenchmarkRunner;
+import net.luminis.osgitest.core.TestPhaseTimer;
+import net.luminis.osgitest.core.TestWatchdog;
+import net.luminis.osgitest.results.ResultHistory;
+import net.luminis.osgitest.testhelper.MicroBenchmark;
+import net.luminis.osgitest.testhelper.TestBase;
+import net.luminis.osgitest.testhelper.TestMeasurements;
+import static org.ops4j.lang.NullArgumentException.*;
+import static org.ops4j.pax.exam.Constants.*;
+import org.ops4j.pax.exam.CoreOptions;
+import org.ops4j.pax.exam.Info;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.OptionUtils;
+import org.ops4j.pax.exam.container.def.internal.EmbeddedTestContainerFactory;
+import org.ops4j.pax.exam.junit.extender.CallableTestMethod;
+import org.ops4j.pax.exam.junit.extender.Constants;
+import org.ops4j.pax.exam.options.FrameworkOption;
+import org.ops4j.pax.exam.runtime.PaxExamRuntime;
+import org.ops4j.pax.exam.spi.container.TestContainer;
+import org.ops4j.pax.exam.spi.container.TestContainerFactory;
+
+/**
+ * A {@link org.junit.internal.runners.TestMethod} that upon invokation starts a {@link TestContainer} and executes the test in the test container.
+ *
+ * Modified for the OSGi testing framework: every phase of the test flow is timed by a {@link TestPhaseTimer},
+ * which is registered for the result formatter when the test flow ended. When the test container can't be started,
+ * the framework is recorded in {@link FrameworkBootFailures} and the remaining tests on that framework fail
+ * immediately. A {@link TestWatchdog} enforces the configured deadlines of the test and its phases. The test
+ * container is either the default Pax Runner container or an embedded one, see {@link TestBase#PROP_CONTAINER}.
+ * The calls to the container are counted by the {@link net.luminis.osgitest.core.RemoteCallRecorder} of the timer.
+ * 
+ * @author Alin Dreghiciu (adreghiciu@gmail.com)
+ * @since 0.3.0 December 16, 2008
+ */
+@SuppressWarnings( "deprecation" )
+public class JUnit4TestMethod
+    extends org.junit.internal.runners.TestMethod
+{
+
+    /**
+     * Test flow not yet started.
+     */
+    private static final int NOT_STARTED = 0;
+
+    /**
+     * Test container started.
+     */
+    private static final int CONTAINER_STARTED = 1;
+
+    /**
+     * Test bundle installed.
+     */
+    private static final int PROBE_INSTALLED = 2;
+
+    /**
+     * Test bundle started.
+     */
+    private static final int PROBE_STARTED = 3;
+
+    /**
+     * Test flow ended
+     */
+    private static final int SUCCESFUL = 4;
+
+    /**
+     * JCL logger.
+     */
+    private static final Log LOG = LogFactory.getLog( JUnit4TestMethod.class );
+
+    /**
+     * Test method. Cannot reuse the one from super class as it is not public.
+     */
+    private final Method m_testMethod;
+
+    /**
+     * Name of the test class. Cannot reuse the one from super class as it is not public.
+     */
+    private final String m_testClassName;
+
+    /**
+     * Configuration options.
+     */
+    private final Option[] m_options;
+
+    /**
+     * Configuration method name (test method name and eventual the framework and framework version)
+     */
+    private final String m_name;
+
+    /**
+     * Test bundle URL.
+     */
+    private final String m_testBundleUrl;
+
+    /**
+     * Framework and framework version the test runs on.
+     */
+    private final String m_framework;
+
+    /**
+     * Constructor.
+     * 
+     * @param testMethod test method (cannot be null)
+     * @param testClass test class (cannot be null)
+     * @param frameworkOption framework option (on which framework the test method should be run) (can be null = default
+     *            framework)
+     * @param userOptions user options (can be null)
+     */
+    public JUnit4TestMethod( final Method testMethod,
+                             final org.junit.internal.runners.TestClass testClass,
+                             final FrameworkOption frameworkOption,
+                             final Option... userOptions )
+    {
+        super( testMethod, testClass );
+        validateNotNull( testMethod, "Test method" );
+        validateNotNull( testClass, "Test class" );
+
+        m_testMethod = testMethod;
+        m_testClassName = testClass.getName();
+        m_options = OptionUtils.combine( userOptions, frameworkOption );
+        m_name = calculateName( testMethod.getName(), frameworkOption );
+        m_testBundleUrl = getTestBundleUrl( testClass.getName(), m_testMethod.getName() );
+        m_framework = calculateFramework( frameworkOption );
+    }
+
+    /**
+     * {@inheritDoc} Starts the test container, installs the test bundle and executes the test within the container.
+     */
+    @Override
+    public void invoke( Object test )
+        throws IllegalArgumentException, IllegalAccessException, InvocationTargetException
+    {
+        Info.showLogo();
+
+        final String fullTestName = m_name + "(" + m_testMethod.getDeclaringClass().getName() + ")";
+        LOG.info( "Starting test " + fullTestName );
+
+        int executionState = NOT_STARTED;
+        final TestPhaseTimer timer = new TestPhaseTimer();
+        final File exchangeDir = getExchangeDir();
+        final TestWatchdog watchdog = new TestWatchdog( exchangeDir, m_testClassName, m_testMethod.getName(), m_name );
+        timer.setWatchdog( watchdog );
+        watchdog.start();
+        final TestContainerFactory containerFactory = getTestContainerFactory();
+        TestContainer container = null;
+        try
+        {
+            FrameworkBootFailures.check( m_framework );
+
+            LOG.trace( "Start test container" );
+            timer.begin( TestPhaseTimer.CONTAINER_START );
+            try
+            {
+                container = timer.getRemoteCalls().wrap(
+                    containerFactory.newInstance( getContainerOptions( exchangeDir, watchdog ) ) );
+                container.start();
+            }
+            catch ( RuntimeException e )
+            {
+                recordBootFailure( watchdog, fullTestName, e );
+                throw e;
+            }
+            catch ( Error e )
+            {
+                recordBootFailure( watchdog, fullTestName, e );
+                throw e;
+            }
+            FrameworkBootFailures.succeeded( m_framework );
+            executionState = CONTAINER_STARTED;
+
+            LOG.trace( "Install and start test bundle" );
+            timer.begin( TestPhaseTimer.PROBE_INSTALL );
+            final long bundleId = container.installBundle( m_testBundleUrl );
+            executionState = PROBE_INSTALLED;
+            timer.begin( TestPhaseTimer.PROBE_START );
+            container.setBundleStartLevel( bundleId, START_LEVEL_TEST_BUNDLE );
+            container.startBundle( bundleId );
+            executionState = PROBE_STARTED;
+
+            LOG.trace( "Execute test [" + m_name + "]" );
+            timer.begin( TestPhaseTimer.PROBE_CALL );
+            final CallableTestMethod callable = container.getService( CallableTestMethod.class );
+            try
+            {
+                LOG.info( "Starting test " + fullTestName );
+                runMicroBenchmark( callable, exchangeDir, timer );
+                callable.call();
+                LOG.info( "Test " + fullTestName + " ended succesfully" );
+                executionState = SUCCESFUL;
+            }
+            catch ( InstantiationException e )
+            {
+                throw new InvocationTargetException( e );
+            }
+            catch ( ClassNotFoundException e )
+            {
+                throw new InvocationTargetException( e );
+            }
+        }
+        finally
+        {
+            timer.end();
+            if ( container != null )
+            {
+                // Leave handling of proper stop to container implementation
+                try
+                {
+                    timer.begin( TestPhaseTimer.CONTAINER_STOP );
+                    container.stop();
+                }
+                catch ( RuntimeException ignore )
+                {
+                    if ( executionState >= SUCCESFUL )
+                    {
+                        // throw catched exception if the test already was successful
+                        // noinspection ThrowFromFinallyBlock
+                        throw ignore;
+                    }
+                    else
+                    {
+                        // Do not throw an exception that could occur during stopping the container in case that an
+                        // exception was already being thrown
+                        LOG.error( "Cannot stop the test container: " + ignore.getMessage() );
+                    }
+                }
+                finally
+                {
+                    timer.end();
+                }
+            }
+            timer.addContainerMeasurements( TestMeasurements.take( exchangeDir, m_testClassName, m_testMethod.getName() ) );
+            TestPhaseTimer.register( m_testClassName, m_name, timer );
+
+            final TestWatchdog.TestTimeoutException timeout = watchdog.stop();
+            if ( timeout != null )
+            {
+                // the exception being thrown (if any) is caused by killing the container
+                // noinspection ThrowFromFinallyBlock
+                throw timeout;
+            }
+        }
+    }
+
+    /**
+     * Getter.
+     * 
+     * @return test method
+     */
+    public Method getTestMethod()
+    {
+        return m_testMethod;
+    }
+
+    /**
+     * Getter.
+     * 
+     * @return test method name
+     */
+    public String getName()
+    {
+        return m_name;
+    }
+
+    /**
+     * Computes the test method name out of test method name, framework and framework version.
+     * 
+     * @param testMethodName test method name
+     * @param frameworkOption framework option
+     * @return test method name
+     */
+    private static String calculateName( final String testMethodName,
+                                         final FrameworkOption frameworkOption )
+    {
+        final StringBuilder name = new StringBuilder();
+        name.append( testMethodName );
+        if ( frameworkOption != null )
+        {
+            name.append( " [" ).append( calculateFramework( frameworkOption ) ).append( "]" );
+        }
+        return name.toString();
+    }
+
+    /**
+     * Runs the iterations of a test method annotated with {@link MicroBenchmark} before the call that decides the
+     * outcome of the test, and adds the results to the timer. Every iteration is a call of the test method in the
+     * container, its time is the test phase the container measured.
+     */
+    private void runMicroBenchmark( final CallableTestMethod callable, final File exchangeDir, final TestPhaseTimer timer )
+        throws ClassNotFoundException, InstantiationException, IllegalAccessException, InvocationTargetException
+    {
+        final MicroBenchmark settings = m_testMethod.getAnnotation( MicroBenchmark.class );
+        if ( settings == null )
+        {
+            return;
+        }
+
+        final String methodName = m_testMethod.getName();
+        final MicroBenchmarkRunner runner = new MicroBenchmarkRunner( m_testClassName, methodName, settings );
+        try
+        {
+            timer.addResults( runner.run( new Callable<Long>()
+            {
+                public Long call()
+                    throws Exception
+                {
+                    callable.call();
+                    final String test = TestMeasurements.take( exchangeDir, m_testClassName, methodName )
+                        .getProperty( TestMeasurements.PHASE_TEST );
+                    if ( test == null )
+                    {
+                        throw new IllegalStateException( "No measurements of an iteration of " + m_name + " in " + exchangeDir );
+                    }
+                    return Long.valueOf( test );
+                }
+            } ) );
+        }
+        catch ( ClassNotFoundException e )
+        {
+            throw e;
+        }
+        catch ( InstantiationException e )
+        {
+            throw e;
+        }
+        catch ( IllegalAccessException e )
+        {
+            throw e;
+        }
+        catch ( InvocationTargetException e )
+        {
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new InvocationTargetException( e );
+        }
+    }
+
+    /**
+     * Records a failed container start. A container that didn't start before the watchdog fired failed to boot as
+     * well, unless the watchdog fired for a later phase.
+     */
+    private void recordBootFailure( final TestWatchdog watchdog, final String fullTestName, final Throwable failure )
+    {
+        final String firedPhase = watchdog.getFiredPhase();
+        if ( firedPhase != null && !TestPhaseTimer.CONTAINER_START.equals( firedPhase ) )
+        {
+            return;
+        }
+        if ( FrameworkBootFailures.record( m_framework, fullTestName, failure ) )
+        {
+            LOG.warn( "Framework " + m_framework + " failed to boot, its remaining tests are skipped" );
+        }
+    }
+
+    /**
+     * Returns the options of the test container, with the directory it exchanges files with the watchdog in. The
+     * class data sharing archive of the framework and the id the watchdog finds the container VM by are only passed
+     * to a container in a separate VM, an embedded framework runs in the VM of the testsuite and reads the exchange
+     * directory from its system properties.
+     */
+    private Option[] getContainerOptions( final File exchangeDir, final TestWatchdog watchdog )
+    {
+        if ( TestBase.CONTAINER_EMBEDDED.equals( System.getProperty( TestBase.PROP_CONTAINER ) ) )
+        {
+            System.setProperty( TestMeasurements.PROP_EXCHANGE_DIR, exchangeDir.getAbsolutePath() );
+            return m_options;
+        }
+        return OptionUtils.combine( m_options,
+            OptionUtils.combine( ClassDataSharing.getContainerVmOptions( m_framework ),
+                CoreOptions.systemProperty( TestMeasurements.PROP_EXCHANGE_DIR ).value( exchangeDir.getAbsolutePath() ),
+                CoreOptions.systemProperty( TestWatchdog.PROP_CONTAINER_ID ).value( watchdog.getContainerId() ) ) );
+    }
+
+    /**
+     * Returns the directory the container exchanges files with the watchdog in, one per run and framework.
+     */
+    private File getExchangeDir()
+    {
+        return TestMeasurements.getExchangeDir( System.getProperty( ResultHistory.PROP_RUN_ID, "local" ), m_framework );
+    }
+
+    /**
+     * Returns the factory of the test container selected by the system property {@link TestBase#PROP_CONTAINER}.
+     *
+     * @return test container factory
+     */
+    private static TestContainerFactory getTestContainerFactory()
+    {
+        if ( TestBase.CONTAINER_EMBEDDED.equals( System.getProperty( TestBase.PROP_CONTAINER ) ) )
+        {
+            return new EmbeddedTestContainerFactory();
+        }
+        return PaxExamRuntime.getTestContainerFactory();
+    }
+
+    /**
+     * Computes the framework name out of framework and framework version.
+     * 
+     * @param frameworkOption framework option (can be null = default framework)
+     * @return framework name
+     */
+    private static String calculateFramework( final FrameworkOption frameworkOption )
+    {
+        if ( frameworkOption == null )
+        {
+            return "default";
+        }
+        final StringBuilder name = new StringBuilder( frameworkOption.getName() );
+        final String version = frameworkOption.getVersion();
+        if ( version != null )
+        {
+            name.append( "/" ).append( version );
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the test bundle url using an Pax URL Dir url.
+     * 
+     * @param testClassName test class name
+     * @param testMethodName test method name
+     * @return test bundle url
+     */
+    private static String getTestBundleUrl( final String testClassName,
+                                            final String testMethodName )
+    {
+        final StringBuilder url = new StringBuilder();
+        url.append( "dir:" )
+           .append( new File( "." ).getAbsolutePath() )
+           .append( "$" )
+           .append( "tail=" ).append( testClassName.replace( ".", "/" ) ).append( ".class" )
+           .append( "&" )
+           .append( Constants.PROBE_TEST_CLASS ).append( "=" ).append( testClassName )
+           .append( "&" )
+           .append( Constants.PROBE_TEST_METHOD ).append( "=" ).append( testMethodName )
+           .append( "&" )
+           .append( org.osgi.framework.Constants.BUNDLE_SYMBOLICNAME )
+           .append( "=" )
+           .append( Constants.PROBE_SYMBOLICNAME )
+           .append( "&" )
+           .append( org.osgi.framework.Constants.DYNAMICIMPORT_PACKAGE )
+           .append( "=*" )
+           .append( "&" )
+           .append( org.osgi.framework.Constants.EXPORT_PACKAGE )
+           .append( "=!*" );
+        return url.toString();
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.ops4j.pax.runner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Properties;
+
+import org.ops4j.pax.runner.platform.BundleReference;
+import org.ops4j.pax.runner.platform.JavaRunner;
+import org.ops4j.pax.runner.platform.Platform;
+import org.ops4j.pax.runner.platform.PlatformException;
+import org.ops4j.pax.runner.platform.SystemFileReference;
+
+/**
+ * Runs Pax Runner up to the point where it would start the framework VM, and captures what it resolved instead:
+ * the framework classpath, the VM options, the system properties and the bundles to provision.
+ *
+ * The platform is prepared exactly like for a test container in a separate VM (the framework and the bundles are
+ * downloaded and the framework is configured in the working directory), so the embedded test container can start
+ * the same framework in-process.
+ *
+ * This class lives in the Pax Runner package, since the hook it overrides ({@link Run#installPlatform(Context)})
+ * is package private.
+ */
+public class EmbeddedRun extends Run {
+
+    private final Capture m_capture;
+
+    private EmbeddedRun(Capture capture) {
+        m_capture = capture;
+    }
+
+    /**
+     * Prepares the platform described by the Pax Runner arguments.
+     *
+     * @param args The Pax Runner arguments.
+     * @return What Pax Runner resolved.
+     */
+    public static Capture prepare(String... args) {
+        Capture capture = new Capture();
+        CommandLine commandLine = new CommandLineImpl(args);
+        String config = commandLine.getOption("config");
+        if (config == null) {
+            config = "classpath:META-INF/runner.properties";
+        }
+        Configuration configuration = new ConfigurationImpl(config);
+        new EmbeddedRun(capture).start(commandLine, configuration, new OptionResolverImpl(commandLine, configuration), capture);
+        if (capture.getClasspath() == null) {
+            throw new IllegalStateException("Pax Runner didn't resolve a framework to start.");
+        }
+        return capture;
+    }
+
+    @Override
+    Platform installPlatform(Context context) {
+        final Platform platform = super.installPlatform(context);
+        return new Platform() {
+            @SuppressWarnings("rawtypes")
+            public void start(List<SystemFileReference> systemFiles, List<BundleReference> bundles, Properties properties,
+                Dictionary config, JavaRunner javaRunner) throws PlatformException {
+                m_capture.m_bundles.addAll(bundles);
+                if (properties != null) {
+                    m_capture.m_systemProperties.putAll(properties);
+                }
+                platform.start(systemFiles, bundles, properties, config, javaRunner);
+            }
+        };
+    }
+
+    /**
+     * The platform Pax Runner resolved. Pax Runner hands the command line of the framework VM to this
+     * {@link JavaRunner}, which keeps it instead of starting the VM.
+     */
+    public static class Capture implements JavaRunner {
+        private final List<BundleReference> m_bundles = new ArrayList<BundleReference>();
+        private final Properties m_systemProperties = new Properties();
+        private String[] m_vmOptions;
+        private String[] m_classpath;
+        private String m_mainClass;
+        private File m_workingDirectory;
+
+        public void exec(String[] vmOptions, String[] classpath, String mainClass, String[] programOptions, String javaHome,
+            File workingDirectory) throws PlatformException {
+            m_vmOptions = vmOptions;
+            m_classpath = classpath;
+            m_mainClass = mainClass;
+            m_workingDirectory = workingDirectory;
+        }
+
+        /**
+         * Returns the bundles to provision, in the order Pax Runner resolved them.
+         */
+        public List<BundleReference> getBundles() {
+            return Collections.unmodifiableList(m_bundles);
+        }
+
+        /**
+         * Returns the system properties Pax Runner collected from its arguments.
+         */
+        public Properties getSystemProperties() {
+            return m_systemProperties;
+        }
+
+        /**
+         * Returns the options of the framework VM, including the framework configuration passed as -D options.
+         */
+        public String[] getVmOptions() {
+            return m_vmOptions == null ? new String[0] : m_vmOptions;
+        }
+
+        /**
+         * Returns the classpath of the framework VM, which contains the framework itself.
+         */
+        public String[] getClasspath() {
+            return m_classpath;
+        }
+
+        public String getMainClass() {
+            return m_mainClass;
+        }
+
+        public File getWorkingDirectory() {
+            return m_workingDirectory;
+        }
+    }
+}
@@ -19,6 +19,9 @@
 
 /**
  * Class to highlight to rows if a mouse hovers over.
+ * 
+ * A single highlighter listens to the whole table, so rows that are created later (from loaded chunks)
+ * are highlighted as well.
  */
 var RowHighlighter = new Class({
 	/**
@@ -29,28 +32,46 @@ var RowHighlighter = new Class({
 	/**
 	 * Class constructor
 	 * 
-	 * @param cell DOM-node The node that triggers the hover event
+	 * @param table DOM-node The node containing the cells that trigger the hover event
 	 */
-	initialize: function(cell) {
-		this.cell = cell;
-		this.row = this.cell.getParent();
-		
-		cell.addEvent('mouseover', this.highlight);
-		cell.addEvent('mouseout', this.unHighlight);
+	initialize: function(table) {
+		table.addEvent('mouseover', this.highlight);
+		table.addEvent('mouseout', this.unHighlight);
 	},
 	
 	/**
 	 * Highlight the row of the cell
+	 * 
+	 * @param event Event The mouseover event
 	 */
-	highlight: function() {
-		this.row.addClass('highlight');
+	highlight: function(event) {
+		var row = this.getRow(event);
+		if ($chk(row)) {
+			row.addClass('highlight');
+		}
 	},
 	
 	/**
 	 * Unhighlight to row of the cell
+	 * 
+	 * @param event Event The mouseout event
+	 */
+	unHighlight: function(event) {
+		var row = this.getRow(event);
+		if ($chk(row)) {
+			row.removeClass('highlight');
+		}
+	},
+	
+	/**
+	 * Returns the row of the highlight-row cell the event occurred in
+	 * 
+	 * @param event Event The mouse event
+	 * @return DOM-node The table-row node, or null if the event didn't occur in a highlight-row cell
 	 */
-	unHighlight: function() {
-		this.row.removeClass('highlight');
+	getRow: function(event) {
+		var target = $(event.target);
+		var cell = target.match('td.highlight-row') ? target : target.getParent('td.highlight-row');
+		return $chk(cell) ? cell.getParent() : null;
 	}
 });
-
@@ -17,7 +17,12 @@
  * under the License.
  */
 /**
- * Class that can collapse and expand the sub-section-rows in a specific section-row of the resultmatrix
+ * Class that can collapse and expand the sub-section-rows in a specific section-row of the resultmatrix.
+ * 
+ * Sections that are marked 'lazy' don't have their sub-section-rows in the page. The rows are created from
+ * a data chunk (data/<section id>.js) the first time the section is expanded, and the rows of deeper
+ * subsections only when those are expanded in turn. If the chunk can't be loaded, the handler shows an
+ * error and the next click tries again.
  */
 var Section = new Class({
 	/**
@@ -29,13 +34,17 @@ var Section = new Class({
 	 * Class constructor
 	 * 
 	 * @param section DOM-node The root-section table-row node 
+	 * @param sections Array (optional) The data of the subsections, when the row was created from a chunk
+	 * @param chunk Object (optional) The chunk the row was created from
 	 */
-	initialize: function(section) {
+	initialize: function(section, sections, chunk) {
 		this.id = section.get('id');
 		if (!$chk(this.id)) {
 			return
 		}
 		this.handler = section;
+		this.sections = sections;
+		this.chunk = chunk;
 		
 		this.subsection = section.getNext();
 		if ($chk(this.subsection) && this.subsection.hasClass('subsections')) {
@@ -45,6 +54,10 @@ var Section = new Class({
 			
 			this.handler.addEvent('click', this.close);
 		}
+		else if (($chk(sections) && sections.length > 0) || section.hasClass('lazy')) {
+			this.subsection = null;
+			this.toggleHandler('close');
+		}
 	},
 	
 	/**
@@ -56,12 +69,63 @@ var Section = new Class({
 	},
 	
 	/**
-	 * Event method that opens the subsections
+	 * Event method that opens the subsections, creating their rows first if needed
 	 */
 	open: function() {
+		if (!$chk(this.subsection)) {
+			this.load();
+			return;
+		}
 		this.subsection.removeClass('hidden');
 		this.toggleHandler('open');
 	},
+	
+	/**
+	 * Creates the sub-section-rows from the data of this section, or loads the chunk containing the data
+	 */
+	load: function() {
+		if ($chk(this.sections) && this.sections.length > 0) {
+			this.render(this.sections, this.chunk);
+		}
+		else {
+			Section.loadChunk(this.id, this);
+		}
+	},
+	
+	/**
+	 * Shows that the chunk of this section couldn't be loaded
+	 * 
+	 * @param src String The url of the chunk
+	 */
+	loadFailed: function(src) {
+		Section.showLoadFailure(this.handler.getElement('img.handler'), src);
+	},
+	
+	/**
+	 * Creates the sub-section-rows and opens them
+	 * 
+	 * @param sections Array The data of the subsections
+	 * @param chunk Object The chunk containing the data
+	 */
+	render: function(sections, chunk) {
+		var parentId = this.id.substring(chunk.version.length + 1);
+		var table = new Element('table', {'cellspacing': 0, 'cellpadding': 0});
+		var tbody = new Element('tbody').inject(table);
+		
+		this.subsection = new Element('tr', {'class': 'subsections'});
+		new Element('td', {'colspan': 2, 'html': '&#160;'}).inject(this.subsection);
+		new Element('td', {'colspan': chunk.vendors.length + 1}).adopt(table).inject(this.subsection);
+		
+		var rows = sections.map(function(section) {
+			return Section.createRow(section, chunk, parentId).inject(tbody);
+		});
+		this.subsection.inject(this.handler, 'after');
+		
+		sections.each(function(section, index) {
+			new Section(rows[index], section.sections, chunk);
+		});
+		this.open();
+	},
 
 	/**
 	 * Toggles the event of the handler to open or close
@@ -70,16 +134,136 @@ var Section = new Class({
 	 */
 	toggleHandler: function(newState) {
 		if ($chk(this.handler)) {
+			var image = this.handler.getElement('img.handler');
 			if (newState == 'open') {
 				this.handler.removeEvent('click', this.open);
 				this.handler.addEvent('click', this.close);
-				this.handler.set('src', 'resources/images/folder.png');
+				if ($chk(image)) {
+					image.set('src', 'resources/images/folder.png').erase('title');
+				}
 			}
 			else {
 				this.handler.removeEvent('click', this.close);
 				this.handler.addEvent('click', this.open);
-				this.handler.set('src', 'resources/images/folder_closed.png');
+				if ($chk(image)) {
+					image.set('src', 'resources/images/folder_closed.png').erase('title');
+				}
 			}
 		}
 	}
 });
+
+/**
+ * Sections and versions waiting for their chunk to be loaded, by id
+ */
+Section.loading = {};
+
+/**
+ * Loads the chunk of a section or version (data/<id>.js), which calls Section.addChunk when it is loaded. When the
+ * chunk is missing, or loads without calling Section.addChunk (eg. it's truncated), the owner is told the load
+ * failed and can load it again.
+ * 
+ * @param id String The id of the section or version
+ * @param owner Object The Section or Version, with a render(sections, chunk) and loadFailed(src) method
+ */
+Section.loadChunk = function(id, owner) {
+	if ($chk(Section.loading[id])) {
+		return;
+	}
+	Section.loading[id] = owner;
+	
+	var src = 'data/' + id + '.js';
+	var script = new Element('script', {'type': 'text/javascript', 'src': src});
+	var failed = function() {
+		if (Section.loading[id] == owner) {
+			delete Section.loading[id];
+			owner.loadFailed(src);
+		}
+		script.destroy();
+	};
+	script.addEvents({'load': failed, 'error': failed});
+	script.inject(document.getElement('head'));
+};
+
+/**
+ * Shows on a handler image that a chunk couldn't be loaded
+ * 
+ * @param image DOM-node The handler image
+ * @param src String The url of the chunk
+ */
+Section.showLoadFailure = function(image, src) {
+	if ($chk(image)) {
+		image.set({
+			'src': 'resources/images/error.png',
+			'title': 'Unable to load ' + src + ', click to try again'
+		});
+	}
+};
+
+/**
+ * Names and images of the outcomes in a chunk, by outcome
+ */
+Section.outcomes = [
+	{'name': 'Success', 'image': 'check2.png'},
+	{'name': 'Failure', 'image': 'delete.png'},
+	{'name': 'Error', 'image': 'error.png'}
+];
+
+/**
+ * Called by a loaded chunk (data/<section id>.js or data/<version id>.js)
+ * 
+ * @param id String The id of the section or version the chunk belongs to
+ * @param chunk Object The version, the vendors and the data of the subsections
+ */
+Section.addChunk = function(id, chunk) {
+	var section = Section.loading[id];
+	if ($chk(section)) {
+		delete Section.loading[id];
+		section.render(chunk.sections, chunk);
+	}
+};
+
+/**
+ * Creates the row of a section in a chunk, like the rows written in the page itself
+ * 
+ * @param section Object The data of the section
+ * @param chunk Object The chunk containing the section
+ * @param parentId String The id of the parent section
+ * @return DOM-node The table-row node
+ */
+Section.createRow = function(section, chunk, parentId) {
+	var row = new Element('tr', {
+		'id': chunk.version + '-' + section.id,
+		'class': 'parent-' + chunk.version + '-' + parentId
+	});
+	
+	if (section.lazy) {
+		row.addClass('lazy');
+	}
+	
+	var handle = new Element('td', {'class': 'section-handle highlight-row'}).inject(row);
+	if (section.lazy || section.sections.length > 0) {
+		new Element('img', {'src': 'resources/images/folder_closed.png', 'alt': 'handle', 'class': 'handler'}).inject(handle);
+	}
+	new Element('td', {'class': 'section-number highlight-row', 'text': section.number}).inject(row);
+	new Element('td', {'class': 'section-name highlight-row', 'text': section.name}).inject(row);
+	
+	section.results.each(function(results, index) {
+		var cell = new Element('td', {'class': 'vendor highlight-row'}).inject(row);
+		if (results.length == 0) {
+			cell.set('html', '&#160;');
+		}
+		results.each(function(result) {
+			var outcome = Section.outcomes[result[0]];
+			var link = new Element('a', {
+				'href': 'details/' + result[1] + '.html#' + result[2] + '_' + chunk.vendors[index]
+			}).inject(cell);
+			new Element('img', {
+				'src': 'resources/images/' + outcome.image,
+				'alt': outcome.name,
+				'title': result[2] + ': ' + outcome.name
+			}).inject(link);
+		});
+	});
+	return row;
+};
@@ -19,6 +19,9 @@
 
 /**
  * Class that can collapse and expand the section-rows in a specific osgi-version of the resultmatrix
+ * 
+ * Versions that are marked 'lazy' don't have their section-rows in the page. The rows are created from a data
+ * chunk (data/<version id>.js) the first time the version is expanded.
  */
 var Version = new Class({
 	/**
@@ -36,7 +39,14 @@ var Version = new Class({
 		this.handler = version.getElement('.handler');
 		this.sectionTable = version.getElement('table');
 		
-		if (!$chk(this.id) || !$chk(this.sectionTable) || !$chk(this.handler)) {
+		if (!$chk(this.id) || !$chk(this.handler)) {
+			return;
+		}
+		if (!$chk(this.sectionTable)) {
+			if (version.hasClass('lazy')) {
+				this.sectionCell = version.getElement('td.osgi-sections');
+				this.toggleHandler('close');
+			}
 			return;
 		}
 		
@@ -57,13 +67,48 @@ var Version = new Class({
 	},
 	
 	/**
-	 * Event method that closes the sections inside this version
+	 * Event method that opens the sections inside this version, loading their rows first if needed
 	 */
 	open: function() {
+		if (!$chk(this.sectionTable)) {
+			Section.loadChunk(this.id, this);
+			return;
+		}
 		this.toggleHandler('open');
 		this.sectionTable.removeClass('hidden');
 	},
 	
+	/**
+	 * Creates the section-rows and opens them
+	 * 
+	 * @param sections Array The data of the top level sections
+	 * @param chunk Object The chunk containing the data
+	 */
+	render: function(sections, chunk) {
+		var table = new Element('table', {'cellspacing': 0, 'cellpadding': 0});
+		var tbody = new Element('tbody').inject(table);
+		
+		var rows = sections.map(function(section) {
+			return Section.createRow(section, chunk, '0').inject(tbody);
+		});
+		this.sectionCell.empty().adopt(table);
+		this.sectionTable = table;
+		
+		sections.each(function(section, index) {
+			new Section(rows[index], section.sections, chunk);
+		});
+		this.open();
+	},
+	
+	/**
+	 * Shows that the chunk of this version couldn't be loaded
+	 * 
+	 * @param src String The url of the chunk
+	 */
+	loadFailed: function(src) {
+		Section.showLoadFailure(this.handler, src);
+	},
+	
 	/**
 	 * Toggles the event of the handler to open or close
 	 * 
@@ -74,12 +119,12 @@ var Version = new Class({
 			if (newState == 'open') {
 				this.handler.removeEvent('click', this.open);
 				this.handler.addEvent('click', this.close);
-				this.handler.set('src', 'resources/images/folder.png');
+				this.handler.set('src', 'resources/images/folder.png').erase('title');
 			}
 			else {
 				this.handler.removeEvent('click', this.close);
 				this.handler.addEvent('click', this.open);
-				this.handler.set('src', 'resources/images/folder_closed.png');
+				this.handler.set('src', 'resources/images/folder_closed.png').erase('title');
 			}
 		}
 	}
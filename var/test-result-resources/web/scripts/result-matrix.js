@@ -18,13 +18,11 @@
  */
 
 window.addEvent('domready', function() {
-	var versions = document.getElement('table.results').getElement('tbody').getElements('tr.osgi-version');
+	var results = document.getElement('table.results');
+	var versions = results.getElement('tbody').getElements('tr.osgi-version');
 	versions.each(function(version) {
 		new Version(version);
 	});
 	
-	var cells = document.getElements('td.highlight-row');
-	cells.each(function(cell) {
-		new RowHighlighter(cell);
-	});
+	new RowHighlighter(results);
 });
\ No newline at end of file